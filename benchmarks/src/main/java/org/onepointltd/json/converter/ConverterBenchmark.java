@@ -0,0 +1,96 @@
+package org.onepointltd.json.converter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the converter hot paths on generated patches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConverterBenchmark {
+
+    static final String QUERY = "{ _id: ObjectId(\"58a46cc6f7076692b7693c4e\") }";
+
+    @Param({"10", "1000", "100000"})
+    private int ops;
+
+    @Param({"MIXED", "ADD", "REMOVE", "REPLACE"})
+    private String mix;
+
+    @Param({"2", "8"})
+    private int depth;
+
+    @Param({"16", "4096"})
+    private int valueSize;
+
+    @Param({"false", "true"})
+    private boolean lazyValues;
+
+    private String patch;
+
+    private MongoConversion conversion;
+
+    private JsonPatchToMongoUpdate converter;
+
+    @Setup
+    public void setUp() throws IOException {
+        converter = new JsonPatchToMongoUpdate();
+        converter.setLazyValues(lazyValues);
+        patch = new PatchGenerator(42).generate(ops, PatchGenerator.Mix.valueOf(mix), depth, valueSize);
+        conversion = converter.convert(new StringReader(patch));
+    }
+
+    @Benchmark
+    public MongoConversion convert() throws IOException {
+        return converter.convert(new StringReader(patch));
+    }
+
+    @Benchmark
+    public MongoCommands convertToMongo() {
+        return converter.convertToMongo(conversion, "customers", "customer");
+    }
+
+    @Benchmark
+    public MongoCommands convertToMongoUpdates() throws IOException {
+        return converter.convertToMongoUpdates(new StringReader(patch), QUERY, "customer", "customers", "customer");
+    }
+
+    @Benchmark
+    public void writeMongoUpdates(Blackhole blackhole) throws IOException {
+        Writer out = new Writer() {
+            @Override
+            public void write(char[] chars, int off, int len) {
+                blackhole.consume(chars);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        converter.writeMongoUpdates(conversion, QUERY, "customer", false, out, "customers", "customer");
+    }
+}
@@ -0,0 +1,79 @@
+package org.onepointltd.json.converter;
+
+import java.util.Random;
+
+/**
+ * Generates synthetic JSON patches with a configurable size, operation mix, path depth and value size.
+ */
+class PatchGenerator {
+
+    /**
+     * The mix of operations in a generated patch.
+     */
+    enum Mix {
+        ADD, REMOVE, REPLACE, MIXED
+    }
+
+    private static final String[] OPS = {"add", "remove", "replace"};
+
+    private final Random random;
+
+    PatchGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Generates a JSON patch.
+     *
+     * @param ops       The number of operations in the patch.
+     * @param mix       The operations which are generated.
+     * @param depth     The number of segments of each path.
+     * @param valueSize The approximate size in characters of each value.
+     * @return the patch as a JSON string.
+     */
+    String generate(int ops, Mix mix, int depth, int valueSize) {
+        StringBuilder sb = new StringBuilder(ops * (depth * 12 + valueSize + 48)).append('[');
+        for (int i = 0; i < ops; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            String op = mix == Mix.MIXED ? OPS[random.nextInt(OPS.length)] : mix.name().toLowerCase();
+            sb.append("{\"op\":\"").append(op).append("\",\"path\":\"");
+            appendPath(sb, depth, op.equals("add") && random.nextBoolean());
+            sb.append('"');
+            if (!op.equals("remove")) {
+                sb.append(",\"value\":");
+                appendValue(sb, valueSize);
+            }
+            sb.append('}');
+        }
+        return sb.append(']').toString();
+    }
+
+    private void appendPath(StringBuilder sb, int depth, boolean append) {
+        for (int i = 0; i < depth; i++) {
+            sb.append("/field").append(random.nextInt(64));
+        }
+        if (append) {
+            sb.append("/-");
+        }
+    }
+
+    private void appendValue(StringBuilder sb, int valueSize) {
+        if (valueSize <= 16) {
+            sb.append('"').append(Long.toHexString(random.nextLong())).append('"');
+            return;
+        }
+        sb.append('{');
+        int written = 0;
+        for (int i = 0; written < valueSize; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            String text = Long.toHexString(random.nextLong());
+            sb.append("\"k").append(i).append("\":\"").append(text).append('"');
+            written += text.length() + 8;
+        }
+        sb.append('}');
+    }
+}
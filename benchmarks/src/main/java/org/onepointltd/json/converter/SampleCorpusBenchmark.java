@@ -0,0 +1,80 @@
+package org.onepointltd.json.converter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the converter hot paths on the patch samples of the unit tests, which act as the baseline corpus.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SampleCorpusBenchmark {
+
+    @Param({"addWithPush.json", "complexPull.json", "customerPatchUpdate.json", "patchSample.json",
+            "patchSample2.json", "patchSampleNoUnset.json"})
+    private String sample;
+
+    private String patch;
+
+    private MongoConversion conversion;
+
+    private JsonPatchToMongoUpdate converter;
+
+    @Setup
+    public void setUp() throws IOException {
+        converter = new JsonPatchToMongoUpdate();
+        patch = readSample("patch/" + sample);
+        conversion = converter.convert(new StringReader(patch));
+    }
+
+    @Benchmark
+    public MongoConversion convert() throws IOException {
+        return converter.convert(new StringReader(patch));
+    }
+
+    @Benchmark
+    public MongoCommands convertToMongo() {
+        return converter.convertToMongo(conversion, "customers", "customer");
+    }
+
+    @Benchmark
+    public MongoCommands convertToMongoUpdates() throws IOException {
+        return converter.convertToMongoUpdates(new StringReader(patch), ConverterBenchmark.QUERY, "customer",
+                "customers", "customer");
+    }
+
+    private static String readSample(String resource) throws IOException {
+        try (InputStream in = SampleCorpusBenchmark.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("Missing patch sample " + resource);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
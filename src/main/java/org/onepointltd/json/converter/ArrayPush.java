@@ -0,0 +1,39 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Values inserted into an array by an update of their own, since they cannot be merged into the other values pushed
+ * to the array, like e.g. adds at positions which are not next to each other.
+ */
+public class ArrayPush {
+
+    private final String key;
+
+    private final Integer position;
+
+    private final List<JsonNode> values = new ArrayList<>();
+
+    ArrayPush(String key, Integer position) {
+        this.key = key;
+        this.position = position;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the position at which the values are inserted, or {@code null} if they are appended.
+     */
+    public Integer getPosition() {
+        return position;
+    }
+
+    public List<JsonNode> getValues() {
+        return values;
+    }
+}
@@ -0,0 +1,20 @@
+package org.onepointltd.json.converter;
+
+/**
+ * Defines how operations on array positions are translated.
+ */
+public enum ArrayStrategy {
+
+    /**
+     * Adds at an array position become a $push with $position and removes of array positions become a single
+     * aggregation pipeline update, which needs MongoDB 4.2 or later. Adds to the same array which are not next to
+     * each other become separate pushes.
+     */
+    POSITIONAL,
+
+    /**
+     * Adds at an array position are appended with $push and removes of array positions become an $unset followed
+     * by a $pull of the null values. This is the default.
+     */
+    APPEND
+}
@@ -0,0 +1,156 @@
+package org.onepointltd.json.converter;
+
+import org.bson.BsonInvalidOperationException;
+import org.bson.json.JsonParseException;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line entry point of the jar with dependencies, converting a file of newline delimited JSON patches with
+ * the {@link NdjsonBatchConverter}. The progress is reported on the standard error.
+ */
+public class BatchConverterMain {
+
+    private static final String USAGE = "Usage: java -jar jsonpatch.converter-jar-with-dependencies.jar [options] "
+            + "<input.ndjson> <output|->%n"
+            + "  --format script|bulk              The output format, script by default%n"
+            + "  --collection <name>               The collection of the lines without one%n"
+            + "  --filter <json>                   The filter of the lines without one, {} by default%n"
+            + "  --prefix <prefix>                 A prefix of the json elements, can be repeated%n"
+            + "  --threads <n>                     The number of converting threads, the number of processors by default%n"
+            + "  --array-strategy positional|append  How array positions are translated, append by default%n"
+            + "  --ignore-unset                    Leave out the unset and pull updates%n"
+            + "  --skip-invalid                    Skip and count the lines which cannot be converted%n";
+
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private BatchConverterMain() {
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /**
+     * Runs a conversion.
+     *
+     * @return the exit code: 0 on success, 1 if the conversion failed or skipped lines and 2 for invalid arguments.
+     */
+    static int run(String[] args, OutputStream stdout, PrintStream stderr) {
+        JsonPatchToMongoUpdate converter = new JsonPatchToMongoUpdate();
+        OutputFormat format = OutputFormat.SCRIPT;
+        String collection = null;
+        String filter = null;
+        List<String> prefixes = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean skipInvalid = false;
+        List<String> files = new ArrayList<>();
+        NdjsonBatchConverter batchConverter;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "--format":
+                        format = OutputFormat.valueOf(value(args, ++i).toUpperCase(Locale.ROOT));
+                        break;
+                    case "--collection":
+                        collection = value(args, ++i);
+                        break;
+                    case "--filter":
+                        filter = value(args, ++i);
+                        break;
+                    case "--prefix":
+                        prefixes.add(value(args, ++i));
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "--array-strategy":
+                        converter.setArrayStrategy(ArrayStrategy.valueOf(value(args, ++i).toUpperCase(Locale.ROOT)));
+                        break;
+                    case "--ignore-unset":
+                        converter.setIgnoreUnset(true);
+                        break;
+                    case "--skip-invalid":
+                        skipInvalid = true;
+                        break;
+                    default:
+                        if (arg.startsWith("--")) {
+                            throw new IllegalArgumentException("Unknown option " + arg);
+                        }
+                        files.add(arg);
+                }
+            }
+            if (files.size() != 2) {
+                throw new IllegalArgumentException("An input and an output are needed");
+            }
+            batchConverter = new NdjsonBatchConverter(converter, threads);
+            if (filter != null) {
+                batchConverter.setDefaultFilter(filter);
+            }
+        } catch (IllegalArgumentException | JsonParseException | BsonInvalidOperationException e) {
+            stderr.println(e.getMessage());
+            stderr.printf(USAGE);
+            return 2;
+        }
+        batchConverter.setOutputFormat(format);
+        batchConverter.setDefaultCollection(collection);
+        batchConverter.setPrefixes(prefixes.toArray(new String[0]));
+        batchConverter.setSkipInvalid(skipInvalid);
+        long[] lastReport = {System.nanoTime()};
+        batchConverter.setProgressListener((statistics) -> {
+            long now = System.nanoTime();
+            if (now - lastReport[0] >= PROGRESS_INTERVAL) {
+                lastReport[0] = now;
+                stderr.println(statistics);
+            }
+        });
+        Path input = Paths.get(files.get(0));
+        String output = files.get(1);
+        try (OutputStream out = output.equals("-") ? new NonClosingOutputStream(stdout)
+                : new BufferedOutputStream(Files.newOutputStream(Paths.get(output)), 1 << 16)) {
+            NdjsonBatchConverter.Statistics statistics = batchConverter.convert(input, out);
+            stderr.println(statistics);
+            return statistics.getErrors() == 0 ? 0 : 1;
+        } catch (IOException e) {
+            stderr.println("Conversion failed: " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stderr.println("Conversion interrupted");
+            return 1;
+        }
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value of " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    /**
+     * Keeps the standard output open once the conversion is done.
+     */
+    private static final class NonClosingOutputStream extends BufferedOutputStream {
+
+        private NonClosingOutputStream(OutputStream out) {
+            super(out, 1 << 16);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.bson.BsonArray;
+import org.bson.BsonBinary;
+import org.bson.BsonBoolean;
+import org.bson.BsonDecimal128;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.types.Decimal128;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Converts Jackson trees to their BSON counterparts and computes their encoded size. A {@link LazyValueNode} is
+ * converted and measured from its tokens.
+ */
+class BsonValues {
+
+    private BsonValues() {
+    }
+
+    static BsonValue toBson(JsonNode node) {
+        if (node == null || node.isNull() || node.isMissingNode()) {
+            return BsonNull.VALUE;
+        }
+        if (node instanceof LazyValueNode) {
+            try (JsonParser parser = ((LazyValueNode) node).asParser()) {
+                parser.nextToken();
+                return toBson(parser);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        switch (node.getNodeType()) {
+            case OBJECT: {
+                BsonDocument document = new BsonDocument();
+                Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> field = fields.next();
+                    document.append(field.getKey(), toBson(field.getValue()));
+                }
+                return document;
+            }
+            case ARRAY: {
+                BsonArray array = new BsonArray();
+                node.forEach(element -> array.add(toBson(element)));
+                return array;
+            }
+            case STRING:
+                return new BsonString(node.textValue());
+            case BOOLEAN:
+                return BsonBoolean.valueOf(node.booleanValue());
+            case NUMBER:
+                return toBsonNumber(node);
+            case BINARY:
+                try {
+                    return new BsonBinary(node.binaryValue());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            default:
+                return new BsonString(node.asText());
+        }
+    }
+
+    /**
+     * @param limit The size above which the value is not measured any further.
+     * @return the number of bytes of the value encoded as BSON, without the type and the name of its field, or
+     * a number larger than the limit if the value is larger.
+     */
+    static long sizeOf(JsonNode node, long limit) {
+        if (node == null || node.isNull() || node.isMissingNode()) {
+            return 0;
+        }
+        if (node instanceof LazyValueNode) {
+            try (JsonParser parser = ((LazyValueNode) node).asParser()) {
+                parser.nextToken();
+                return sizeOf(parser, limit);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        switch (node.getNodeType()) {
+            case OBJECT: {
+                long size = 5;
+                Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> field = fields.next();
+                    size += entrySize(field.getKey(), field.getValue(), limit - size);
+                    if (size > limit) {
+                        return size;
+                    }
+                }
+                return size;
+            }
+            case ARRAY: {
+                long size = 5;
+                for (int i = 0; i < node.size(); i++) {
+                    // the position is the name of the field
+                    size += 2 + digits(i);
+                    size += sizeOf(node.get(i), limit - size);
+                    if (size > limit) {
+                        return size;
+                    }
+                }
+                return size;
+            }
+            case STRING:
+                return 5 + utf8Length(node.textValue());
+            case BOOLEAN:
+                return 1;
+            case NUMBER:
+                if (node.isInt() || node.isShort()) {
+                    return 4;
+                }
+                return node.isBigInteger() || node.isBigDecimal() ? 16 : 8;
+            case BINARY:
+                try {
+                    return 5 + node.binaryValue().length;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            default:
+                return 5 + utf8Length(node.asText());
+        }
+    }
+
+    /**
+     * Converts the value at the current token of the parser, leaving the parser at its last token.
+     */
+    private static BsonValue toBson(JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case START_OBJECT: {
+                BsonDocument document = new BsonDocument();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    parser.nextToken();
+                    document.append(name, toBson(parser));
+                }
+                return document;
+            }
+            case START_ARRAY: {
+                BsonArray array = new BsonArray();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    array.add(toBson(parser));
+                }
+                return array;
+            }
+            case VALUE_STRING:
+                return new BsonString(parser.getText());
+            case VALUE_TRUE:
+                return BsonBoolean.TRUE;
+            case VALUE_FALSE:
+                return BsonBoolean.FALSE;
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                switch (parser.getNumberType()) {
+                    case INT:
+                        return new BsonInt32(parser.getIntValue());
+                    case LONG:
+                        return new BsonInt64(parser.getLongValue());
+                    case BIG_INTEGER:
+                    case BIG_DECIMAL:
+                        return new BsonDecimal128(new Decimal128(parser.getDecimalValue()));
+                    default:
+                        return new BsonDouble(parser.getDoubleValue());
+                }
+            default:
+                return BsonNull.VALUE;
+        }
+    }
+
+    /**
+     * Measures the value at the current token of the parser, leaving the parser at its last token unless the value is
+     * larger than the limit.
+     */
+    private static long sizeOf(JsonParser parser, long limit) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case START_OBJECT: {
+                long size = 5;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    parser.nextToken();
+                    size += 2 + utf8Length(name);
+                    size += sizeOf(parser, limit - size);
+                    if (size > limit) {
+                        return size;
+                    }
+                }
+                return size;
+            }
+            case START_ARRAY: {
+                long size = 5;
+                for (int i = 0; parser.nextToken() != JsonToken.END_ARRAY; i++) {
+                    size += 2 + digits(i);
+                    size += sizeOf(parser, limit - size);
+                    if (size > limit) {
+                        return size;
+                    }
+                }
+                return size;
+            }
+            case VALUE_STRING:
+                return 5 + utf8Length(parser.getText());
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                return 1;
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                switch (parser.getNumberType()) {
+                    case INT:
+                        return 4;
+                    case BIG_INTEGER:
+                    case BIG_DECIMAL:
+                        return 16;
+                    default:
+                        return 8;
+                }
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @param limit The size above which the value is not measured any further.
+     * @return the number of bytes of a field of a BSON document: its type, its name and its value, or a number larger
+     * than the limit if the field is larger.
+     */
+    static long entrySize(String name, JsonNode value, long limit) {
+        long size = 2 + utf8Length(name);
+        return size + sizeOf(value, limit - size);
+    }
+
+    static int utf8Length(String text) {
+        int length = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x800) {
+                // surrogate pairs take 4 bytes, or 2 more than their 2 chars
+                length += Character.isSurrogate(c) ? 1 : 2;
+            } else if (c >= 0x80) {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    static int digits(int i) {
+        int digits = 1;
+        while (i >= 10) {
+            i /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private static BsonValue toBsonNumber(JsonNode node) {
+        if (node.isInt() || node.isShort()) {
+            return new BsonInt32(node.intValue());
+        }
+        if (node.isLong()) {
+            return new BsonInt64(node.longValue());
+        }
+        if (node.isBigInteger() || node.isBigDecimal()) {
+            return new BsonDecimal128(new Decimal128(node.decimalValue()));
+        }
+        return new BsonDouble(node.doubleValue());
+    }
+}
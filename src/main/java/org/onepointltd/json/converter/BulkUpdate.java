@@ -0,0 +1,76 @@
+package org.onepointltd.json.converter;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+
+import java.util.List;
+
+/**
+ * A single update of a bulk write: the filter of the document and either the update document or the aggregation
+ * pipeline applied to it.
+ */
+public class BulkUpdate {
+
+    private final BsonDocument filter;
+
+    private final BsonDocument update;
+
+    private final List<BsonDocument> pipeline;
+
+    BulkUpdate(BsonDocument filter, BsonDocument update) {
+        this.filter = filter;
+        this.update = update;
+        this.pipeline = null;
+    }
+
+    BulkUpdate(BsonDocument filter, List<BsonDocument> pipeline) {
+        this.filter = filter;
+        this.update = null;
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * @return {@code true} in case this is an aggregation pipeline update.
+     */
+    public boolean isPipeline() {
+        return pipeline != null;
+    }
+
+    /**
+     * @return the aggregation pipeline stages or {@code null} if this is not a pipeline update.
+     */
+    public List<BsonDocument> getPipeline() {
+        return pipeline;
+    }
+
+    public BsonDocument getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return the update document or {@code null} if this is a pipeline update.
+     */
+    public BsonDocument getUpdate() {
+        return update;
+    }
+
+    /**
+     * @return the update as one line of the bulk output: the collection, the filter and the update or the pipeline.
+     */
+    BsonDocument toCommand(BsonString collection) {
+        BsonDocument command = new BsonDocument("collection", collection).append("filter", filter);
+        if (isPipeline()) {
+            command.append("pipeline", new BsonArray(pipeline));
+        } else {
+            command.append("update", update);
+        }
+        return command;
+    }
+
+    @Override
+    public String toString() {
+        return "BulkUpdate{filter=" + (filter == null ? null : filter.toJson()) + ", update="
+                + (update == null ? pipeline : update.toJson()) + "}";
+    }
+}
@@ -0,0 +1,46 @@
+package org.onepointltd.json.converter;
+
+import org.bson.BsonDocument;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Contains the ordered updates of a batch of patches grouped by collection. The updates of each collection can
+ * be sent as one ordered bulk write: the patches keep the order in which they were submitted and the updates of
+ * each patch keep the move, unset, pull, set and push order.
+ */
+public class BulkWritePlan {
+
+    private final Map<String, List<BulkUpdate>> updates = new LinkedHashMap<>();
+
+    BulkWritePlan() {
+    }
+
+    void add(PatchRequest request, MongoUpdateDocuments documents) {
+        add(request.getCollection(), request.getFilter(), documents);
+    }
+
+    void add(String collection, BsonDocument filter, MongoUpdateDocuments documents) {
+        List<BulkUpdate> collectionUpdates = updates.computeIfAbsent(collection, (key) -> new ArrayList<>());
+        collectionUpdates.addAll(documents.toUpdates(filter));
+    }
+
+    /**
+     * @return the updates grouped by collection, in the order in which the collections were first seen.
+     */
+    public Map<String, List<BulkUpdate>> getUpdates() {
+        return Collections.unmodifiableMap(updates);
+    }
+
+    /**
+     * @param collection The name of the collection.
+     * @return the ordered updates of the collection or an empty list.
+     */
+    public List<BulkUpdate> getUpdates(String collection) {
+        return Collections.unmodifiableList(updates.getOrDefault(collection, Collections.emptyList()));
+    }
+}
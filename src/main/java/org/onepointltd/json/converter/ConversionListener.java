@@ -0,0 +1,66 @@
+package org.onepointltd.json.converter;
+
+/**
+ * Receives measurements of the conversions made by a {@link JsonPatchToMongoUpdate}. The methods are called on the
+ * converting threads, so implementations have to be thread safe and fast. All methods do nothing by default.
+ * When no listener is set, the converter does not take any measurement.
+ *
+ * @see ConversionMetrics
+ */
+public interface ConversionListener {
+
+    /**
+     * The stages of a conversion.
+     */
+    enum Stage {
+        /**
+         * Reading the operations of the patch, including their values.
+         */
+        PARSE,
+        /**
+         * Applying the operations to the conversion: classification, coalescing and template filling.
+         */
+        CONVERT,
+        /**
+         * Building the commands or update documents of a conversion.
+         */
+        BUILD,
+        /**
+         * Formatting the commands into the Mongo update script.
+         */
+        FORMAT
+    }
+
+    /**
+     * @param stage The completed stage.
+     * @param nanos The time spent in the stage for a single patch.
+     */
+    default void stageCompleted(Stage stage, long nanos) {
+    }
+
+    /**
+     * @param op The operation which was read, like e.g. "add".
+     */
+    default void operationRead(String op) {
+    }
+
+    /**
+     * @param operations The number of operations of the patch.
+     * @param size       The size of the patch, in bytes or in characters when it is read from a reader.
+     */
+    default void patchRead(int operations, long size) {
+    }
+
+    /**
+     * @param size The size of the script produced for a patch, in characters or in bytes when it is written to an
+     *             output stream.
+     */
+    default void outputWritten(long size) {
+    }
+
+    /**
+     * @param error The reason why a patch could not be converted.
+     */
+    default void conversionFailed(Exception error) {
+    }
+}
@@ -0,0 +1,235 @@
+package org.onepointltd.json.converter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link ConversionListener} which keeps the measurements in memory, in the spirit of a metrics registry: latency
+ * histograms per stage, operation counts by type, distributions of the patch sizes and of the output sizes, and the
+ * number of failed conversions. The histograms use power of two buckets. Reading the metrics does not stop the
+ * recording, so they can be exported periodically to any monitoring system.
+ */
+public class ConversionMetrics implements ConversionListener {
+
+    /**
+     * The smallest latency bucket is 1 microsecond (2^10 ns), the largest is about 18 minutes (2^40 ns).
+     */
+    private static final int LATENCY_FIRST_EXPONENT = 10;
+
+    private static final int LATENCY_BUCKETS = 31;
+
+    private static final int SIZE_BUCKETS = 41;
+
+    private final Map<Stage, Histogram> stages = new EnumMap<>(Stage.class);
+
+    private final Map<String, LongAdder> operations = new ConcurrentHashMap<>();
+
+    private final Histogram patchOperations = new Histogram(0, SIZE_BUCKETS);
+
+    private final Histogram patchSizes = new Histogram(0, SIZE_BUCKETS);
+
+    private final Histogram outputSizes = new Histogram(0, SIZE_BUCKETS);
+
+    private final LongAdder errors = new LongAdder();
+
+    public ConversionMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new Histogram(LATENCY_FIRST_EXPONENT, LATENCY_BUCKETS));
+        }
+    }
+
+    @Override
+    public void stageCompleted(Stage stage, long nanos) {
+        stages.get(stage).record(nanos);
+    }
+
+    @Override
+    public void operationRead(String op) {
+        LongAdder count = operations.get(op);
+        if (count == null) {
+            count = operations.computeIfAbsent(op, (k) -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    @Override
+    public void patchRead(int operations, long size) {
+        patchOperations.record(operations);
+        patchSizes.record(size);
+    }
+
+    @Override
+    public void outputWritten(long size) {
+        outputSizes.record(size);
+    }
+
+    @Override
+    public void conversionFailed(Exception error) {
+        errors.increment();
+    }
+
+    /**
+     * @return the latencies of a stage in nanoseconds.
+     */
+    public Distribution getLatency(Stage stage) {
+        return stages.get(stage).snapshot();
+    }
+
+    /**
+     * @return the number of operations read by type, sorted by type.
+     */
+    public Map<String, Long> getOperationCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        operations.forEach((op, count) -> counts.put(op, count.sum()));
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * @return the number of operations per patch.
+     */
+    public Distribution getPatchOperations() {
+        return patchOperations.snapshot();
+    }
+
+    /**
+     * @return the patch sizes in bytes, or in characters for patches read from a reader.
+     */
+    public Distribution getPatchSizes() {
+        return patchSizes.snapshot();
+    }
+
+    /**
+     * @return the sizes of the scripts written per patch.
+     */
+    public Distribution getOutputSizes() {
+        return outputSizes.snapshot();
+    }
+
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    /**
+     * A snapshot of recorded values.
+     */
+    public static final class Distribution {
+
+        private final long count;
+
+        private final long total;
+
+        private final long max;
+
+        private final long[] upperBounds;
+
+        private final long[] bucketCounts;
+
+        private Distribution(long count, long total, long max, long[] upperBounds, long[] bucketCounts) {
+            this.count = count;
+            this.total = total;
+            this.max = max;
+            this.upperBounds = upperBounds;
+            this.bucketCounts = bucketCounts;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        /**
+         * @return the inclusive upper bound of each bucket. The last bucket has no upper bound.
+         */
+        public long[] getBucketUpperBounds() {
+            return upperBounds.clone();
+        }
+
+        /**
+         * @return the number of values in each bucket.
+         */
+        public long[] getBucketCounts() {
+            return bucketCounts.clone();
+        }
+
+        /**
+         * @param percentile The percentile, between 0 and 1.
+         * @return the upper bound of the bucket holding the percentile, which is at most twice the actual value.
+         */
+        public long getPercentile(double percentile) {
+            long rank = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int i = 0; i < bucketCounts.length - 1; i++) {
+                seen += bucketCounts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(upperBounds[i], max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d, mean=%.1f, max=%d, p50=%d, p99=%d", count, getMean(), max,
+                    getPercentile(0.5), getPercentile(0.99));
+        }
+    }
+
+    /**
+     * A lock free histogram with power of two buckets.
+     */
+    private static final class Histogram {
+
+        private final int firstExponent;
+
+        private final LongAdder[] buckets;
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder total = new LongAdder();
+
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram(int firstExponent, int size) {
+            this.firstExponent = firstExponent;
+            this.buckets = new LongAdder[size];
+            Arrays.setAll(buckets, (i) -> new LongAdder());
+        }
+
+        void record(long value) {
+            int exponent = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+            buckets[Math.min(Math.max(exponent - firstExponent, 0), buckets.length - 1)].increment();
+            count.increment();
+            total.add(value);
+            if (value > max.get()) {
+                max.accumulateAndGet(value, Math::max);
+            }
+        }
+
+        Distribution snapshot() {
+            long[] upperBounds = new long[buckets.length];
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                upperBounds[i] = i == buckets.length - 1 ? Long.MAX_VALUE : 1L << (firstExponent + i);
+                counts[i] = buckets[i].sum();
+            }
+            return new Distribution(count.sum(), total.sum(), max.get(), upperBounds, counts);
+        }
+    }
+}
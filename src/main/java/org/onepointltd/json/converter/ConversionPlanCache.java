@@ -0,0 +1,96 @@
+package org.onepointltd.json.converter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of conversion templates keyed by the shape of a patch, that is its operations and paths without
+ * the values. Patches with a shape which was seen before are converted by filling their values into the template
+ * instead of parsing and coalescing their paths again. The least recently used template is evicted once the cache is
+ * full. The cache is thread safe and can be shared by several converters.
+ */
+public class ConversionPlanCache {
+
+    private final int maximumSize;
+
+    private final Map<String, ConversionTemplate> templates;
+
+    private long hitCount;
+
+    private long missCount;
+
+    private long evictionCount;
+
+    /**
+     * @param maximumSize The maximum number of templates kept.
+     */
+    public ConversionPlanCache(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("The maximum size must be at least 1");
+        }
+        this.maximumSize = maximumSize;
+        this.templates = new LinkedHashMap<String, ConversionTemplate>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ConversionTemplate> eldest) {
+                if (size() > ConversionPlanCache.this.maximumSize) {
+                    evictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the template of the shape, or {@code null} if the patch has to be converted from scratch.
+     */
+    synchronized ConversionTemplate get(String shape) {
+        ConversionTemplate template = templates.get(shape);
+        if (template != null && template.isCacheable()) {
+            hitCount++;
+            return template;
+        }
+        missCount++;
+        return null;
+    }
+
+    synchronized void put(String shape, ConversionTemplate template) {
+        templates.put(shape, template);
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * @return the number of shapes currently cached, including the shapes which cannot be converted from a template.
+     */
+    public synchronized int size() {
+        return templates.size();
+    }
+
+    /**
+     * @return the number of patches which were converted from a template.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the number of patches which were converted from scratch.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Removes all templates. The statistics are kept.
+     */
+    public synchronized void clear() {
+        templates.clear();
+    }
+}
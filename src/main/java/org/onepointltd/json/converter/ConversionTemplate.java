@@ -0,0 +1,204 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The conversion of a patch shape: where the value of each operation ends up in the {@link MongoConversion}.
+ * A template is only created if the result of the coalescing does not depend on the values, that is if every value
+ * is stored as it is under its own key and no operation is below a path which is being set. Patches which move, copy
+ * or test values, or which need separate pushes, cannot be converted from a template.
+ */
+final class ConversionTemplate {
+
+    static final ConversionTemplate UNCACHEABLE = new ConversionTemplate(null, null, null, null, null);
+
+    private static final int SET = -1;
+
+    private static final int NONE = -2;
+
+    /**
+     * The key under which the value of each operation is stored.
+     */
+    private final String[] keys;
+
+    /**
+     * The position of the value of each operation in its push, {@link #SET} for a set or {@link #NONE}.
+     */
+    private final int[] slots;
+
+    private final Set<String> unset;
+
+    private final Map<String, Integer> pushSizes;
+
+    private final Map<String, Integer> pushPositions;
+
+    /**
+     * The quoted keys of the last prefix the template was formatted with.
+     */
+    private volatile QuotedKeys quotedKeys;
+
+    private ConversionTemplate(String[] keys, int[] slots, Set<String> unset, Map<String, Integer> pushSizes,
+                               Map<String, Integer> pushPositions) {
+        this.keys = keys;
+        this.slots = slots;
+        this.unset = unset;
+        this.pushSizes = pushSizes;
+        this.pushPositions = pushPositions;
+    }
+
+    /**
+     * @return the shape of the patch: its operations and paths and whether the values are arrays.
+     */
+    static String shapeOf(List<PatchOperation> operations, ArrayStrategy arrayStrategy) {
+        StringBuilder sb = new StringBuilder(operations.size() * 32).append(arrayStrategy.name());
+        for (PatchOperation operation : operations) {
+            sb.append('\u0000').append(operation.getOp()).append('\u0000').append(operation.getPath());
+            if (operation.getFrom() != null) {
+                sb.append('\u0001').append(operation.getFrom());
+            }
+            JsonNode value = operation.getValue();
+            sb.append(value == null ? '\u0002' : LazyValueNode.isArray(value) ? '\u0003' : '\u0004');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Creates the template of a patch from its conversion.
+     *
+     * @return the template or {@link #UNCACHEABLE} if the conversion depends on the values.
+     */
+    static ConversionTemplate create(List<PatchOperation> operations, MongoConversion mongoConversion) {
+        if (!mongoConversion.getMoves().isEmpty() || !mongoConversion.getTest().isEmpty()
+                || !mongoConversion.getSeparatePushes().isEmpty()) {
+            return UNCACHEABLE;
+        }
+        int size = operations.size();
+        Map<JsonNode, Integer> operationOfValue = new IdentityHashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            PatchOperation operation = operations.get(i);
+            switch (operation.getOp()) {
+                case "add":
+                case "replace":
+                    if (operation.getValue() == null || operationOfValue.put(operation.getValue(), i) != null) {
+                        return UNCACHEABLE;
+                    }
+                    break;
+                case "remove":
+                    break;
+                default:
+                    return UNCACHEABLE;
+            }
+        }
+        String[] keys = new String[size];
+        int[] slots = new int[size];
+        for (Map.Entry<String, JsonNode> entry : mongoConversion.getSet().entrySet()) {
+            Integer i = operationOfValue.get(entry.getValue());
+            if (i == null) {
+                return UNCACHEABLE;
+            }
+            keys[i] = entry.getKey();
+            slots[i] = SET;
+        }
+        Map<String, Integer> pushSizes = new HashMap<>();
+        for (Map.Entry<String, List<JsonNode>> entry : mongoConversion.getPush().entrySet()) {
+            List<JsonNode> values = entry.getValue();
+            for (int j = 0; j < values.size(); j++) {
+                Integer i = operationOfValue.get(values.get(j));
+                if (i == null) {
+                    return UNCACHEABLE;
+                }
+                keys[i] = entry.getKey();
+                slots[i] = j;
+            }
+            pushSizes.put(entry.getKey(), values.size());
+        }
+        Set<String> setKeys = mongoConversion.getSet().keySet();
+        for (int i = 0; i < size; i++) {
+            PatchOperation operation = operations.get(i);
+            if (operation.getValue() == null || operation.getOp().equals("remove")) {
+                keys[i] = null;
+                slots[i] = NONE;
+            } else if (keys[i] == null) {
+                // the value was dropped or merged into another one
+                return UNCACHEABLE;
+            }
+            PatchPath path = PatchPath.fromPointer(operation.getPath());
+            for (int j = 1; j < path.size(); j++) {
+                if (setKeys.contains(path.toDot(j))) {
+                    // merging into the value of an ancestor depends on the structure of that value
+                    return UNCACHEABLE;
+                }
+            }
+        }
+        return new ConversionTemplate(keys, slots, new HashSet<>(mongoConversion.getUnset()), pushSizes,
+                new HashMap<>(mongoConversion.getPushPositions()));
+    }
+
+    boolean isCacheable() {
+        return keys != null;
+    }
+
+    /**
+     * Converts a patch with the shape of this template.
+     */
+    MongoConversion fill(List<PatchOperation> operations) {
+        MongoConversion mongoConversion = new MongoConversion(this);
+        mongoConversion.getUnset().addAll(unset);
+        mongoConversion.getPushPositions().putAll(pushPositions);
+        Map<String, JsonNode> set = mongoConversion.getSet();
+        Map<String, List<JsonNode>> push = mongoConversion.getPush();
+        for (int i = 0; i < slots.length; i++) {
+            int slot = slots[i];
+            if (slot == SET) {
+                set.put(keys[i], operations.get(i).getValue());
+            } else if (slot >= 0) {
+                push.computeIfAbsent(keys[i], (k) -> new ArrayList<>(Collections.nCopies(pushSizes.get(k), null)))
+                        .set(slot, operations.get(i).getValue());
+            }
+        }
+        return mongoConversion;
+    }
+
+    /**
+     * @param prefixStr The prefix of the keys.
+     * @param quote     Formats a single key.
+     * @return the formatted keys of the set, unset and push updates.
+     */
+    Map<String, String> quotedKeys(String prefixStr, Function<String, String> quote) {
+        QuotedKeys current = quotedKeys;
+        if (current == null || !current.prefixStr.equals(prefixStr)) {
+            Map<String, String> formatted = new HashMap<>();
+            for (String key : keys) {
+                if (key != null) {
+                    formatted.computeIfAbsent(key, quote);
+                }
+            }
+            unset.forEach(key -> formatted.computeIfAbsent(key, quote));
+            current = new QuotedKeys(prefixStr, formatted);
+            quotedKeys = current;
+        }
+        return current.keys;
+    }
+
+    private static final class QuotedKeys {
+
+        private final String prefixStr;
+
+        private final Map<String, String> keys;
+
+        private QuotedKeys(String prefixStr, Map<String, String> keys) {
+            this.prefixStr = prefixStr;
+            this.keys = keys;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the {@link MongoConversion} which turns one version of a document into another, walking both trees once.
+ * <p>
+ * For each changed object or array the cost of its individual changes is compared with the cost of setting it as a
+ * whole, and the cheaper one is kept. The cost is the estimated size of the update entries in characters, which is
+ * also about what the update adds to the oplog. So an object with most of its fields changed is set at once, while
+ * a single changed field of a large object is set alone. Elements appended to an array become a push and elements
+ * removed from its end are unset by position, unless the array keeps a null element. Fields which cannot be
+ * addressed with a dot path, like fields with a dot, a leading "$" or a numeric name, are changed by setting their
+ * parent.
+ */
+class DocumentDiff {
+
+    /**
+     * The quotes, the colon and the comma of an update entry.
+     */
+    private static final int ENTRY_COST = 4;
+
+    /**
+     * The value of an unset entry.
+     */
+    private static final int UNSET_COST = 2;
+
+    /**
+     * The "{ $each: [ ] }" wrapping the values of a push.
+     */
+    private static final int PUSH_COST = 14;
+
+    private final List<Change> changes = new ArrayList<>();
+
+    /**
+     * The segments of the path being compared.
+     */
+    private final List<String> segments = new ArrayList<>();
+
+    /**
+     * The estimated size of the new value of the last compared path.
+     */
+    private long newSize;
+
+    /**
+     * @return the conversion from the old to the new document, which are both objects.
+     * @throws PatchConversionException a changed field of the document cannot be addressed with a dot path.
+     */
+    MongoConversion diff(JsonNode oldDocument, JsonNode newDocument) throws PatchConversionException {
+        if (!oldDocument.isObject() || !newDocument.isObject()) {
+            throw new PatchConversionException("Both documents have to be objects");
+        }
+        if (diffObjects(0, true, oldDocument, newDocument) < 0) {
+            throw new PatchConversionException(String.format("Cannot address the changed field %s with a dot path",
+                    segments.get(0)));
+        }
+        MongoConversion mongoConversion = new MongoConversion();
+        for (Change change : changes) {
+            if (change.values != null) {
+                mongoConversion.getPush().put(change.key, change.values);
+            } else if (change.value != null) {
+                mongoConversion.getSet().put(change.key, change.value);
+            } else {
+                mongoConversion.getUnset().add(change.key);
+            }
+        }
+        return mongoConversion;
+    }
+
+    /**
+     * Compares the values of the current path and records the cheapest changes.
+     *
+     * @return the cost of the recorded changes, 0 if the values are equal.
+     */
+    private long diff(int keyLength, JsonNode oldValue, JsonNode newValue) {
+        if (oldValue.isObject() && newValue.isObject()) {
+            long cost = diffObjects(keyLength, false, oldValue, newValue);
+            return cost < 0 ? set(keyLength, newValue, newSize) : cost;
+        }
+        if (oldValue.isArray() && newValue.isArray()) {
+            return diffArrays(keyLength, oldValue, newValue);
+        }
+        newSize = size(newValue);
+        return oldValue.equals(newValue) ? 0 : set(keyLength, newValue, newSize);
+    }
+
+    /**
+     * @return the cost of the recorded changes, 0 if the objects are equal, or -1 if a changed field cannot be
+     * addressed with a dot path, in which case no changes are recorded. For the document itself the name of the
+     * field is then left in the segments.
+     */
+    private long diffObjects(int keyLength, boolean root, JsonNode oldObject, JsonNode newObject) {
+        int mark = changes.size();
+        long cost = 0;
+        long size = 1;
+        int matched = 0;
+        boolean addressable = true;
+        Iterator<Map.Entry<String, JsonNode>> fields = newObject.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            String name = field.getKey();
+            JsonNode oldValue = oldObject.get(name);
+            int childKeyLength = childKeyLength(keyLength, name);
+            segments.add(name);
+            long childCost;
+            if (oldValue == null) {
+                newSize = size(field.getValue());
+                childCost = set(childKeyLength, field.getValue(), newSize);
+            } else {
+                matched++;
+                childCost = diff(childKeyLength, oldValue, field.getValue());
+            }
+            if (childCost > 0 && addressable && !isAddressable(name)) {
+                addressable = false;
+                if (root) {
+                    return -1;
+                }
+            }
+            segments.remove(segments.size() - 1);
+            cost += childCost;
+            size += name.length() + 4 + newSize;
+        }
+        if (matched < oldObject.size()) {
+            Iterator<String> names = oldObject.fieldNames();
+            while (names.hasNext()) {
+                String name = names.next();
+                if (!newObject.has(name)) {
+                    segments.add(name);
+                    if (addressable && !isAddressable(name)) {
+                        addressable = false;
+                        if (root) {
+                            return -1;
+                        }
+                    }
+                    cost += unset(childKeyLength(keyLength, name));
+                    segments.remove(segments.size() - 1);
+                }
+            }
+        }
+        newSize = Math.max(size, 2);
+        if (cost == 0 || root) {
+            return cost;
+        }
+        if (!addressable) {
+            changes.subList(mark, changes.size()).clear();
+            return -1;
+        }
+        long whole = ENTRY_COST + keyLength + newSize;
+        if (whole < cost) {
+            changes.subList(mark, changes.size()).clear();
+            return set(keyLength, newObject, newSize);
+        }
+        return cost;
+    }
+
+    /**
+     * Compares the common positions of two arrays, pushes the appended elements and unsets the removed ones.
+     */
+    private long diffArrays(int keyLength, JsonNode oldArray, JsonNode newArray) {
+        int mark = changes.size();
+        int common = Math.min(oldArray.size(), newArray.size());
+        long cost = 0;
+        long size = 1;
+        for (int i = 0; i < common; i++) {
+            String position = Integer.toString(i);
+            segments.add(position);
+            cost += diff(childKeyLength(keyLength, position), oldArray.get(i), newArray.get(i));
+            segments.remove(segments.size() - 1);
+            size += newSize + 1;
+        }
+        if (newArray.size() > common) {
+            List<JsonNode> values = new ArrayList<>(newArray.size() - common);
+            long pushCost = ENTRY_COST + PUSH_COST + keyLength;
+            for (int i = common; i < newArray.size(); i++) {
+                JsonNode value = newArray.get(i);
+                long valueSize = size(value);
+                values.add(value);
+                pushCost += valueSize + 1;
+                size += valueSize + 1;
+            }
+            changes.add(new Change(key(), null, values));
+            cost += pushCost;
+        }
+        for (int i = common; i < oldArray.size(); i++) {
+            String position = Integer.toString(i);
+            segments.add(position);
+            cost += unset(childKeyLength(keyLength, position));
+            segments.remove(segments.size() - 1);
+        }
+        newSize = Math.max(size, 2);
+        long whole = ENTRY_COST + keyLength + newSize;
+        if (cost > 0 && (whole < cost || (oldArray.size() > common && hasNull(newArray)))) {
+            // without the removal pipeline, removed positions are pulled as nulls, which would remove the kept ones
+            changes.subList(mark, changes.size()).clear();
+            return set(keyLength, newArray, newSize);
+        }
+        return cost;
+    }
+
+    private static boolean hasNull(JsonNode array) {
+        for (JsonNode element : array) {
+            if (element.isNull()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long set(int keyLength, JsonNode value, long size) {
+        changes.add(new Change(key(), value, null));
+        return ENTRY_COST + keyLength + size;
+    }
+
+    private long unset(int keyLength) {
+        changes.add(new Change(key(), null, null));
+        return ENTRY_COST + keyLength + UNSET_COST;
+    }
+
+    private String key() {
+        return String.join(".", segments);
+    }
+
+    private static int childKeyLength(int keyLength, String name) {
+        return keyLength == 0 ? name.length() : keyLength + 1 + name.length();
+    }
+
+    /**
+     * Fields which are empty, contain a dot, start with "$" or are numbers cannot be used as a segment of a dot path,
+     * numbers because they are taken for array positions.
+     */
+    private static boolean isAddressable(String name) {
+        return !name.isEmpty() && name.indexOf('.') < 0 && name.charAt(0) != '$'
+                && PatchCoalescer.arrayIndex(name) < 0;
+    }
+
+    /**
+     * @return the estimated size of the value in JSON, ignoring escapes.
+     */
+    static long size(JsonNode value) {
+        if (value.isObject()) {
+            long size = 1;
+            Iterator<Map.Entry<String, JsonNode>> fields = value.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                size += field.getKey().length() + 4 + size(field.getValue());
+            }
+            return Math.max(size, 2);
+        }
+        if (value.isArray()) {
+            long size = 1;
+            for (JsonNode element : value) {
+                size += size(element) + 1;
+            }
+            return Math.max(size, 2);
+        }
+        if (value.isTextual()) {
+            return value.textValue().length() + 2;
+        }
+        return value.asText().length();
+    }
+
+    /**
+     * A set, unset or push of a path.
+     */
+    private static final class Change {
+
+        private final String key;
+
+        private final JsonNode value;
+
+        private final List<JsonNode> values;
+
+        private Change(String key, JsonNode value, List<JsonNode> values) {
+            this.key = key;
+            this.value = value;
+            this.values = values;
+        }
+    }
+}
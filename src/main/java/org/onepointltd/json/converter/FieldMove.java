@@ -0,0 +1,34 @@
+package org.onepointltd.json.converter;
+
+/**
+ * A value which is moved or copied from one field of the document to another.
+ */
+public class FieldMove {
+
+    private final String from;
+
+    private final String to;
+
+    private final boolean copy;
+
+    FieldMove(String from, String to, boolean copy) {
+        this.from = from;
+        this.to = to;
+        this.copy = copy;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    /**
+     * @return {@code true} in case the source field is kept.
+     */
+    public boolean isCopy() {
+        return copy;
+    }
+}
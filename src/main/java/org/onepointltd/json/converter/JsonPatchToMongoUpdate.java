@@ -1,72 +1,309 @@
 package org.onepointltd.json.converter;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.collections4.MapUtils;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.NullNode;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.onepointltd.json.converter.TestPredicates.Stage;
 
+import java.io.FilterOutputStream;
+import java.io.FilterWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.function.BiConsumer;
-
-import static java.util.stream.IntStream.range;
+import java.util.function.Function;
 
 
 /**
- * Converts RFC 6902 JSON style patches into the Mongo update format.
+ * Converts RFC 6902 JSON style patches into the Mongo update format. Once configured, an instance can be shared
+ * by multiple threads. {@link PatchConverter} offers the same with a configuration which cannot change afterwards.
  */
 public class JsonPatchToMongoUpdate {
 
-    private final ObjectMapper mapper = new ObjectMapper();
+    /**
+     * Shared by all converters, so that Jackson builds its serializers and deserializers only once. The mapper is
+     * never reconfigured, which makes it safe to use from any thread.
+     */
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final ObjectReader TREE_READER = MAPPER.readerFor(JsonNode.class);
+
+    /**
+     * Separates the updates of a split $set or $push in the script.
+     */
+    private static final String PART_SEPARATOR = ";" + System.lineSeparator() + "    ";
+
+    /**
+     * The default budget of a single $set or $push update: MongoDB's 16 MB document limit, less room for the filter
+     * and the command around the update.
+     */
+    public static final long DEFAULT_MAX_UPDATE_SIZE = 15L * 1024 * 1024;
+
+    private volatile boolean ignoreUnset;
 
-    private boolean ignoreUnset;
+    private volatile long maxUpdateSize = DEFAULT_MAX_UPDATE_SIZE;
+
+    private volatile boolean lazyValues;
+
+    private volatile ArrayStrategy arrayStrategy = ArrayStrategy.APPEND;
+
+    private volatile ConversionPlanCache planCache;
+
+    private volatile ConversionListener listener;
 
     /**
      * Converts the JSON patch to a set of data structures. Note that the add method might aggregate
-     * multiple add patches
+     * multiple add patches. Operations are applied in order, so that operations overridden by later ones are dropped
+     * and operations below a path which is being set are merged into its value. The patch is streamed one operation
+     * at a time, so only the value of the operation currently being read is kept as a tree in memory.
      *
      * @param reader Used to read the JSON patch.
      * @return a data structure which can be used to generate the Mongo update format statements.
      * @throws IOException In case reading fails.
      */
     public MongoConversion convert(Reader reader) throws IOException {
-        JsonNode patch = mapper.readTree(reader);
-        MongoConversion mongoConversion = new MongoConversion();
-        Set<String> unset = mongoConversion.getUnset();
-        Map<String, JsonNode> set = mongoConversion.getSet();
-        Map<String, List<JsonNode>> push = mongoConversion.getPush();
-        patch.forEach(p -> {
-            String text = p.get("op").asText();
-            String path = toDot(p.get("path").asText());
-            JsonNode value = p.get("value");
-            switch (text) {
-                case "add": {
-                    boolean isArray = value.isArray() || path.matches(".+\\.\\d+$");
-                    path = path.replaceFirst("\\.\\d+$", "");
-                    if (isArray) {
-                        // only apply push if there are array values
-                        push.computeIfAbsent(path, (key) -> new ArrayList<>()).add(value);
-                    } else {
-                        set.put(path, value);
-                    }
-                    break;
-                }
-                case "remove": {
-                    unset.add(path);
-                    break;
+        try (JsonParser parser = MAPPER.getFactory().createParser(reader)) {
+            return convert(parser);
+        }
+    }
+
+    /**
+     * Computes the update from the old to the new version of a document directly, without producing a JSON patch
+     * first. Both trees are walked once, and a changed subdocument or array is set as a whole when that is smaller
+     * than its individual changes.
+     *
+     * @param oldDocument The document as it is stored.
+     * @param newDocument The document as it should be after the update.
+     * @return a data structure which can be used to generate the Mongo update format statements.
+     * @throws PatchConversionException one of the documents is not an object, or a changed field at the top of the
+     *                                  document cannot be addressed with a dot path.
+     */
+    public MongoConversion diff(JsonNode oldDocument, JsonNode newDocument) throws PatchConversionException {
+        ConversionListener listener = this.listener;
+        long start = listener == null ? 0 : System.nanoTime();
+        try {
+            MongoConversion mongoConversion = new DocumentDiff().diff(oldDocument, newDocument);
+            if (listener != null) {
+                listener.stageCompleted(ConversionListener.Stage.CONVERT, System.nanoTime() - start);
+            }
+            return mongoConversion;
+        } catch (PatchConversionException e) {
+            if (listener != null) {
+                listener.conversionFailed(e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Computes the update from the old to the new version of a document read as JSON.
+     *
+     * @see #diff(JsonNode, JsonNode)
+     */
+    public MongoConversion diff(Reader oldDocument, Reader newDocument) throws IOException {
+        return diff(TREE_READER.readTree(oldDocument), TREE_READER.readTree(newDocument));
+    }
+
+    /**
+     * Converts the JSON patch read by the parser, which is positioned before or at the start of the patch. The parser
+     * is left at the end of the patch.
+     */
+    MongoConversion convert(JsonParser parser) throws IOException {
+        ConversionListener listener = this.listener;
+        try {
+            if (parser.getCurrentToken() != JsonToken.START_ARRAY && parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new JsonParseException(parser, "A JSON patch must be an array of operations");
+            }
+            PatchMeter meter = listener == null ? null : new PatchMeter(listener, parser);
+            long start = offset(parser.getTokenLocation());
+            ConversionPlanCache cache = planCache;
+            if (cache != null) {
+                return convertWithPlan(parser, cache, meter, start);
+            }
+            boolean lazy = lazyValues;
+            MongoConversion mongoConversion = new MongoConversion();
+            PatchCoalescer coalescer = new PatchCoalescer(mongoConversion, arrayStrategy);
+            boolean copies = false;
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                PatchOperation operation = readOperation(parser, lazy);
+                if (meter != null) {
+                    meter.parsed(operation);
                 }
-                case "replace": {
-                    set.put(path, value);
+                applyOperation(coalescer, operation);
+                copies |= "copy".equals(operation.getOp());
+                if (meter != null) {
+                    meter.converted();
                 }
             }
-        });
+            checkEndOfPatch(parser);
+            coalescer.finish();
+            // a copied value is in the updates once more than in the patch
+            mongoConversion.setPatchLength(copies ? -1 : offset(parser.getCurrentLocation()) - start);
+            if (meter != null) {
+                meter.finish(parser);
+            }
+            return mongoConversion;
+        } catch (IOException | RuntimeException e) {
+            if (listener != null) {
+                listener.conversionFailed(e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the whole patch and converts it from the template of its shape, if there is one.
+     */
+    private MongoConversion convertWithPlan(JsonParser parser, ConversionPlanCache cache, PatchMeter meter,
+                                            long start) throws IOException {
+        boolean lazy = lazyValues;
+        List<PatchOperation> operations = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            PatchOperation operation = readOperation(parser, lazy);
+            if (meter != null) {
+                meter.parsed(operation);
+            }
+            operations.add(operation);
+        }
+        checkEndOfPatch(parser);
+        ArrayStrategy strategy = arrayStrategy;
+        String shape = ConversionTemplate.shapeOf(operations, strategy);
+        ConversionTemplate template = cache.get(shape);
+        MongoConversion mongoConversion;
+        if (template != null) {
+            mongoConversion = template.fill(operations);
+        } else {
+            mongoConversion = new MongoConversion();
+            PatchCoalescer coalescer = new PatchCoalescer(mongoConversion, strategy);
+            for (PatchOperation operation : operations) {
+                applyOperation(coalescer, operation);
+            }
+            coalescer.finish();
+            cache.put(shape, ConversionTemplate.create(operations, mongoConversion));
+        }
+        boolean copies = operations.stream().anyMatch(operation -> "copy".equals(operation.getOp()));
+        mongoConversion.setPatchLength(copies ? -1 : offset(parser.getCurrentLocation()) - start);
+        if (meter != null) {
+            meter.converted();
+            meter.finish(parser);
+        }
         return mongoConversion;
     }
 
+    JsonFactory getJsonFactory() {
+        return MAPPER.getFactory();
+    }
+
+    /**
+     * Reads the operation starting at the current token of the parser and leaves the parser at its end.
+     *
+     * @param lazy Whether object and array values are kept as tokens.
+     */
+    PatchOperation readOperation(JsonParser parser, boolean lazy) throws IOException {
+        String op = null;
+        String path = null;
+        String from = null;
+        JsonNode value = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "op":
+                    op = parser.getValueAsString();
+                    break;
+                case "path":
+                    path = parser.getValueAsString();
+                    break;
+                case "from":
+                    from = parser.getValueAsString();
+                    break;
+                case "value":
+                    value = lazy ? LazyValueNode.read(parser, TREE_READER) : TREE_READER.readTree(parser);
+                    if (value == null) {
+                        value = NullNode.getInstance();
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        if (op == null || path == null) {
+            throw new JsonParseException(parser, "A JSON patch operation needs an \"op\" and a \"path\"");
+        }
+        if (value == null && (op.equals("add") || op.equals("replace") || op.equals("test"))) {
+            throw new JsonParseException(parser, String.format("The %s of %s needs a \"value\"", op, path));
+        }
+        return new PatchOperation(op, path, from, value);
+    }
+
+    /**
+     * Fails unless the parser stopped at the end of the patch, since an element which is not an object ends the loop
+     * over the operations and would drop the operations after it.
+     */
+    static void checkEndOfPatch(JsonParser parser) throws JsonParseException {
+        if (parser.getCurrentToken() != JsonToken.END_ARRAY) {
+            throw new JsonParseException(parser, "A JSON patch must be an array of operations");
+        }
+    }
+
+    private void applyOperation(PatchCoalescer coalescer, PatchOperation operation) throws IOException {
+        applyOperation(coalescer, operation.getOp(), PatchPath.fromPointer(operation.getPath()),
+                operation.getFrom() == null ? null : PatchPath.fromPointer(operation.getFrom()), operation.getValue());
+    }
+
+    void applyOperation(PatchCoalescer coalescer, String op, PatchPath path, PatchPath from, JsonNode value)
+            throws IOException {
+        switch (op) {
+            case "add": {
+                coalescer.add(path, value);
+                break;
+            }
+            case "remove": {
+                coalescer.unset(path);
+                break;
+            }
+            case "replace": {
+                coalescer.set(path, value);
+                break;
+            }
+            case "move":
+            case "copy": {
+                if (from == null) {
+                    throw new PatchConversionException(String.format("The %s of %s needs a \"from\"", op, path));
+                }
+                coalescer.transfer(from, path, op.equals("copy"));
+                break;
+            }
+            case "test": {
+                coalescer.test(path, value);
+                break;
+            }
+            default: {
+                throw new PatchConversionException(String.format("Unknown operation %s of %s", op, path));
+            }
+        }
+    }
+
     /**
      * Converts from the JSON patch format directly to a MongoDB query.
      *
@@ -75,116 +312,723 @@ public class JsonPatchToMongoUpdate {
      * @param collection The name of the collection which is being updated.
      * @param prefixes   The prefixes for the json elements. If a field is called "notes.note", then with the prefix "customer"
      *                   the field will be converted to "customer.notes.note"
-     * @return an object with the MongoDB commands.
-     * @throws IOException the JSON cannot be read.
+     * @return an object with the MongoDB commands. The test operations of the patch are added to the query.
+     * @throws IOException the JSON cannot be read or cannot be converted.
      */
     public MongoCommands convertToMongoUpdates(Reader reader, String query, String collection, String... prefixes)
             throws IOException {
+        return convertToMongoUpdates(convert(reader), query, collection, prefixes);
+    }
+
+    /**
+     * Converts the extracted patch data structures to a MongoDB query.
+     *
+     * @param mongoConversion The data structures extracted from the JSON patch or from two versions of a document.
+     * @param query           The query used to find all the elements in the database.
+     * @param collection      The name of the collection which is being updated.
+     * @param prefixes        The prefixes for the json elements.
+     * @return an object with the MongoDB commands.
+     */
+    public MongoCommands convertToMongoUpdates(MongoConversion mongoConversion, String query, String collection,
+                                               String... prefixes) {
+        ConversionListener listener = this.listener;
+        long start = listener == null ? 0 : System.nanoTime();
+        Commands commands = new Commands(mongoConversion, prefixes);
+        TestPredicates tests = TestPredicates.of(mongoConversion, ignoreUnset);
+        long built = listener == null ? 0 : System.nanoTime();
+        MongoScriptWriter writer = MongoScriptWriter.toStrings(MAPPER.getFactory());
+        MongoCommands mongoCommands = new MongoCommands(
+                commands.render(Stage.MOVE, writer,
+                        (w) -> writeUpdate(commands, Stage.MOVE, tests, query, collection, w)),
+                commands.render(Stage.UNSET, writer,
+                        (w) -> writeUpdate(commands, Stage.UNSET, tests, query, collection, w)),
+                commands.render(Stage.PULL, writer,
+                        (w) -> writeUpdate(commands, Stage.PULL, tests, query, collection, w)),
+                commands.render(Stage.SET, writer,
+                        (w) -> writeUpdate(commands, Stage.SET, tests, query, collection, w)),
+                commands.render(Stage.PUSH, writer,
+                        (w) -> writeUpdate(commands, Stage.PUSH, tests, query, collection, w)));
+        if (listener != null) {
+            listener.stageCompleted(ConversionListener.Stage.BUILD, built - start);
+            listener.stageCompleted(ConversionListener.Stage.FORMAT, System.nanoTime() - built);
+            listener.outputWritten(mongoCommands.getMove().length() + mongoCommands.getUnset().length()
+                    + mongoCommands.getPull().length() + mongoCommands.getSet().length()
+                    + mongoCommands.getPush().length());
+        }
+        return mongoCommands;
+    }
+
+    /**
+     * Converts from the JSON patch format to a MongoDB script and writes it to the output as it is produced. The script
+     * is the same as the one returned by {@link MongoCommands#asJavascript(boolean)}, but it is never held in memory.
+     *
+     * @param reader     The reader used to read the JSON patch.
+     * @param query      The query used to find all the elements in the database.
+     * @param collection The name of the collection which is being updated.
+     * @param inFunction Whether the updates are wrapped in a function.
+     * @param out        The output, which is flushed but not closed.
+     * @param prefixes   The prefixes for the json elements.
+     * @throws IOException the JSON cannot be read or converted, or the output cannot be written.
+     */
+    public void writeMongoUpdates(Reader reader, String query, String collection, boolean inFunction, Appendable out,
+                                  String... prefixes) throws IOException {
+        writeMongoUpdates(convert(reader), query, collection, inFunction, out, prefixes);
+    }
+
+    /**
+     * Same as {@link #writeMongoUpdates(Reader, String, String, boolean, Appendable, String...)}, writing the script
+     * encoded as UTF-8.
+     */
+    public void writeMongoUpdates(Reader reader, String query, String collection, boolean inFunction, OutputStream out,
+                                  String... prefixes) throws IOException {
         MongoConversion mongoConversion = convert(reader);
-        MongoCommands rawCommands = convertToMongo(mongoConversion, prefixes);
-        return createMongoUpdate(rawCommands, query, collection);
+        ConversionListener listener = this.listener;
+        CountingOutputStream counting = listener == null ? null : new CountingOutputStream(out);
+        try (MongoScriptWriter writer = MongoScriptWriter.to(
+                MAPPER.getFactory().createGenerator(counting == null ? out : counting, JsonEncoding.UTF8))) {
+            writeScript(mongoConversion, query, collection, inFunction, writer, prefixes);
+        }
+        if (counting != null) {
+            listener.outputWritten(counting.count);
+        }
     }
 
-    MongoCommands convertToMongo(MongoConversion mongoConversion, String... prefixes) {
+    /**
+     * Writes the MongoDB script of the extracted patch data structures to the output.
+     *
+     * @param mongoConversion The data structures extracted from the JSON patch.
+     * @param query           The query used to find all the elements in the database.
+     * @param collection      The name of the collection which is being updated.
+     * @param inFunction      Whether the updates are wrapped in a function.
+     * @param out             The output, which is flushed but not closed.
+     * @param prefixes        The prefixes for the json elements.
+     * @throws IOException the output cannot be written.
+     */
+    public void writeMongoUpdates(MongoConversion mongoConversion, String query, String collection, boolean inFunction,
+                                  Appendable out, String... prefixes) throws IOException {
+        ConversionListener listener = this.listener;
+        Writer target = MongoScriptWriter.asWriter(out);
+        CountingWriter counting = listener == null ? null : new CountingWriter(target);
+        try (MongoScriptWriter writer = MongoScriptWriter.to(
+                MAPPER.getFactory().createGenerator(counting == null ? target : counting))) {
+            writeScript(mongoConversion, query, collection, inFunction, writer, prefixes);
+        }
+        if (counting != null) {
+            listener.outputWritten(counting.count);
+        }
+    }
+
+    /**
+     * Converts the patch and writes each update as a command for a bulk write, the collection, the filter and the
+     * update or the pipeline, as one JSON document per line encoded as UTF-8.
+     *
+     * @param out The output, which is flushed but not closed.
+     */
+    void writeBulkCommands(Reader reader, BsonDocument filter, String collection, OutputStream out,
+                           String... prefixes) throws IOException {
+        MongoUpdateDocuments documents = convertToDocuments(reader, prefixes);
+        ConversionListener listener = this.listener;
+        CountingOutputStream counting = listener == null ? null : new CountingOutputStream(out);
+        try (MongoScriptWriter writer = MongoScriptWriter.to(
+                MAPPER.getFactory().createGenerator(counting == null ? out : counting, JsonEncoding.UTF8))) {
+            writeBulkCommands(documents.toUpdates(filter), collection, writer);
+        }
+        if (counting != null) {
+            listener.outputWritten(counting.count);
+        }
+    }
+
+    static void writeBulkCommands(List<BulkUpdate> updates, String collection, MongoScriptWriter writer)
+            throws IOException {
+        BsonString collectionName = new BsonString(collection);
+        for (BulkUpdate update : updates) {
+            writer.document(update.toCommand(collectionName)).raw('\n');
+        }
+    }
+
+    void writeScript(MongoConversion mongoConversion, String query, String collection, boolean inFunction,
+                     MongoScriptWriter writer, String... prefixes) throws IOException {
+        ConversionListener listener = this.listener;
+        long start = listener == null ? 0 : System.nanoTime();
+        Commands commands = new Commands(mongoConversion, prefixes);
+        TestPredicates tests = TestPredicates.of(mongoConversion, ignoreUnset);
+        long built = listener == null ? 0 : System.nanoTime();
+        String lineSep = System.lineSeparator();
+        if (inFunction) {
+            writer.raw("function update() {").raw(lineSep);
+        }
+        for (Stage stage : Stage.values()) {
+            if (commands.has(stage)) {
+                writer.raw("    ");
+                writeUpdate(commands, stage, tests, query, collection, writer);
+                writer.raw(';').raw(lineSep);
+            }
+        }
+        if (inFunction) {
+            writer.raw('}').raw(lineSep);
+        }
+        if (listener != null) {
+            listener.stageCompleted(ConversionListener.Stage.BUILD, built - start);
+            listener.stageCompleted(ConversionListener.Stage.FORMAT, System.nanoTime() - built);
+        }
+    }
+
+    private void writeUpdate(Commands commands, Stage stage, TestPredicates tests, String query, String collection,
+                             MongoScriptWriter writer) throws IOException {
+        int parts = commands.parts(stage);
+        for (int part = 0; part < parts; part++) {
+            if (part > 0) {
+                writer.raw(PART_SEPARATOR);
+            }
+            writer.raw("db.").raw(collection).raw(".update ( ");
+            if (tests.hasPredicates(stage)) {
+                writer.raw("{ $and: [ ").raw(query).raw(", ");
+                tests.writeJavascript(stage, commands.applied(stage, part), commands.prefixStr, writer);
+                writer.raw(" ] }");
+            } else {
+                writer.raw(query);
+            }
+            writer.raw(", ");
+            commands.write(stage, part, writer);
+            writer.raw(" )");
+        }
+    }
+
+    /**
+     * Converts from the JSON patch format directly to Mongo update documents, which can be passed to a driver
+     * without producing and parsing any Javascript.
+     *
+     * @param reader   The reader used to read the JSON patch.
+     * @param prefixes The prefixes for the json elements. If a field is called "notes.note", then with the prefix
+     *                 "customer" the field will be converted to "customer.notes.note"
+     * @return an object with the $unset, $pull, $set and $push update documents.
+     * @throws IOException the JSON cannot be read.
+     */
+    public MongoUpdateDocuments convertToDocuments(Reader reader, String... prefixes) throws IOException {
+        return convertToDocuments(convert(reader), prefixes);
+    }
+
+    /**
+     * Converts the extracted patch data structures to Mongo update documents.
+     *
+     * @param mongoConversion The data structures extracted from the JSON patch.
+     * @param prefixes        The prefixes for the json elements.
+     * @return an object with the $rename, $unset, $pull, $set and $push update documents.
+     */
+    public MongoUpdateDocuments convertToDocuments(MongoConversion mongoConversion, String... prefixes) {
+        ConversionListener listener = this.listener;
+        long start = listener == null ? 0 : System.nanoTime();
+        String prefixStr = createPrefix(prefixes);
+        long maxSize = maxUpdateSize;
+        List<BsonDocument> sets = new ArrayList<>();
+        for (Map<String, JsonNode> part : UpdateSplitter.splitSet(mongoConversion, prefixStr, maxSize)) {
+            BsonDocument set = new BsonDocument();
+            part.forEach((key, value) -> set.append(prefixStr + key, BsonValues.toBson(value)));
+            sets.add(wrapDocument("$set", set));
+        }
+        BsonDocument unset = new BsonDocument();
+        BsonDocument pull = new BsonDocument();
+        Map<String, List<Integer>> arrayRemovals = arrayRemovals(mongoConversion);
+        if (!ignoreUnset) {
+            mongoConversion.getUnset().forEach(key -> {
+                PatchPath path = PatchPath.fromDot(key);
+                boolean isIndex = path.size() > 1 && path.endsWithIndex();
+                if (isIndex && arrayRemovals != null) {
+                    return;
+                }
+                unset.append(prefixStr + key, new BsonString(""));
+                if (isIndex) {
+                    pull.append(prefixStr + path.parent().toDot(), BsonNull.VALUE);
+                }
+            });
+        }
+        List<BsonDocument> removePipeline = new ArrayList<>();
+        if (arrayRemovals != null && !arrayRemovals.isEmpty()) {
+            BsonDocument removals = new BsonDocument();
+            arrayRemovals.forEach((key, positions) -> removals.append(prefixStr + key,
+                    createRemoveExpression("$" + prefixStr + key, positions)));
+            removePipeline.add(new BsonDocument("$set", removals));
+        }
+        List<BsonDocument> pushes = new ArrayList<>();
+        for (UpdateSplitter.PushPart part : UpdateSplitter.splitPushes(mongoConversion, prefixStr, maxSize)) {
+            BsonDocument push = new BsonDocument();
+            part.push.forEach((key, values) -> {
+                Integer position = part.positions.get(key);
+                if (position != null) {
+                    BsonArray each = new BsonArray(new ArrayList<>(values.size()));
+                    values.forEach(value -> each.add(BsonValues.toBson(value)));
+                    push.append(prefixStr + key,
+                            new BsonDocument("$each", each).append("$position", new BsonInt32(position)));
+                } else if (values.size() == 1) {
+                    push.append(prefixStr + key, BsonValues.toBson(values.get(0)));
+                } else if (values.size() > 1) {
+                    BsonArray each = new BsonArray(new ArrayList<>(values.size()));
+                    values.forEach(value -> each.add(BsonValues.toBson(value)));
+                    push.append(prefixStr + key, new BsonDocument("$each", each));
+                }
+            });
+            pushes.add(wrapDocument("$push", push));
+        }
+        BsonDocument rename = new BsonDocument();
+        List<BsonDocument> pipeline = new ArrayList<>();
+        List<FieldMove> moves = mongoConversion.getMoves();
+        if (isRenameOnly(moves)) {
+            moves.forEach(m -> rename.append(prefixStr + m.getFrom(), new BsonString(prefixStr + m.getTo())));
+        } else {
+            moves.forEach(m -> {
+                pipeline.add(new BsonDocument("$set",
+                        new BsonDocument(prefixStr + m.getTo(), new BsonString("$" + prefixStr + m.getFrom()))));
+                if (!m.isCopy()) {
+                    pipeline.add(new BsonDocument("$unset", new BsonString(prefixStr + m.getFrom())));
+                }
+            });
+        }
+        MongoUpdateDocuments documents = new MongoUpdateDocuments(wrapDocument("$rename", rename), pipeline,
+                wrapDocument("$unset", unset), wrapDocument("$pull", pull), removePipeline, sets, pushes,
+                TestPredicates.of(mongoConversion, ignoreUnset), prefixStr);
+        if (listener != null) {
+            listener.stageCompleted(ConversionListener.Stage.BUILD, System.nanoTime() - start);
+        }
+        return documents;
+    }
+
+    /**
+     * Converts a batch of patches to a bulk write plan. The update documents of all patches are grouped by collection
+     * so that each collection can be updated with a single ordered bulk write.
+     *
+     * @param requests The patches together with the filter and collection of the document they target.
+     * @return the ordered updates grouped by collection.
+     * @throws IOException a JSON patch cannot be read.
+     */
+    public BulkWritePlan convertToBulkWrite(Iterable<PatchRequest> requests) throws IOException {
+        BulkWritePlan plan = new BulkWritePlan();
+        for (PatchRequest request : requests) {
+            plan.add(request, convertToDocuments(request.getPatch(), request.getPrefixes()));
+        }
+        return plan;
+    }
+
+    private BsonDocument createRemoveExpression(String field, List<Integer> positions) {
+        BsonArray removed = new BsonArray(new ArrayList<>(positions.size()));
+        positions.forEach(p -> removed.add(new BsonInt32(p)));
+        BsonDocument range = new BsonDocument("$range",
+                new BsonArray(Arrays.asList(new BsonInt32(0), new BsonDocument("$size", new BsonString(field)))));
+        BsonDocument notRemoved = new BsonDocument("$not", new BsonArray(Collections.singletonList(
+                new BsonDocument("$in", new BsonArray(Arrays.asList(new BsonString("$$i"), removed))))));
+        BsonDocument filter = new BsonDocument("$filter", new BsonDocument("input", range)
+                .append("as", new BsonString("i")).append("cond", notRemoved));
+        return new BsonDocument("$map", new BsonDocument("input", filter).append("as", new BsonString("i"))
+                .append("in", new BsonDocument("$arrayElemAt",
+                        new BsonArray(Arrays.asList(new BsonString(field), new BsonString("$$i"))))));
+    }
+
+    private BsonDocument wrapDocument(String command, BsonDocument content) {
+        return content.isEmpty() ? content : new BsonDocument(command, content);
+    }
+
+    private String createPrefix(String... prefixes) {
         String prefixStr = prefixes == null || prefixes.length == 0 ? "" : String.join(".", prefixes);
-        prefixStr = prefixStr.isEmpty() ? "" : prefixStr + ".";
-        String set = createSet(mongoConversion.getSet(), prefixStr);
-        List<String> pullPaths = new ArrayList<>();
-        String unset = ignoreUnset ? "" : createUnset(mongoConversion.getUnset(), prefixStr, pullPaths);
-        String pull = createPulls(pullPaths);
-        String push = createPush(mongoConversion.getPush(), prefixStr);
-        return new MongoCommands(unset, pull, set, push);
+        return prefixStr.isEmpty() ? "" : prefixStr + ".";
     }
 
-    private String createPulls(List<String> pullPaths) {
-        StringBuilder builder = pullPaths.stream().collect(StringBuilder::new, (sb, p) -> {
-            sb.append(String.format("%s null,", p));
-        }, (sb, p) -> {});
-        return wrapCommand("$pull", builder);
+    MongoCommands convertToMongo(MongoConversion mongoConversion, String... prefixes) {
+        ConversionListener listener = this.listener;
+        long start = listener == null ? 0 : System.nanoTime();
+        Commands commands = new Commands(mongoConversion, prefixes);
+        long built = listener == null ? 0 : System.nanoTime();
+        MongoScriptWriter writer = MongoScriptWriter.toStrings(MAPPER.getFactory());
+        MongoCommands mongoCommands = new MongoCommands(commands.render(Stage.MOVE, writer),
+                commands.render(Stage.UNSET, writer), commands.render(Stage.PULL, writer),
+                commands.render(Stage.SET, writer), commands.render(Stage.PUSH, writer));
+        if (listener != null) {
+            listener.stageCompleted(ConversionListener.Stage.BUILD, built - start);
+            listener.stageCompleted(ConversionListener.Stage.FORMAT, System.nanoTime() - built);
+        }
+        return mongoCommands;
     }
 
-    private MongoCommands createMongoUpdate(MongoCommands mongoCommands, String query, String collection) {
-        String set = formatMongoUpdate(collection, query, mongoCommands.getSet());
-        String unset = formatMongoUpdate(collection, query, mongoCommands.getUnset());
-        String pull = formatMongoUpdate(collection, query, mongoCommands.getPull());
-        String push = formatMongoUpdate(collection, query, mongoCommands.getPush());
-        return new MongoCommands(unset, pull, set, push);
+    /**
+     * @return the offset of the location in bytes, or in characters if the patch is read from characters.
+     */
+    private static long offset(JsonLocation location) {
+        return location.getByteOffset() >= 0 ? location.getByteOffset() : location.getCharOffset();
     }
 
-    private String formatMongoUpdate(String collection, String query, String mongoCommand) {
-        return TextUtil.hasText(mongoCommand) ? String.format("db.%s.update ( %s, %s )", collection, query, mongoCommand)
-                : "";
+    /**
+     * Measures the parsing and the conversion of the operations of a single patch.
+     */
+    private static final class PatchMeter {
+
+        private final ConversionListener listener;
+
+        private final long startOffset;
+
+        private long mark = System.nanoTime();
+
+        private long parseNanos;
+
+        private long convertNanos;
+
+        private int operations;
+
+        private PatchMeter(ConversionListener listener, JsonParser parser) {
+            this.listener = listener;
+            this.startOffset = offset(parser.getTokenLocation());
+        }
+
+        void parsed(PatchOperation operation) {
+            long now = System.nanoTime();
+            parseNanos += now - mark;
+            mark = now;
+            operations++;
+            listener.operationRead(operation.getOp());
+        }
+
+        void converted() {
+            long now = System.nanoTime();
+            convertNanos += now - mark;
+            mark = now;
+        }
+
+        void finish(JsonParser parser) {
+            listener.stageCompleted(ConversionListener.Stage.PARSE, parseNanos);
+            listener.stageCompleted(ConversionListener.Stage.CONVERT, convertNanos);
+            listener.patchRead(operations, offset(parser.getCurrentLocation()) - startOffset);
+        }
     }
 
-    private String createPush(Map<String, List<JsonNode>> push, String prefixStr) {
-        if (MapUtils.isEmpty(push)) {
-            return "";
+    /**
+     * The update commands of a conversion, which are written on demand.
+     */
+    private final class Commands {
+
+        private final MongoConversion mongoConversion;
+
+        private final String prefixStr;
+
+        private final Function<String, String> keys;
+
+        /**
+         * The removed array positions, or {@code null} if they are removed with $unset and $pull.
+         */
+        private final Map<String, List<Integer>> arrayRemovals;
+
+        private final List<String> unsetKeys = new ArrayList<>();
+
+        /**
+         * The arrays to pull the unset positions from, each once even if several of its positions are removed.
+         */
+        private final Set<String> pullPaths = new LinkedHashSet<>();
+
+        private final List<Map<String, JsonNode>> setParts;
+
+        private final List<UpdateSplitter.PushPart> pushParts;
+
+        private Commands(MongoConversion mongoConversion, String... prefixes) {
+            this.mongoConversion = mongoConversion;
+            this.prefixStr = createPrefix(prefixes);
+            this.keys = keyFormat(mongoConversion, prefixStr);
+            this.arrayRemovals = arrayRemovals(mongoConversion);
+            long maxSize = maxUpdateSize;
+            this.setParts = UpdateSplitter.splitSet(mongoConversion, prefixStr, maxSize);
+            this.pushParts = UpdateSplitter.splitPushes(mongoConversion, prefixStr, maxSize);
+            if (!ignoreUnset) {
+                for (String key : mongoConversion.getUnset()) {
+                    PatchPath path = PatchPath.fromDot(key);
+                    boolean isIndex = path.size() > 1 && path.endsWithIndex();
+                    if (isIndex && arrayRemovals != null) {
+                        continue;
+                    }
+                    unsetKeys.add(key);
+                    if (isIndex) {
+                        pullPaths.add(path.parent().toDot());
+                    }
+                }
+            }
         }
-        StringBuilder temp = push.entrySet().stream().collect(StringBuilder::new, (sb, entry) -> {
-            List<JsonNode> values = entry.getValue();
-            sb.append(createKey(prefixStr, entry.getKey()));
-            if (values.size() == 1) {
-                sb.append(values.get(0));
-            } else if (values.size() > 1) {
-                sb.append("{ $each:[");
-                range(0, values.size() - 1).forEach(i -> sb.append(values.get(i)).append(","));
-                sb.append(values.get(values.size() - 1));
-                sb.append("] }");
+
+        boolean has(Stage stage) {
+            switch (stage) {
+                case MOVE:
+                    return !mongoConversion.getMoves().isEmpty();
+                case UNSET:
+                    return !unsetKeys.isEmpty();
+                case PULL:
+                    return arrayRemovals == null ? !pullPaths.isEmpty() : !arrayRemovals.isEmpty();
+                case SET:
+                    return !mongoConversion.getSet().isEmpty();
+                default:
+                    return !pushParts.isEmpty();
             }
-            sb.append(",");
-        }, (sb, l) -> {
-        });
-        return wrapCommand("$push", temp);
-    }
+        }
 
-    String toDot(String s) {
-        s = s.replaceAll("^/", "");
-        return String.join(".", s.split("/"));
+        /**
+         * @return the number of updates of the stage, which is more than one for a split $set or $push.
+         */
+        int parts(Stage stage) {
+            switch (stage) {
+                case SET:
+                    return setParts.size();
+                case PUSH:
+                    return pushParts.size();
+                default:
+                    return has(stage) ? 1 : 0;
+            }
+        }
+
+        /**
+         * @return the keys set by the updates of the stage before the part.
+         */
+        List<String> applied(Stage stage, int part) {
+            if (stage != Stage.SET || part == 0) {
+                return Collections.emptyList();
+            }
+            List<String> applied = new ArrayList<>();
+            for (int i = 0; i < part; i++) {
+                applied.addAll(setParts.get(i).keySet());
+            }
+            return applied;
+        }
+
+        void write(Stage stage, int part, MongoScriptWriter writer) throws IOException {
+            switch (stage) {
+                case MOVE:
+                    writeMove(mongoConversion.getMoves(), prefixStr, keys, writer);
+                    break;
+                case UNSET:
+                    writeUnset(unsetKeys, keys, writer);
+                    break;
+                case PULL:
+                    if (arrayRemovals == null) {
+                        writePulls(pullPaths, keys, writer);
+                    } else {
+                        writeRemovePipeline(arrayRemovals, prefixStr, keys, writer);
+                    }
+                    break;
+                case SET:
+                    writeSet(setParts.get(part), keys, writer);
+                    break;
+                default:
+                    UpdateSplitter.PushPart pushPart = pushParts.get(part);
+                    writePush(pushPart.push, pushPart.positions, keys, writer);
+            }
+        }
+
+        String render(Stage stage, MongoScriptWriter writer) {
+            return render(stage, writer, (w) -> {
+                for (int part = 0; part < parts(stage); part++) {
+                    if (part > 0) {
+                        w.raw(PART_SEPARATOR);
+                    }
+                    write(stage, part, w);
+                }
+            });
+        }
+
+        /**
+         * @return the rendered part, or an empty string if the conversion has no command for the stage.
+         */
+        String render(Stage stage, MongoScriptWriter writer, MongoScriptWriter.Part part) {
+            return has(stage) ? writer.render(part) : "";
+        }
     }
 
-    private String createSet(Map<String, JsonNode> set, String prefixStr) {
-        if (MapUtils.isEmpty(set)) {
-            return "";
+    /**
+     * @return the function which formats the keys of the updates, using the keys formatted by the template of
+     * the conversion if it has one.
+     */
+    private Function<String, String> keyFormat(MongoConversion mongoConversion, String prefixStr) {
+        Function<String, String> quote = (key) -> createKey(prefixStr, key);
+        ConversionTemplate template = mongoConversion.getTemplate();
+        if (template == null) {
+            return quote;
         }
-        BiConsumer<StringBuilder, Map.Entry<String, JsonNode>> stringBuilderEntryBiConsumer = (sb, entry) -> {
-            sb.append(createKey(prefixStr, entry.getKey()));
-            JsonNode value = entry.getValue();
-            sb.append(String.format("%s,", value));
+        Map<String, String> quoted = template.quotedKeys(prefixStr, quote);
+        return (key) -> {
+            String formatted = quoted.get(key);
+            return formatted != null ? formatted : quote.apply(key);
         };
-        StringBuilder res = set.entrySet().stream()
-                .collect(StringBuilder::new, stringBuilderEntryBiConsumer, (sb1, entry1) -> {
-                });
-        return wrapCommand("$set", res);
-    }
-
-    private String createUnset(Set<String> unset, String prefixStr, List<String> pullPaths) {
-        if (CollectionUtils.isEmpty(unset)) {
-            return "";
-        }
-        StringBuilder temp = unset.stream().collect(StringBuilder::new,
-                (sb1, s) -> {
-                    String key = createKey(prefixStr, s);
-                    sb1.append(key).append("\"\",");
-                    if(key.matches(".+\\.\\d+\":$")) {
-                        pullPaths.add(key.replaceAll("\\.\\d+(\":)$", "$1"));
+    }
+
+    private void writeMove(List<FieldMove> moves, String prefixStr, Function<String, String> keys,
+                           MongoScriptWriter writer) throws IOException {
+        if (isRenameOnly(moves)) {
+            writer.raw("{ $rename: {");
+            for (int i = 0; i < moves.size(); i++) {
+                FieldMove move = moves.get(i);
+                if (i > 0) {
+                    writer.raw(',');
+                }
+                writer.raw(keys.apply(move.getFrom())).raw('"').raw(prefixStr).raw(move.getTo()).raw('"');
+            }
+            writer.raw(" } }");
+            return;
+        }
+        writer.raw("[ ");
+        for (int i = 0; i < moves.size(); i++) {
+            FieldMove move = moves.get(i);
+            if (i > 0) {
+                writer.raw(", ");
+            }
+            writer.raw("{ $set: {").raw(keys.apply(move.getTo())).raw("\"$").raw(prefixStr).raw(move.getFrom())
+                    .raw("\" } }");
+            if (!move.isCopy()) {
+                writer.raw(", { $unset: [\"").raw(prefixStr).raw(move.getFrom()).raw("\"] }");
+            }
+        }
+        writer.raw(" ]");
+    }
+
+    /**
+     * Moves can be sent as a single $rename if there are no copies and no two moves share a path, a parent or a child,
+     * since the order of the renames within a single update is not defined.
+     */
+    private boolean isRenameOnly(List<FieldMove> moves) {
+        List<String> paths = new ArrayList<>(moves.size() * 2);
+        for (FieldMove move : moves) {
+            if (move.isCopy()) {
+                return false;
+            }
+            paths.add(move.getFrom());
+            paths.add(move.getTo());
+        }
+        for (int i = 0; i < paths.size(); i++) {
+            for (int j = i + 1; j < paths.size(); j++) {
+                String a = paths.get(i);
+                String b = paths.get(j);
+                if (a.equals(b) || a.startsWith(b + ".") || b.startsWith(a + ".")) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Groups the removed array positions by array, if they can be removed with an aggregation pipeline.
+     *
+     * @return the removed positions by array path, or {@code null} if the positions are removed with $unset and $pull.
+     */
+    private Map<String, List<Integer>> arrayRemovals(MongoConversion mongoConversion) {
+        if (ignoreUnset || arrayStrategy != ArrayStrategy.POSITIONAL) {
+            return null;
+        }
+        Map<String, List<Integer>> removals = new LinkedHashMap<>();
+        for (String key : mongoConversion.getUnset()) {
+            PatchPath path = PatchPath.fromDot(key);
+            if (path.size() > 1 && path.endsWithIndex()) {
+                PatchPath arrayPath = path.parent();
+                for (int i = 0; i < arrayPath.size(); i++) {
+                    if (arrayPath.isIndex(i)) {
+                        // a pipeline cannot address an array element by its position
+                        return null;
                     }
-                },
-                (sb, entry) -> {
-                });
-        return wrapCommand("$unset", temp);
+                }
+                removals.computeIfAbsent(arrayPath.toDot(), (k) -> new ArrayList<>())
+                        .add(Integer.parseInt(path.segment(path.size() - 1)));
+            }
+        }
+        removals.values().forEach(Collections::sort);
+        return removals;
     }
 
-    private String createKey(String prefixStr, String key) {
-        return String.format("\"%s%s\":", prefixStr, key);
+    private void writeRemovePipeline(Map<String, List<Integer>> arrayRemovals, String prefixStr,
+                                     Function<String, String> keys, MongoScriptWriter writer) throws IOException {
+        writer.raw("[ { $set: {");
+        boolean first = true;
+        for (Map.Entry<String, List<Integer>> removal : arrayRemovals.entrySet()) {
+            String key = removal.getKey();
+            if (!first) {
+                writer.raw(',');
+            }
+            first = false;
+            writer.raw(keys.apply(key))
+                    .raw("{ $map: { input: { $filter: { input: { $range: [ 0, { $size: \"$").raw(prefixStr).raw(key)
+                    .raw("\" } ] }, as: \"i\", cond: { $not: [ { $in: [ \"$$i\", ").raw(removal.getValue().toString())
+                    .raw(" ] } ] } } }, as: \"i\", in: { $arrayElemAt: [ \"$").raw(prefixStr).raw(key)
+                    .raw("\", \"$$i\" ] } } }");
+        }
+        writer.raw(" } } ]");
     }
 
-    private String wrapCommand(String command, StringBuilder res) {
-        if(res == null || res.length() == 0) {
-            return "";
+    private void writePulls(Set<String> pullPaths, Function<String, String> keys, MongoScriptWriter writer)
+            throws IOException {
+        writer.raw("{ $pull: {");
+        boolean first = true;
+        for (String pullPath : pullPaths) {
+            if (!first) {
+                writer.raw(',');
+            }
+            writer.raw(keys.apply(pullPath)).raw(" null");
+            first = false;
+        }
+        writer.raw(" } }");
+    }
+
+    private void writePush(Map<String, List<JsonNode>> push, Map<String, Integer> positions,
+                           Function<String, String> keys, MongoScriptWriter writer) throws IOException {
+        writer.raw("{ $push: {");
+        boolean first = true;
+        for (Map.Entry<String, List<JsonNode>> entry : push.entrySet()) {
+            List<JsonNode> values = entry.getValue();
+            Integer position = positions.get(entry.getKey());
+            if (!first) {
+                writer.raw(',');
+            }
+            first = false;
+            writer.raw(keys.apply(entry.getKey()));
+            if (position == null && values.size() == 1) {
+                writer.value(values.get(0));
+                continue;
+            }
+            writer.raw("{ $each:[");
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) {
+                    writer.raw(',');
+                }
+                writer.value(values.get(i));
+            }
+            writer.raw(']');
+            if (position != null) {
+                writer.raw(", $position: ").raw(position.toString());
+            }
+            writer.raw(" }");
+        }
+        writer.raw(" } }");
+    }
+
+    String toDot(String s) {
+        return PatchPath.fromPointer(s).toDot();
+    }
+
+    private void writeSet(Map<String, JsonNode> set, Function<String, String> keys, MongoScriptWriter writer)
+            throws IOException {
+        writer.raw("{ $set: {");
+        boolean first = true;
+        for (Map.Entry<String, JsonNode> entry : set.entrySet()) {
+            if (!first) {
+                writer.raw(',');
+            }
+            first = false;
+            writer.raw(keys.apply(entry.getKey())).value(entry.getValue());
+        }
+        writer.raw(" } }");
+    }
+
+    private void writeUnset(List<String> unsetKeys, Function<String, String> keys, MongoScriptWriter writer)
+            throws IOException {
+        writer.raw("{ $unset: {");
+        for (int i = 0; i < unsetKeys.size(); i++) {
+            if (i > 0) {
+                writer.raw(',');
+            }
+            writer.raw(keys.apply(unsetKeys.get(i))).raw("\"\"");
         }
-        return res.deleteCharAt(res.length() - 1)
-                .insert(0, String.format("{ %s: {", command))
-                .append(" } }").toString();
+        writer.raw(" } }");
+    }
+
+    private String createKey(String prefixStr, String key) {
+        return "\"" + prefixStr + key + "\":";
     }
 
     public boolean isIgnoreUnset() {
@@ -194,4 +1038,140 @@ public class JsonPatchToMongoUpdate {
     public void setIgnoreUnset(boolean ignoreUnset) {
         this.ignoreUnset = ignoreUnset;
     }
+
+    public boolean isLazyValues() {
+        return lazyValues;
+    }
+
+    /**
+     * With lazy values, the object and array values of a patch are kept as the tokens they were read from and copied
+     * from them to the script or the update documents, without building their trees. This saves most of the
+     * allocations when the values are large. A value is only read into a tree when a later operation of the patch
+     * changes something below it.
+     * <p>
+     * The lazy values in the {@link MongoConversion} are opaque {@link JsonNode}s which write their JSON but have no
+     * children, so leave this off if the conversion itself is inspected.
+     *
+     * @param lazyValues Whether the values are read lazily.
+     */
+    public void setLazyValues(boolean lazyValues) {
+        this.lazyValues = lazyValues;
+    }
+
+    public long getMaxUpdateSize() {
+        return maxUpdateSize;
+    }
+
+    /**
+     * Sets the budget of a single $set or $push update. Larger ones are split into several updates which are executed
+     * one after the other, with the same result.
+     *
+     * @param maxUpdateSize The maximum estimated BSON size of an update in bytes, without its filter.
+     */
+    public void setMaxUpdateSize(long maxUpdateSize) {
+        if (maxUpdateSize <= 0) {
+            throw new IllegalArgumentException("The maximum update size must be positive");
+        }
+        this.maxUpdateSize = maxUpdateSize;
+    }
+
+    public ArrayStrategy getArrayStrategy() {
+        return arrayStrategy;
+    }
+
+    public void setArrayStrategy(ArrayStrategy arrayStrategy) {
+        this.arrayStrategy = arrayStrategy;
+    }
+
+    public ConversionPlanCache getPlanCache() {
+        return planCache;
+    }
+
+    /**
+     * Sets the cache of conversion templates. With a cache the whole patch is read before it is converted, so that
+     * patches with a shape which was seen before are converted from a template. The cache can be shared by several
+     * converters.
+     *
+     * @param planCache The cache, or {@code null} to convert every patch from scratch.
+     */
+    public void setPlanCache(ConversionPlanCache planCache) {
+        this.planCache = planCache;
+    }
+
+    public ConversionListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Sets the listener which receives the measurements of the conversions.
+     *
+     * @param listener The listener, or {@code null} to take no measurements.
+     */
+    public void setListener(ConversionListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Counts the characters written to the output of a script.
+     */
+    private static final class CountingWriter extends FilterWriter {
+
+        private long count;
+
+        private CountingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            out.write(c);
+            count++;
+        }
+
+        @Override
+        public void write(char[] chars, int off, int len) throws IOException {
+            out.write(chars, off, len);
+            count += len;
+        }
+
+        @Override
+        public void write(String text, int off, int len) throws IOException {
+            out.write(text, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Counts the bytes written to the output of a script.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int off, int len) throws IOException {
+            out.write(bytes, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
 }
@@ -0,0 +1,127 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.node.JsonNodeType;
+import com.fasterxml.jackson.databind.node.ValueNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+
+/**
+ * An object or array value of a patch operation kept as the tokens it was read from. Most values are only copied to
+ * the script or to the BSON updates, which is done by replaying the tokens, so no tree of the value is built. The tree
+ * is only built when the converter has to look into the value, for example to merge a later operation into it.
+ * <p>
+ * The node is a {@link JsonNodeType#POJO POJO} node without children, so a value which may be lazy has to go
+ * through {@link #tree(JsonNode)} before it is navigated.
+ */
+final class LazyValueNode extends ValueNode {
+
+    private final TokenBuffer tokens;
+
+    private final boolean array;
+
+    private final ObjectReader treeReader;
+
+    private LazyValueNode(TokenBuffer tokens, boolean array, ObjectReader treeReader) {
+        this.tokens = tokens;
+        this.array = array;
+        this.treeReader = treeReader;
+    }
+
+    /**
+     * Reads the value at the current token of the parser and leaves the parser at its last token. Scalars are read
+     * as regular nodes, which are not larger than their tokens.
+     *
+     * @param treeReader The reader of the tree, if one is needed.
+     */
+    static JsonNode read(JsonParser parser, ObjectReader treeReader) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token != JsonToken.START_OBJECT && token != JsonToken.START_ARRAY) {
+            return treeReader.readTree(parser);
+        }
+        TokenBuffer tokens = new TokenBuffer(parser);
+        tokens.copyCurrentStructure(parser);
+        return new LazyValueNode(tokens, token == JsonToken.START_ARRAY, treeReader);
+    }
+
+    /**
+     * @return the value itself, or the tree of a lazy value.
+     */
+    static JsonNode tree(JsonNode value) {
+        return value instanceof LazyValueNode ? ((LazyValueNode) value).toTree() : value;
+    }
+
+    /**
+     * @return {@code true} in case the value is an array, whether it is lazy or not.
+     */
+    static boolean isArray(JsonNode value) {
+        return value.isArray() || value instanceof LazyValueNode && ((LazyValueNode) value).array;
+    }
+
+    /**
+     * @return a new tree of the value, which can be changed by the caller.
+     */
+    JsonNode toTree() {
+        try (JsonParser parser = asParser()) {
+            return treeReader.readTree(parser);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return a parser of the tokens of the value, which is positioned before the first token.
+     */
+    JsonParser asParser() {
+        return tokens.asParser();
+    }
+
+    @Override
+    public void serialize(JsonGenerator generator, SerializerProvider provider) throws IOException {
+        tokens.serialize(generator);
+    }
+
+    @Override
+    public JsonToken asToken() {
+        return array ? JsonToken.START_ARRAY : JsonToken.START_OBJECT;
+    }
+
+    @Override
+    public JsonNodeType getNodeType() {
+        return JsonNodeType.POJO;
+    }
+
+    @Override
+    public String asText() {
+        return "";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o == this || o instanceof LazyValueNode && toTree().equals(((LazyValueNode) o).toTree());
+    }
+
+    @Override
+    public int hashCode() {
+        return toTree().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        StringWriter out = new StringWriter();
+        try (JsonGenerator generator = treeReader.getFactory().createGenerator(out)) {
+            tokens.serialize(generator);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+}
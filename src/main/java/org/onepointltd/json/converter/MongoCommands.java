@@ -7,6 +7,8 @@ import static org.onepointltd.json.converter.TextUtil.hasText;
  */
 public class MongoCommands {
 
+    private final String move;
+
     private final String unset;
 
     private final String pull;
@@ -15,13 +17,21 @@ public class MongoCommands {
 
     private final String push;
 
-    MongoCommands(String unset, String pull, String set, String push) {
+    MongoCommands(String move, String unset, String pull, String set, String push) {
+        this.move = move;
         this.unset = unset;
         this.pull = pull;
         this.set = set;
         this.push = push;
     }
 
+    /**
+     * @return the $rename command or the aggregation pipeline with the moves and copies, which is executed first.
+     */
+    public String getMove() {
+        return move;
+    }
+
     public String getUnset() {
         return unset;
     }
@@ -42,6 +52,7 @@ public class MongoCommands {
     public String toString() {
         final StringBuilder sb = new StringBuilder("");
         String lb = String.format("%n");
+        sb.append("move=").append(move).append(lb);
         sb.append("unset=").append(unset).append(lb);
         sb.append("pull=").append(unset).append(lb);
         sb.append("set=").append(set).append(lb);
@@ -57,6 +68,9 @@ public class MongoCommands {
         if(inFunction) {
             sb.append("function update() {").append(lineSep);
         }
+        if(hasText(move)) {
+            sb.append("    ").append(move).append(lb);
+        }
         if(hasText(unset)) {
             sb.append("    ").append(unset).append(lb);
         }
@@ -15,7 +15,24 @@ public class MongoConversion {
 
     private final Map<String, List<JsonNode>> push = new HashMap<>();
 
+    private final Map<String, Integer> pushPositions = new HashMap<>();
+
+    private final List<ArrayPush> separatePushes = new ArrayList<>();
+
+    private final List<FieldMove> moves = new ArrayList<>();
+
+    private final Map<String, JsonNode> test = new LinkedHashMap<>();
+
+    private final ConversionTemplate template;
+
+    private long patchLength = -1;
+
     MongoConversion() {
+        this(null);
+    }
+
+    MongoConversion(ConversionTemplate template) {
+        this.template = template;
     }
 
     public Set<String> getUnset() {
@@ -29,4 +46,54 @@ public class MongoConversion {
     public Map<String, List<JsonNode>> getPush() {
         return push;
     }
+
+    /**
+     * @return the array position at which the values of a push are inserted, by path. Values of paths without
+     * a position are appended.
+     */
+    public Map<String, Integer> getPushPositions() {
+        return pushPositions;
+    }
+
+    /**
+     * @return the pushes which cannot be merged into the push of their array, in the order in which they need to be
+     * applied. They are applied after all other updates, each in an update of its own.
+     */
+    public List<ArrayPush> getSeparatePushes() {
+        return separatePushes;
+    }
+
+    /**
+     * @return the moves and copies, in the order in which they need to be applied. They are applied before
+     * all other updates.
+     */
+    public List<FieldMove> getMoves() {
+        return moves;
+    }
+
+    /**
+     * @return the values the document is expected to have before the update, by path.
+     */
+    public Map<String, JsonNode> getTest() {
+        return test;
+    }
+
+    /**
+     * @return the template this conversion was filled from, or {@code null}.
+     */
+    ConversionTemplate getTemplate() {
+        return template;
+    }
+
+    /**
+     * @return the length of the patch the values were read from, in bytes or characters, or -1 if the values are not
+     * bounded by it, because they were not read from a patch or because the patch copies them.
+     */
+    long getPatchLength() {
+        return patchLength;
+    }
+
+    void setPatchLength(long patchLength) {
+        this.patchLength = patchLength;
+    }
 }
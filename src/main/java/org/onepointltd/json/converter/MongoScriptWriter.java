@@ -0,0 +1,181 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.bson.BSONException;
+import org.bson.BsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriter;
+import org.bson.json.JsonWriterSettings;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/**
+ * Writes the Mongo update script through a Jackson {@link JsonGenerator}: the operators and keys are written as raw
+ * text and the values are serialized straight from their trees, so no part of the script is built as a string first.
+ */
+final class MongoScriptWriter implements Closeable {
+
+    /**
+     * The relaxed extended JSON of {@link BsonDocument#toJson()}.
+     */
+    private static final JsonWriterSettings DOCUMENT_SETTINGS = JsonWriterSettings.builder()
+            .outputMode(JsonMode.RELAXED).build();
+
+    private static final BsonDocumentCodec DOCUMENT_CODEC = new BsonDocumentCodec();
+
+    private static final EncoderContext ENCODER_CONTEXT = EncoderContext.builder().build();
+
+    /**
+     * Writes a part of the script.
+     */
+    interface Part {
+        void writeTo(MongoScriptWriter writer) throws IOException;
+    }
+
+    private final JsonGenerator generator;
+
+    private final StringWriter buffer;
+
+    /**
+     * Passes the text written by the BSON JSON writer on to the generator as raw text.
+     */
+    private final Writer rawWriter = new Writer() {
+        @Override
+        public void write(char[] chars, int off, int len) throws IOException {
+            generator.writeRaw(chars, off, len);
+        }
+
+        @Override
+        public void write(String text, int off, int len) throws IOException {
+            generator.writeRaw(text, off, len);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private MongoScriptWriter(JsonGenerator generator, StringWriter buffer) {
+        this.generator = generator;
+        this.buffer = buffer;
+        // the values are separated by the script itself
+        generator.setRootValueSeparator(null);
+    }
+
+    /**
+     * @return a writer to a target which is flushed but not closed when the writer is closed.
+     */
+    static MongoScriptWriter to(JsonGenerator generator) {
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        return new MongoScriptWriter(generator, null);
+    }
+
+    /**
+     * @return a writer which renders parts of the script as strings.
+     */
+    static MongoScriptWriter toStrings(JsonFactory factory) {
+        StringWriter buffer = new StringWriter();
+        try {
+            return new MongoScriptWriter(factory.createGenerator(buffer), buffer);
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Renders a part of the script, for writers created with {@link #toStrings(JsonFactory)}.
+     */
+    String render(Part part) {
+        try {
+            part.writeTo(this);
+            generator.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        String text = buffer.toString();
+        buffer.getBuffer().setLength(0);
+        return text;
+    }
+
+    MongoScriptWriter raw(String text) throws IOException {
+        generator.writeRaw(text);
+        return this;
+    }
+
+    MongoScriptWriter raw(char c) throws IOException {
+        generator.writeRaw(c);
+        return this;
+    }
+
+    MongoScriptWriter value(JsonNode value) throws IOException {
+        generator.writeTree(value);
+        return this;
+    }
+
+    /**
+     * Writes a BSON document as the JSON of {@link BsonDocument#toJson()}, straight into the generator.
+     */
+    MongoScriptWriter document(BsonDocument document) throws IOException {
+        try {
+            DOCUMENT_CODEC.encode(new JsonWriter(rawWriter, DOCUMENT_SETTINGS), document, ENCODER_CONTEXT);
+        } catch (BSONException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+        return this;
+    }
+
+    /**
+     * @return the number of bytes or characters written but not flushed to the target yet.
+     */
+    int buffered() {
+        return generator.getOutputBuffered();
+    }
+
+    @Override
+    public void close() throws IOException {
+        generator.close();
+    }
+
+    /**
+     * Adapts an {@link Appendable} which is not a {@link Writer}.
+     */
+    static Writer asWriter(Appendable out) {
+        if (out instanceof Writer) {
+            return (Writer) out;
+        }
+        return new Writer() {
+            @Override
+            public void write(char[] chars, int off, int len) throws IOException {
+                out.append(CharBuffer.wrap(chars, off, len));
+            }
+
+            @Override
+            public void write(String text, int off, int len) throws IOException {
+                out.append(text, off, off + len);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,219 @@
+package org.onepointltd.json.converter;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Contains the Mongo update documents which can be passed directly to a driver, without any string parsing.
+ * Each document is empty in case there is nothing to update.
+ */
+public class MongoUpdateDocuments {
+
+    private final BsonDocument rename;
+
+    private final List<BsonDocument> pipeline;
+
+    private final BsonDocument unset;
+
+    private final BsonDocument pull;
+
+    private final List<BsonDocument> removePipeline;
+
+    private final List<BsonDocument> sets;
+
+    private final List<BsonDocument> pushes;
+
+    private final TestPredicates tests;
+
+    private final String prefixStr;
+
+    MongoUpdateDocuments(BsonDocument rename, List<BsonDocument> pipeline, BsonDocument unset, BsonDocument pull,
+                         List<BsonDocument> removePipeline, List<BsonDocument> sets, List<BsonDocument> pushes,
+                         TestPredicates tests, String prefixStr) {
+        this.rename = rename;
+        this.pipeline = pipeline;
+        this.unset = unset;
+        this.pull = pull;
+        this.removePipeline = removePipeline;
+        this.sets = sets;
+        this.pushes = pushes;
+        this.tests = tests;
+        this.prefixStr = prefixStr;
+    }
+
+    /**
+     * @return the $rename update with the moves, which is empty if there are none or if they need the pipeline.
+     */
+    public BsonDocument getRename() {
+        return rename;
+    }
+
+    /**
+     * @return the aggregation pipeline update with the moves and copies, which is empty unless the patch contains
+     * copies or moves which cannot be expressed with $rename.
+     */
+    public List<BsonDocument> getPipeline() {
+        return pipeline;
+    }
+
+    public BsonDocument getUnset() {
+        return unset;
+    }
+
+    public BsonDocument getPull() {
+        return pull;
+    }
+
+    /**
+     * @return the aggregation pipeline update which removes array positions, which is empty unless the
+     * {@link ArrayStrategy#POSITIONAL} strategy is used. It replaces the $pull update.
+     */
+    public List<BsonDocument> getRemovePipeline() {
+        return removePipeline;
+    }
+
+    /**
+     * @return the $set update, or the first one if the sets are split into several updates.
+     */
+    public BsonDocument getSet() {
+        return sets.isEmpty() ? new BsonDocument() : sets.get(0);
+    }
+
+    /**
+     * @return the $set updates, more than one if the sets exceed the maximum update size.
+     */
+    public List<BsonDocument> getSets() {
+        return sets;
+    }
+
+    /**
+     * @return the $push update, or the first one if the pushes are split into several updates.
+     */
+    public BsonDocument getPush() {
+        return pushes.isEmpty() ? new BsonDocument() : pushes.get(0);
+    }
+
+    /**
+     * @return the $push updates, more than one if the pushed values exceed the maximum update size.
+     */
+    public List<BsonDocument> getPushes() {
+        return pushes;
+    }
+
+    /**
+     * @return the non empty update documents in the order in which they need to be executed:
+     * rename, unset, pull, the sets and the pushes.
+     * @throws IllegalStateException the updates need a pipeline, for copies, some moves or the removes of the
+     *                               {@link ArrayStrategy#POSITIONAL} strategy, or the filter predicates of test
+     *                               operations. Neither can be expressed by a list of update documents, so
+     *                               {@link #toUpdates(BsonDocument)} has to be used instead.
+     */
+    public List<BsonDocument> asList() {
+        if (!pipeline.isEmpty() || !removePipeline.isEmpty() || !tests.isEmpty()) {
+            throw new IllegalStateException(
+                    "The updates need a pipeline or filter predicates, which only toUpdates includes");
+        }
+        List<BsonDocument> updates = new ArrayList<>(4 + sets.size() + pushes.size());
+        addIfNotEmpty(updates, rename);
+        addIfNotEmpty(updates, unset);
+        addIfNotEmpty(updates, pull);
+        updates.addAll(sets);
+        updates.addAll(pushes);
+        return updates;
+    }
+
+    private static void addIfNotEmpty(List<BsonDocument> updates, BsonDocument update) {
+        if (!update.isEmpty()) {
+            updates.add(update);
+        }
+    }
+
+    /**
+     * Creates all updates in the order in which they need to be executed, including the pipeline update. The
+     * filter of each update contains the predicates of the test operations of the patch.
+     *
+     * @param filter The filter used to find the document, like e.g: { _id: ObjectId("58a46cc6f7076692b7693c4e") }
+     * @return the ordered updates.
+     */
+    public List<BulkUpdate> toUpdates(BsonDocument filter) {
+        List<BulkUpdate> updates = new ArrayList<>(5);
+        if (!pipeline.isEmpty()) {
+            updates.add(new BulkUpdate(createFilter(filter, TestPredicates.Stage.MOVE), pipeline));
+        }
+        addIfNotEmpty(updates, filter, TestPredicates.Stage.MOVE, rename);
+        addIfNotEmpty(updates, filter, TestPredicates.Stage.UNSET, unset);
+        addIfNotEmpty(updates, filter, TestPredicates.Stage.PULL, pull);
+        if (!removePipeline.isEmpty()) {
+            updates.add(new BulkUpdate(createFilter(filter, TestPredicates.Stage.PULL), removePipeline));
+        }
+        List<String> applied = new ArrayList<>();
+        for (BsonDocument set : sets) {
+            updates.add(new BulkUpdate(createFilter(filter, TestPredicates.Stage.SET, applied), set));
+            for (String key : set.getDocument("$set").keySet()) {
+                applied.add(key.substring(prefixStr.length()));
+            }
+        }
+        for (BsonDocument push : pushes) {
+            updates.add(new BulkUpdate(createFilter(filter, TestPredicates.Stage.PUSH), push));
+        }
+        return updates;
+    }
+
+    private void addIfNotEmpty(List<BulkUpdate> updates, BsonDocument filter, TestPredicates.Stage stage,
+                               BsonDocument update) {
+        if (!update.isEmpty()) {
+            updates.add(new BulkUpdate(createFilter(filter, stage), update));
+        }
+    }
+
+    private BsonDocument createFilter(BsonDocument filter, TestPredicates.Stage stage) {
+        return createFilter(filter, stage, Collections.emptyList());
+    }
+
+    /**
+     * @param applied The keys set by the earlier parts of a split $set.
+     */
+    private BsonDocument createFilter(BsonDocument filter, TestPredicates.Stage stage, List<String> applied) {
+        BsonDocument predicates = tests.toBson(stage, applied, prefixStr);
+        if (predicates.isEmpty()) {
+            return filter;
+        }
+        if (filter == null || filter.isEmpty()) {
+            return predicates;
+        }
+        return new BsonDocument("$and", new BsonArray(Arrays.asList(filter, predicates)));
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("");
+        String lb = String.format("%n");
+        sb.append("rename=").append(rename.toJson()).append(lb);
+        sb.append("pipeline=").append(pipeline).append(lb);
+        sb.append("unset=").append(unset.toJson()).append(lb);
+        sb.append("pull=").append(pull.toJson()).append(lb);
+        sb.append("removePipeline=").append(removePipeline).append(lb);
+        sb.append("set=").append(toJson(sets)).append(lb);
+        sb.append("push=").append(toJson(pushes)).append(lb);
+        return sb.toString();
+    }
+
+    private static String toJson(List<BsonDocument> parts) {
+        if (parts.isEmpty()) {
+            return "{}";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (BsonDocument part : parts) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(part.toJson());
+        }
+        return sb.toString();
+    }
+}
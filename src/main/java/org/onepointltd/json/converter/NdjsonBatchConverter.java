@@ -0,0 +1,482 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.bson.BsonDocument;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Converts files of newline delimited JSON patches. Each line holds either a patch or an object with the patch and
+ * the document it targets, like e.g. {"filter": {"_id": 1}, "collection": "customer", "patch": [...]}. Lines without
+ * a filter or a collection use the defaults.
+ * <p>
+ * The input is memory mapped and split into batches of lines, which are converted in parallel. The output of the
+ * batches is written in the order of the input, so the updates of each document keep their order.
+ */
+public class NdjsonBatchConverter {
+
+    private final JsonPatchToMongoUpdate converter;
+
+    private final int parallelism;
+
+    private OutputFormat outputFormat = OutputFormat.SCRIPT;
+
+    private String defaultCollection;
+
+    private String defaultFilter = "{}";
+
+    private BsonDocument defaultFilterDocument = new BsonDocument();
+
+    private String[] prefixes = new String[0];
+
+    private boolean skipInvalid;
+
+    private Consumer<Statistics> progressListener;
+
+    private int windowSize = 1 << 28;
+
+    private int batchSize = 1 << 20;
+
+    /**
+     * @param converter   The converter used for all lines.
+     * @param parallelism The number of threads converting the batches.
+     */
+    public NdjsonBatchConverter(JsonPatchToMongoUpdate converter, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("The parallelism must be at least 1");
+        }
+        this.converter = converter;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Converts a file of newline delimited patches.
+     *
+     * @param input The file with one patch per line.
+     * @param out   The output, which is not closed.
+     * @return the final statistics.
+     * @throws IOException          the input cannot be read, the output cannot be written or a line cannot be converted
+     *                              and invalid lines are not skipped.
+     * @throws InterruptedException the thread was interrupted while waiting for the conversions.
+     */
+    public Statistics convert(Path input, OutputStream out) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, (runnable) -> {
+            Thread thread = new Thread(runnable, "ndjson-batch-converter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Run run = new Run(out, executor);
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            int window = windowSize;
+            while (position < size) {
+                long length = Math.min(window, size - position);
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int consumed = run.split(mapped, position + length == size);
+                if (consumed == 0) {
+                    // a single line is longer than the window
+                    if (length >= Integer.MAX_VALUE / 2) {
+                        throw new IOException(String.format("Line %d is too long", run.line + 1));
+                    }
+                    window = (int) length * 2;
+                } else {
+                    position += consumed;
+                    window = windowSize;
+                }
+            }
+            run.drain();
+        } finally {
+            executor.shutdownNow();
+        }
+        return run.statistics();
+    }
+
+    private Result convertBatch(Batch batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(batch.data.length * 2);
+        int errors = 0;
+        JsonFactory factory = converter.getJsonFactory();
+        ConversionListener listener = converter.getListener();
+        try (MongoScriptWriter writer = MongoScriptWriter.to(factory.createGenerator(bytes, JsonEncoding.UTF8))) {
+            for (int i = 0; i < batch.count; i++) {
+                try {
+                    long written = listener == null ? 0 : bytes.size() + writer.buffered();
+                    convertLine(factory, batch.data, batch.starts[i], batch.ends[i] - batch.starts[i], writer);
+                    if (listener != null) {
+                        listener.outputWritten(bytes.size() + writer.buffered() - written);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (!skipInvalid) {
+                        throw new IOException(String.format("Line %d: %s", batch.lines[i], e.getMessage()), e);
+                    }
+                    errors++;
+                }
+            }
+        }
+        return new Result(bytes, batch.count, errors, batch.data.length);
+    }
+
+    private void convertLine(JsonFactory factory, byte[] data, int offset, int length, MongoScriptWriter writer)
+            throws IOException {
+        MongoConversion mongoConversion = null;
+        JsonNode filter = null;
+        String collection = defaultCollection;
+        try (JsonParser parser = factory.createParser(data, offset, length)) {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_ARRAY) {
+                mongoConversion = converter.convert(parser);
+            } else if (token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    switch (field) {
+                        case "patch":
+                            mongoConversion = converter.convert(parser);
+                            break;
+                        case "filter":
+                            filter = parser.readValueAsTree();
+                            break;
+                        case "collection":
+                            if (parser.getCurrentToken() != JsonToken.VALUE_STRING) {
+                                throw new JsonParseException(parser, "The collection must be a string");
+                            }
+                            collection = parser.getText();
+                            break;
+                        default:
+                            parser.skipChildren();
+                    }
+                }
+            }
+            if (mongoConversion == null) {
+                throw new JsonParseException(parser, "A line must hold a JSON patch or an object with a \"patch\"");
+            }
+            if (parser.nextToken() != null) {
+                throw new JsonParseException(parser, "A line must hold a single JSON patch or object");
+            }
+            if (filter != null && !filter.isObject()) {
+                throw new JsonParseException(parser, "The filter must be an object");
+            }
+            if (collection == null) {
+                throw new JsonParseException(parser, "The line has no collection and there is no default collection");
+            }
+        }
+        if (outputFormat == OutputFormat.SCRIPT) {
+            converter.writeScript(mongoConversion, filter == null ? defaultFilter : filter.toString(), collection,
+                    false, writer, prefixes);
+            return;
+        }
+        BsonDocument filterDocument = filter == null ? defaultFilterDocument : (BsonDocument) BsonValues.toBson(filter);
+        JsonPatchToMongoUpdate.writeBulkCommands(
+                converter.convertToDocuments(mongoConversion, prefixes).toUpdates(filterDocument), collection, writer);
+    }
+
+    public OutputFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    public void setOutputFormat(OutputFormat outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    public String getDefaultCollection() {
+        return defaultCollection;
+    }
+
+    public void setDefaultCollection(String defaultCollection) {
+        this.defaultCollection = defaultCollection;
+    }
+
+    public String getDefaultFilter() {
+        return defaultFilter;
+    }
+
+    /**
+     * @param defaultFilter The filter of the lines without one, as a JSON object.
+     */
+    public void setDefaultFilter(String defaultFilter) {
+        this.defaultFilterDocument = BsonDocument.parse(defaultFilter);
+        this.defaultFilter = defaultFilter;
+    }
+
+    public String[] getPrefixes() {
+        return prefixes;
+    }
+
+    public void setPrefixes(String... prefixes) {
+        this.prefixes = prefixes;
+    }
+
+    public boolean isSkipInvalid() {
+        return skipInvalid;
+    }
+
+    /**
+     * @param skipInvalid Whether lines which cannot be converted are counted as errors and skipped, instead of
+     *                    stopping the conversion.
+     */
+    public void setSkipInvalid(boolean skipInvalid) {
+        this.skipInvalid = skipInvalid;
+    }
+
+    /**
+     * @param progressListener Called on the converting thread each time a batch was written.
+     */
+    public void setProgressListener(Consumer<Statistics> progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * The state of a single conversion: splits the mapped input into batches, keeps a bounded window of batches in
+     * flight and writes their output in order.
+     */
+    private final class Run {
+
+        private final OutputStream out;
+
+        private final ExecutorService executor;
+
+        private final Deque<Future<Result>> results = new ArrayDeque<>();
+
+        private final long start = System.nanoTime();
+
+        private long line;
+
+        private long records;
+
+        private long errors;
+
+        private long bytes;
+
+        private Run(OutputStream out, ExecutorService executor) {
+            this.out = out;
+            this.executor = executor;
+        }
+
+        /**
+         * Splits the mapped part of the input into batches of lines and submits them.
+         *
+         * @return the number of bytes up to the end of the last complete line.
+         */
+        int split(ByteBuffer mapped, boolean last) throws IOException, InterruptedException {
+            int limit = mapped.limit();
+            int batchStart = 0;
+            int lineStart = 0;
+            Batch batch = new Batch();
+            for (int i = 0; i < limit; i++) {
+                if (mapped.get(i) != '\n') {
+                    continue;
+                }
+                batch.add(lineStart, lineEnd(mapped, lineStart, i), ++line);
+                lineStart = i + 1;
+                if (lineStart - batchStart >= batchSize) {
+                    submit(batch.copy(mapped, batchStart, lineStart));
+                    batch = new Batch();
+                    batchStart = lineStart;
+                }
+            }
+            if (last && lineStart < limit) {
+                batch.add(lineStart, lineEnd(mapped, lineStart, limit), ++line);
+                lineStart = limit;
+            }
+            if (batchStart < lineStart) {
+                submit(batch.copy(mapped, batchStart, lineStart));
+            }
+            return lineStart;
+        }
+
+        /**
+         * @return the end of the line without a carriage return.
+         */
+        private int lineEnd(ByteBuffer mapped, int start, int end) {
+            return end > start && mapped.get(end - 1) == '\r' ? end - 1 : end;
+        }
+
+        private void submit(Batch batch) throws IOException, InterruptedException {
+            if (results.size() == parallelism * 2) {
+                write(results.poll());
+            }
+            results.add(executor.submit(() -> convertBatch(batch)));
+        }
+
+        void drain() throws IOException, InterruptedException {
+            while (!results.isEmpty()) {
+                write(results.poll());
+            }
+            out.flush();
+        }
+
+        private void write(Future<Result> future) throws IOException, InterruptedException {
+            Result result;
+            try {
+                result = future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+            result.output.writeTo(out);
+            records += result.records;
+            errors += result.errors;
+            bytes += result.bytes;
+            if (progressListener != null) {
+                progressListener.accept(statistics());
+            }
+        }
+
+        Statistics statistics() {
+            return new Statistics(records, errors, bytes, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * A copy of consecutive lines of the input. Blank lines are left out.
+     */
+    private static final class Batch {
+
+        private byte[] data;
+
+        private int[] starts = new int[64];
+
+        private int[] ends = new int[64];
+
+        private long[] lines = new long[64];
+
+        private int count;
+
+        void add(int start, int end, long line) {
+            if (end == start) {
+                return;
+            }
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                lines = Arrays.copyOf(lines, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = end;
+            lines[count] = line;
+            count++;
+        }
+
+        Batch copy(ByteBuffer mapped, int from, int to) {
+            data = new byte[to - from];
+            ByteBuffer source = mapped.duplicate();
+            source.position(from);
+            source.get(data);
+            for (int i = 0; i < count; i++) {
+                starts[i] -= from;
+                ends[i] -= from;
+            }
+            return this;
+        }
+    }
+
+    private static final class Result {
+
+        private final ByteArrayOutputStream output;
+
+        private final int records;
+
+        private final int errors;
+
+        private final int bytes;
+
+        private Result(ByteArrayOutputStream output, int records, int errors, int bytes) {
+            this.output = output;
+            this.records = records;
+            this.errors = errors;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * The progress of a conversion.
+     */
+    public static final class Statistics {
+
+        private final long records;
+
+        private final long errors;
+
+        private final long bytes;
+
+        private final long elapsedNanos;
+
+        Statistics(long records, long errors, long bytes, long elapsedNanos) {
+            this.records = records;
+            this.errors = errors;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return the number of lines converted or skipped so far.
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * @return the number of lines skipped because they could not be converted.
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return the number of input bytes converted so far.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getRecordsPerSecond() {
+            return elapsedNanos == 0 ? 0 : records * 1e9 / elapsedNanos;
+        }
+
+        public double getMegabytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos / (1024 * 1024);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%,d records, %,d errors, %.1f MB in %.1f s (%,.0f records/s, %.1f MB/s)", records,
+                    errors, bytes / (1024.0 * 1024), elapsedNanos / 1e9, getRecordsPerSecond(), getMegabytesPerSecond());
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.onepointltd.json.converter;
+
+/**
+ * The format of the output written by a {@link PatchConverter} or a {@link NdjsonBatchConverter}.
+ */
+public enum OutputFormat {
+    /**
+     * The MongoDB script, as produced by {@link JsonPatchToMongoUpdate#writeMongoUpdates}.
+     */
+    SCRIPT,
+    /**
+     * One JSON document per update with the collection, the filter and either the update or the pipeline.
+     */
+    BULK
+}
@@ -0,0 +1,159 @@
+package org.onepointltd.json.converter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Converts independent patches in parallel. The number of conversions in flight is bounded: submitting a patch
+ * blocks while the limit is reached, which pushes back on the producer of the patches.
+ */
+public class ParallelPatchConverter implements AutoCloseable {
+
+    private final JsonPatchToMongoUpdate converter;
+
+    private final ExecutorService executor;
+
+    private final boolean ownsExecutor;
+
+    private final int maxInFlight;
+
+    private final Semaphore inFlight;
+
+    /**
+     * Creates a converter backed by its own fork join pool.
+     *
+     * @param converter   The converter used for each patch.
+     * @param parallelism The number of threads of the pool.
+     * @param maxInFlight The maximum number of conversions which are submitted and not yet completed.
+     */
+    public ParallelPatchConverter(JsonPatchToMongoUpdate converter, int parallelism, int maxInFlight) {
+        this(converter, new ForkJoinPool(parallelism), maxInFlight, true);
+    }
+
+    /**
+     * Creates a converter backed by an executor owned by the caller, which is not shut down on {@link #close()}.
+     *
+     * @param converter   The converter used for each patch.
+     * @param executor    The executor running the conversions.
+     * @param maxInFlight The maximum number of conversions which are submitted and not yet completed.
+     */
+    public ParallelPatchConverter(JsonPatchToMongoUpdate converter, ExecutorService executor, int maxInFlight) {
+        this(converter, executor, maxInFlight, false);
+    }
+
+    private ParallelPatchConverter(JsonPatchToMongoUpdate converter, ExecutorService executor, int maxInFlight,
+                                   boolean ownsExecutor) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.converter = converter;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Submits a patch for conversion, blocking while the maximum number of conversions is in flight.
+     *
+     * @param request The patch and the document it targets.
+     * @return a future with the update documents.
+     * @throws InterruptedException the thread was interrupted while waiting for a free slot.
+     */
+    public CompletableFuture<MongoUpdateDocuments> submit(PatchRequest request) throws InterruptedException {
+        inFlight.acquire();
+        CompletableFuture<MongoUpdateDocuments> conversion;
+        try {
+            conversion = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return converter.convertToDocuments(request.getPatch(), request.getPrefixes());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor);
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+        conversion.whenComplete((documents, error) -> inFlight.release());
+        return conversion;
+    }
+
+    /**
+     * Converts patches in parallel and hands the results to the sink on the calling thread, in the order in which
+     * the patches were read. Hence the updates of each document keep their order. At most maxInFlight results are
+     * held in memory at any time.
+     *
+     * @param requests The patches together with the filter and collection of the document they target.
+     * @param sink     Receives each patch together with its update documents.
+     * @throws IOException          a JSON patch cannot be read.
+     * @throws InterruptedException the thread was interrupted while waiting for the conversions.
+     */
+    public void convert(Iterable<PatchRequest> requests, BiConsumer<PatchRequest, MongoUpdateDocuments> sink)
+            throws IOException, InterruptedException {
+        Deque<PatchRequest> pending = new ArrayDeque<>(maxInFlight);
+        Deque<CompletableFuture<MongoUpdateDocuments>> results = new ArrayDeque<>(maxInFlight);
+        for (PatchRequest request : requests) {
+            if (results.size() == maxInFlight) {
+                sink.accept(pending.poll(), await(results.poll()));
+            }
+            pending.add(request);
+            results.add(submit(request));
+        }
+        while (!results.isEmpty()) {
+            sink.accept(pending.poll(), await(results.poll()));
+        }
+    }
+
+    private static MongoUpdateDocuments await(CompletableFuture<MongoUpdateDocuments> result) throws IOException {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Converts a batch of patches in parallel and groups the results in a bulk write plan. The plan is identical
+     * to the one produced by {@link JsonPatchToMongoUpdate#convertToBulkWrite(Iterable)}.
+     *
+     * @param requests The patches together with the filter and collection of the document they target.
+     * @return the ordered updates grouped by collection.
+     * @throws IOException          a JSON patch cannot be read.
+     * @throws InterruptedException the thread was interrupted while waiting for the conversions.
+     */
+    public BulkWritePlan convertToBulkWrite(Iterable<PatchRequest> requests) throws IOException, InterruptedException {
+        BulkWritePlan plan = new BulkWritePlan();
+        convert(requests, plan::add);
+        return plan;
+    }
+
+    /**
+     * Shuts down the executor in case it was created by this converter and waits for running conversions. If the
+     * thread is interrupted while waiting, the running conversions are cancelled and the interrupt flag is kept.
+     */
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
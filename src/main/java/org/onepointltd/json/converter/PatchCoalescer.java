@@ -0,0 +1,691 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Applies patch operations in RFC 6902 order to a {@link MongoConversion}, removing dead operations and resolving
+ * parent / child path conflicts on the way:
+ * <ul>
+ * <li>an operation below a path which is already set is merged into the value of that path;</li>
+ * <li>a set or remove drops the earlier sets, pushes and removes it overrides;</li>
+ * <li>a remove below an already removed path is dropped;</li>
+ * <li>moves, copies and tests of values known from earlier operations are resolved right away;</li>
+ * <li>an operation on a position of an array with a positioned push is applied to the pushed values or shifted
+ * to the position before the push;</li>
+ * <li>an add which cannot be merged into the push of its array becomes a separate push.</li>
+ * </ul>
+ * Removes of array positions are kept as they are, since they shift the positions used by later operations.
+ */
+class PatchCoalescer {
+
+    private final MongoConversion mongoConversion;
+
+    private final ArrayStrategy arrayStrategy;
+
+    /**
+     * The removed array positions by array path, sorted and relative to the array before the patch.
+     */
+    private final Map<String, List<Integer>> removedPositions = new HashMap<>();
+
+    /**
+     * All proper prefixes of the paths stored in the conversion. Used to avoid scanning the conversion for
+     * descendants of a path which has none.
+     */
+    private final Set<String> parents = new HashSet<>();
+
+    /**
+     * The sources and targets of the field moves.
+     */
+    private final Set<String> transferred = new HashSet<>();
+
+    PatchCoalescer(MongoConversion mongoConversion, ArrayStrategy arrayStrategy) {
+        this.mongoConversion = mongoConversion;
+        this.arrayStrategy = arrayStrategy;
+    }
+
+    /**
+     * Validates the conversion once all operations were applied.
+     */
+    void finish() throws PatchConversionException {
+        TestPredicates.create(mongoConversion, false);
+    }
+
+    void add(PatchPath path, JsonNode value) throws PatchConversionException {
+        boolean isIndex = path.size() > 1 && path.endsWithIndex();
+        checkSeparatePushes(path, isIndex, isIndex);
+        path = resolvePushed(path, value, isIndex ? Merge.INSERT : Merge.SET);
+        if (path == null) {
+            return;
+        }
+        if (LazyValueNode.isArray(value) || isIndex) {
+            // only apply push if there are array values
+            push(path, isIndex ? path.parent() : path, value);
+        } else {
+            put(path, value);
+        }
+    }
+
+    void set(PatchPath path, JsonNode value) throws PatchConversionException {
+        checkSeparatePushes(path, false, false);
+        path = resolvePushed(path, value, Merge.SET);
+        if (path != null) {
+            put(path, value);
+        }
+    }
+
+    private void put(PatchPath path, JsonNode value) {
+        if (mergeIntoSetAncestor(path, value, Merge.SET)) {
+            return;
+        }
+        String key = path.toDot();
+        String original = beforeRemoves(path).toDot();
+        dropDescendants(key, original);
+        dropPush(key);
+        if (!path.endsWithIndex()) {
+            // the unset runs before the set, so it has no effect
+            mongoConversion.getUnset().remove(original);
+        }
+        mongoConversion.getSet().put(key, value);
+        registerParents(path);
+    }
+
+    void unset(PatchPath path) throws PatchConversionException {
+        checkSeparatePushes(path, path.size() > 1 && path.endsWithIndex(), false);
+        path = resolvePushed(path, null, Merge.REMOVE);
+        if (path == null || mergeIntoSetAncestor(path, null, Merge.REMOVE)) {
+            return;
+        }
+        // the unsets run before the removes of array positions, unlike the sets and pushes
+        PatchPath original = beforeRemoves(path);
+        if (hasUnsetAncestor(original)) {
+            return;
+        }
+        String key = path.toDot();
+        int position = path.size() > 1 ? arrayIndex(path.segment(path.size() - 1)) : -1;
+        if (position >= 0) {
+            // all array positions are removed at once, so refer to the positions before the patch
+            String arrayKey = original.parent().toDot();
+            checkNestedRemove(arrayKey, path);
+            shiftPositions(path.parent().toDot(), position);
+            key = arrayKey + "." + originalPosition(arrayKey, position);
+        } else {
+            dropDescendants(key, original.toDot());
+            mongoConversion.getSet().remove(key);
+            dropPush(key);
+            key = original.toDot();
+        }
+        String prefix = key + ".";
+        mongoConversion.getUnset().removeIf(k -> k.startsWith(prefix));
+        mongoConversion.getUnset().add(key);
+        registerParents(path);
+        registerParents(original);
+    }
+
+    private void push(PatchPath path, PatchPath arrayPath, JsonNode value) throws PatchConversionException {
+        if (path != arrayPath && mergeIntoSetAncestor(path, value, Merge.INSERT)) {
+            return;
+        }
+        String key = arrayPath.toDot();
+        int position = path != arrayPath ? arrayIndex(path.segment(path.size() - 1)) : -1;
+        List<JsonNode> values = mongoConversion.getPush().get(key);
+        Map<String, Integer> positions = mongoConversion.getPushPositions();
+        if (values == null) {
+            checkNestedPush(key, path);
+            values = new ArrayList<>();
+            mongoConversion.getPush().put(key, values);
+            if (position >= 0 && arrayStrategy == ArrayStrategy.POSITIONAL) {
+                positions.put(key, position);
+            } else {
+                positions.remove(key);
+            }
+            values.add(value);
+        } else if (hasSeparatePush(key)) {
+            // the separate pushes run after this one, so it cannot take later values
+            pushSeparately(key, position, value);
+        } else if (arrayStrategy == ArrayStrategy.APPEND || (position < 0 && !positions.containsKey(key))) {
+            values.add(value);
+        } else if (isWithin(positions.get(key), values.size(), position)) {
+            values.add(position - positions.get(key), value);
+        } else {
+            pushSeparately(key, position, value);
+        }
+        registerParents(arrayPath);
+    }
+
+    /**
+     * Adds a value which cannot be merged into the push of its array to the last separate push of the array, or to
+     * a new separate push running after it.
+     */
+    private void pushSeparately(String key, int position, JsonNode value) {
+        List<ArrayPush> pushes = mongoConversion.getSeparatePushes();
+        ArrayPush last = null;
+        for (ArrayPush push : pushes) {
+            if (push.getKey().equals(key)) {
+                last = push;
+            }
+        }
+        if (last != null && last.getPosition() == null && position < 0) {
+            last.getValues().add(value);
+        } else if (last != null && isWithin(last.getPosition(), last.getValues().size(), position)) {
+            last.getValues().add(position - last.getPosition(), value);
+        } else {
+            ArrayPush push = new ArrayPush(key, position < 0 ? null : position);
+            push.getValues().add(value);
+            pushes.add(push);
+        }
+    }
+
+    /**
+     * @return {@code true} in case an insert at the position is next to or within the values inserted at the first
+     * position.
+     */
+    private static boolean isWithin(Integer first, int size, int position) {
+        return first != null && position >= first && position <= first + size;
+    }
+
+    private boolean hasSeparatePush(String key) {
+        for (ArrayPush push : mongoConversion.getSeparatePushes()) {
+            if (push.getKey().equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The separate pushes run after all other updates, so an operation below one of their arrays, or one shifting
+     * the positions of an array holding one of them, cannot be converted. Adds to the array itself are pushed too.
+     *
+     * @param shifts Whether the operation inserts or removes the array position at the end of the path.
+     * @param insert Whether the operation inserts.
+     */
+    private void checkSeparatePushes(PatchPath path, boolean shifts, boolean insert) throws PatchConversionException {
+        List<ArrayPush> pushes = mongoConversion.getSeparatePushes();
+        if (pushes.isEmpty()) {
+            return;
+        }
+        String key = path.toDot();
+        String array = shifts ? path.parent().toDot() : null;
+        for (ArrayPush push : pushes) {
+            String pushed = push.getKey();
+            if (insert && pushed.equals(array)) {
+                continue;
+            }
+            if (key.startsWith(pushed + ".") || array != null && pushed.startsWith(array + ".")) {
+                throw new PatchConversionException(String.format(
+                        "Cannot change %s, the array %s gets a separate push which runs after all other updates",
+                        path, pushed));
+            }
+        }
+    }
+
+    private void dropPush(String key) {
+        mongoConversion.getPush().remove(key);
+        if (!mongoConversion.getSeparatePushes().isEmpty()) {
+            mongoConversion.getSeparatePushes().removeIf(push -> push.getKey().equals(key));
+        }
+    }
+
+    /**
+     * All pushes go into a single update, in which MongoDB does not allow an array and an array nested in it to be
+     * changed together.
+     */
+    private void checkNestedPush(String key, PatchPath path) throws PatchConversionException {
+        for (String pushed : mongoConversion.getPush().keySet()) {
+            if (key.startsWith(pushed + ".") || pushed.startsWith(key + ".")) {
+                throw new PatchConversionException(String.format(
+                        "Cannot add at %s, the array %s is already added to in the same update", path, pushed));
+            }
+        }
+    }
+
+    /**
+     * Resolves a path running through a position of an array which got a positioned push earlier in the patch. The
+     * push runs after all other updates, so an operation on one of the pushed values is applied to the value itself,
+     * and a position after the pushed values is shifted back to the position it has before the push.
+     *
+     * @return the path to convert, or {@code null} if the operation was applied to a pushed value.
+     */
+    private PatchPath resolvePushed(PatchPath path, JsonNode value, Merge merge) {
+        Map<String, Integer> positions = mongoConversion.getPushPositions();
+        if (positions.isEmpty()) {
+            return path;
+        }
+        for (int i = 1; i < path.size(); i++) {
+            Integer first = path.isIndex(i) ? positions.get(path.toDot(i)) : null;
+            int position = first == null ? -1 : arrayIndex(path.segment(i));
+            if (position < 0) {
+                continue;
+            }
+            String key = path.toDot(i);
+            List<JsonNode> values = mongoConversion.getPush().get(key);
+            if (values == null) {
+                // the push was overridden by a later set or remove of the array
+                continue;
+            }
+            boolean last = i == path.size() - 1;
+            if (last && merge == Merge.INSERT) {
+                // adds to the same array are handled by the push itself
+                return path;
+            }
+            if (position < first) {
+                if (last && merge == Merge.REMOVE) {
+                    // the remove runs before the push
+                    positions.put(key, first - 1);
+                }
+            } else if (position >= first + values.size()) {
+                path = path.withIndex(i, position - values.size());
+            } else if (last) {
+                if (merge == Merge.SET) {
+                    values.set(position - first, value);
+                } else {
+                    values.remove(position - first);
+                    if (values.isEmpty()) {
+                        mongoConversion.getPush().remove(key);
+                        positions.remove(key);
+                    }
+                }
+                return null;
+            } else {
+                JsonNode pushed = LazyValueNode.tree(values.get(position - first));
+                JsonNode container = navigate(pushed, path, i + 1, path.size() - 1);
+                if (container != null
+                        && merge.apply(container, path.segment(path.size() - 1), LazyValueNode.tree(value))) {
+                    values.set(position - first, pushed);
+                    return null;
+                }
+                return path;
+            }
+        }
+        return path;
+    }
+
+    /**
+     * The sets and pushes run after the removes, so the earlier ones at or below the positions of an array are moved
+     * along with the elements when a position is removed: the ones of the removed element are dropped, the ones of
+     * the later elements are shifted down by one.
+     */
+    private void shiftPositions(String arrayKey, int removed) {
+        if (!parents.contains(arrayKey)) {
+            return;
+        }
+        shiftPositions(mongoConversion.getSet(), arrayKey, removed);
+        shiftPositions(mongoConversion.getPush(), arrayKey, removed);
+        shiftPositions(mongoConversion.getPushPositions(), arrayKey, removed);
+    }
+
+    private <T> void shiftPositions(Map<String, T> updates, String arrayKey, int removed) {
+        String prefix = arrayKey + ".";
+        Map<String, T> shifted = new HashMap<>();
+        Iterator<Map.Entry<String, T>> entries = updates.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, T> entry = entries.next();
+            String key = entry.getKey();
+            if (!key.startsWith(prefix)) {
+                continue;
+            }
+            int end = key.indexOf('.', prefix.length());
+            int position = arrayIndex(key.substring(prefix.length(), end < 0 ? key.length() : end));
+            if (position < removed) {
+                continue;
+            }
+            entries.remove();
+            if (position > removed) {
+                String moved = prefix + (position - 1) + (end < 0 ? "" : key.substring(end));
+                shifted.put(moved, entry.getValue());
+                registerParents(PatchPath.fromDot(moved));
+            }
+        }
+        updates.putAll(shifted);
+    }
+
+    /**
+     * @return the path with its array positions referring to the positions before the patch.
+     */
+    private PatchPath beforeRemoves(PatchPath path) {
+        if (removedPositions.isEmpty()) {
+            return path;
+        }
+        for (int i = 1; i < path.size(); i++) {
+            int position = path.isIndex(i) ? arrayIndex(path.segment(i)) : -1;
+            List<Integer> removed = position < 0 ? null : removedPositions.get(path.toDot(i));
+            if (removed != null) {
+                int original = position;
+                for (int j = 0; j < removed.size() && removed.get(j) <= original; j++) {
+                    original++;
+                }
+                path = path.withIndex(i, original);
+            }
+        }
+        return path;
+    }
+
+    /**
+     * The removed positions of all arrays are pulled in a single update, in which MongoDB does not allow an array
+     * and an array nested in it to be changed together.
+     */
+    private void checkNestedRemove(String arrayKey, PatchPath path) throws PatchConversionException {
+        for (String removed : removedPositions.keySet()) {
+            if (arrayKey.startsWith(removed + ".") || removed.startsWith(arrayKey + ".")) {
+                throw new PatchConversionException(String.format(
+                        "Cannot remove %s, positions of the array %s are removed in the same update", path, removed));
+            }
+        }
+    }
+
+    private int originalPosition(String arrayKey, int position) {
+        List<Integer> removed = removedPositions.computeIfAbsent(arrayKey, (k) -> new ArrayList<>());
+        int original = position;
+        int i = 0;
+        for (; i < removed.size() && removed.get(i) <= original; i++) {
+            original++;
+        }
+        removed.add(i, original);
+        return original;
+    }
+
+    /**
+     * Moves or copies a value. If the value is known from an earlier operation, the transfer is turned into plain
+     * sets and unsets. Otherwise it becomes a field move which is applied before all other updates, which is only
+     * possible if no earlier operation touched the source or the parents of the target.
+     */
+    void transfer(PatchPath from, PatchPath to, boolean copy) throws PatchConversionException {
+        checkSeparatePushes(from, false, false);
+        JsonNode known = valueOf(from);
+        if (known != null) {
+            if (known.isMissingNode()) {
+                throw new PatchConversionException(String.format("Cannot %s missing path %s", copy ? "copy" : "move", from));
+            }
+            if (copy) {
+                known = known.deepCopy();
+            } else {
+                unset(from);
+            }
+            if (to.endsWithIndex()) {
+                add(to, known);
+            } else {
+                // unlike an add, a transferred array replaces the member instead of being pushed to it
+                set(to, known);
+            }
+            return;
+        }
+        if (from.size() == 0 || to.size() == 0 || hasIndex(from) || hasIndex(to) || isTouched(from, true)
+                || isTouched(to.parent(), false) || (!copy && isAncestor(from, to))) {
+            throw new PatchConversionException(String.format("Cannot %s %s to %s without reading the document",
+                    copy ? "copy" : "move", from, to));
+        }
+        String key = to.toDot();
+        // the target is overwritten by the move, which is applied before all other updates
+        dropDescendants(key, key);
+        mongoConversion.getSet().remove(key);
+        mongoConversion.getUnset().remove(key);
+        dropPush(key);
+        // a move to an ancestor of the source already drops the source, unsetting it would change the moved value
+        mongoConversion.getMoves().add(new FieldMove(from.toDot(), key, copy || isAncestor(to, from)));
+        transferred.add(from.toDot());
+        transferred.add(key);
+        registerParents(from);
+        registerParents(to);
+    }
+
+    /**
+     * Checks the expected value of a path. If the value is known from an earlier operation the check is done
+     * right away, otherwise it becomes a predicate of the update filter. The filters are checked before the removes
+     * of array positions, so the predicate refers to the positions before the patch, like the unsets.
+     */
+    void test(PatchPath path, JsonNode value) throws PatchConversionException {
+        checkSeparatePushes(path, false, false);
+        JsonNode known = valueOf(path);
+        if (known != null) {
+            if (!LazyValueNode.tree(known).equals(LazyValueNode.tree(value))) {
+                throw new PatchConversionException(String.format("Test of path %s failed", path));
+            }
+            return;
+        }
+        if (isTouched(path, true)) {
+            throw new PatchConversionException(String.format(
+                    "Cannot test path %s changed by an earlier operation without reading the document", path));
+        }
+        JsonNode previous = mongoConversion.getTest().put(beforeRemoves(path).toDot(), value);
+        if (previous != null && !LazyValueNode.tree(previous).equals(LazyValueNode.tree(value))) {
+            throw new PatchConversionException(String.format("Test of path %s failed", path));
+        }
+    }
+
+    /**
+     * @return the value of the path if it is known from an earlier operation, a missing node if an earlier
+     * operation set a parent without this path, or {@code null} if it is unknown.
+     */
+    private JsonNode valueOf(PatchPath path) {
+        Map<String, Integer> positions = mongoConversion.getPushPositions();
+        for (int i = 1; i < path.size() && !positions.isEmpty(); i++) {
+            // the sets run before the pushes, so a position after the pushed values is shifted back
+            Integer first = path.isIndex(i) ? positions.get(path.toDot(i)) : null;
+            int position = first == null ? -1 : arrayIndex(path.segment(i));
+            List<JsonNode> values = position < 0 ? null : mongoConversion.getPush().get(path.toDot(i));
+            if (values == null || position < first) {
+                continue;
+            }
+            if (position >= first + values.size()) {
+                path = path.withIndex(i, position - values.size());
+                continue;
+            }
+            JsonNode pushed = values.get(position - first);
+            JsonNode value = i == path.size() - 1 ? pushed
+                    : navigate(LazyValueNode.tree(pushed), path, i + 1, path.size());
+            return value == null ? MissingNode.getInstance() : value;
+        }
+        Map<String, JsonNode> set = mongoConversion.getSet();
+        if (set.isEmpty()) {
+            return null;
+        }
+        for (int i = 1; i <= path.size(); i++) {
+            JsonNode ancestor = set.get(path.toDot(i));
+            if (ancestor != null) {
+                // a value which is moved or copied as a whole is not looked into
+                JsonNode value = i == path.size() ? ancestor
+                        : navigate(LazyValueNode.tree(ancestor), path, i, path.size());
+                return value == null ? MissingNode.getInstance() : value;
+            }
+        }
+        return null;
+    }
+
+    private boolean isTouched(PatchPath path, boolean includeDescendants) {
+        // the unsets refer to the positions before the patch
+        PatchPath original = beforeRemoves(path);
+        if (includeDescendants && (parents.contains(path.toDot()) || parents.contains(original.toDot()))) {
+            return true;
+        }
+        for (int i = 1; i <= path.size(); i++) {
+            String key = path.toDot(i);
+            if (mongoConversion.getSet().containsKey(key) || mongoConversion.getUnset().contains(original.toDot(i))
+                    || mongoConversion.getPush().containsKey(key) || transferred.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasIndex(PatchPath path) {
+        for (int i = 0; i < path.size(); i++) {
+            if (path.isIndex(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isAncestor(PatchPath ancestor, PatchPath path) {
+        if (ancestor.size() > path.size()) {
+            return false;
+        }
+        for (int i = 0; i < ancestor.size(); i++) {
+            if (!ancestor.segment(i).equals(path.segment(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops the updates below a path which is overwritten.
+     *
+     * @param key      The path with the current positions, which the sets and pushes use.
+     * @param original The path with the positions before the patch, which the unsets use.
+     */
+    private void dropDescendants(String key, String original) {
+        if (parents.contains(key) || parents.contains(original)) {
+            String prefix = key + ".";
+            String originalPrefix = original + ".";
+            mongoConversion.getSet().keySet().removeIf(k -> k.startsWith(prefix));
+            mongoConversion.getUnset().removeIf(k -> k.startsWith(originalPrefix));
+            mongoConversion.getPush().keySet().removeIf(k -> k.startsWith(prefix));
+            mongoConversion.getSeparatePushes().removeIf(push -> push.getKey().startsWith(prefix));
+        }
+    }
+
+    private boolean hasUnsetAncestor(PatchPath path) {
+        Set<String> unset = mongoConversion.getUnset();
+        if (unset.isEmpty()) {
+            return false;
+        }
+        for (int i = 1; i < path.size(); i++) {
+            // a removed array position shifts the elements, so the path refers to another element
+            if (!path.isIndex(i - 1) && unset.contains(path.toDot(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Applies the operation to the value of an ancestor path which is already being set, if there is one and the
+     * value has the structure the operation expects.
+     */
+    private boolean mergeIntoSetAncestor(PatchPath path, JsonNode value, Merge merge) {
+        Map<String, JsonNode> set = mongoConversion.getSet();
+        if (set.isEmpty()) {
+            return false;
+        }
+        for (int i = 1; i < path.size(); i++) {
+            String key = path.toDot(i);
+            JsonNode ancestor = set.get(key);
+            if (ancestor != null) {
+                JsonNode tree = LazyValueNode.tree(ancestor);
+                JsonNode container = navigate(tree, path, i, path.size() - 1);
+                if (container != null
+                        && merge.apply(container, path.segment(path.size() - 1), LazyValueNode.tree(value))) {
+                    set.put(key, tree);
+                    return true;
+                }
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static JsonNode navigate(JsonNode node, PatchPath path, int from, int to) {
+        for (int i = from; i < to && node != null; i++) {
+            if (node.isObject()) {
+                node = node.get(path.segment(i));
+            } else if (node.isArray() && arrayIndex(path.segment(i)) >= 0) {
+                node = node.get(arrayIndex(path.segment(i)));
+            } else {
+                node = null;
+            }
+        }
+        return node;
+    }
+
+    static int arrayIndex(String segment) {
+        if (segment.isEmpty() || segment.length() > 9) {
+            return -1;
+        }
+        for (int i = 0; i < segment.length(); i++) {
+            if (segment.charAt(i) < '0' || segment.charAt(i) > '9') {
+                return -1;
+            }
+        }
+        return Integer.parseInt(segment);
+    }
+
+    private void registerParents(PatchPath path) {
+        for (int i = 1; i < path.size(); i++) {
+            parents.add(path.toDot(i));
+        }
+    }
+
+    /**
+     * The ways an operation can be merged into an existing value.
+     */
+    private enum Merge {
+        SET {
+            @Override
+            boolean apply(JsonNode container, String segment, JsonNode value) {
+                if (container.isObject()) {
+                    ((ObjectNode) container).set(segment, value);
+                    return true;
+                }
+                int index = index(container, segment);
+                if (index >= 0 && index < container.size()) {
+                    ((ArrayNode) container).set(index, value);
+                    return true;
+                }
+                return false;
+            }
+        },
+        REMOVE {
+            @Override
+            boolean apply(JsonNode container, String segment, JsonNode value) {
+                if (container.isObject()) {
+                    ((ObjectNode) container).remove(segment);
+                    return true;
+                }
+                int index = index(container, segment);
+                if (index >= 0 && index < container.size()) {
+                    ((ArrayNode) container).remove(index);
+                    return true;
+                }
+                return false;
+            }
+        },
+        INSERT {
+            @Override
+            boolean apply(JsonNode container, String segment, JsonNode value) {
+                if (container.isObject()) {
+                    // a segment like "0" or "-" is a member name in an object
+                    ((ObjectNode) container).set(segment, value);
+                    return true;
+                }
+                if (container.isArray() && PatchPath.APPEND.equals(segment)) {
+                    ((ArrayNode) container).add(value);
+                    return true;
+                }
+                int index = index(container, segment);
+                if (index >= 0 && index <= container.size()) {
+                    ((ArrayNode) container).insert(index, value);
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        abstract boolean apply(JsonNode container, String segment, JsonNode value);
+
+        private static int index(JsonNode container, String segment) {
+            return container.isArray() ? arrayIndex(segment) : -1;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.onepointltd.json.converter;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a JSON patch cannot be converted to Mongo updates, either because it fails one of its own test
+ * operations or because it cannot be expressed without reading the document first.
+ * <p>
+ * A successful conversion does not make the patch atomic either. It becomes several updates executed one after the
+ * other, each with the test predicates which apply before it. A document changed by someone else between two of
+ * them can leave the patch partly applied, which only a transaction around the updates prevents.
+ */
+public class PatchConversionException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    PatchConversionException(String message) {
+        super(message);
+    }
+}
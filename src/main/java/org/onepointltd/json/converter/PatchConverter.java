@@ -0,0 +1,328 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.bson.BsonDocument;
+import org.bson.BsonInvalidOperationException;
+import org.bson.json.JsonParseException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+
+/**
+ * An immutable converter of JSON patches, created with a {@link Builder}. All options, including the prefixes and
+ * the output format, are fixed when the converter is built, so a single instance can be shared by all threads of an
+ * application without any synchronization. The Jackson mapper and the BSON codec are shared by all converters, so
+ * building one is cheap and nothing is set up per call. Both formats are written straight to the output, without
+ * building a string per update.
+ * <p>
+ * Example:
+ * <pre>
+ * PatchConverter converter = PatchConverter.builder()
+ *         .prefixes("customer")
+ *         .outputFormat(OutputFormat.BULK)
+ *         .filter("{\"_id\": 1}")
+ *         .build();
+ * converter.write(patch, "customers", out);
+ * </pre>
+ */
+public final class PatchConverter {
+
+    private final JsonPatchToMongoUpdate converter;
+
+    private final boolean ignoreUnset;
+
+    private final ArrayStrategy arrayStrategy;
+
+    private final String[] prefixes;
+
+    private final OutputFormat outputFormat;
+
+    private final String filter;
+
+    private final BsonDocument filterDocument;
+
+    private final long maxUpdateSize;
+
+    private final boolean lazyValues;
+
+    private final ConversionPlanCache planCache;
+
+    private final ConversionListener listener;
+
+    private PatchConverter(Builder builder) {
+        this.ignoreUnset = builder.ignoreUnset;
+        this.arrayStrategy = builder.arrayStrategy;
+        this.prefixes = builder.prefixes.clone();
+        this.outputFormat = builder.outputFormat;
+        this.filter = builder.filter;
+        this.filterDocument = builder.filterDocument;
+        this.maxUpdateSize = builder.maxUpdateSize;
+        this.lazyValues = builder.lazyValues;
+        this.planCache = builder.planCache;
+        this.listener = builder.listener;
+        // never handed out, so its configuration cannot change
+        converter = new JsonPatchToMongoUpdate();
+        converter.setIgnoreUnset(ignoreUnset);
+        converter.setArrayStrategy(arrayStrategy);
+        converter.setMaxUpdateSize(maxUpdateSize);
+        converter.setLazyValues(lazyValues);
+        converter.setPlanCache(planCache);
+        converter.setListener(listener);
+    }
+
+    /**
+     * @return a builder with the defaults: unsets are kept, appended arrays, no prefixes, the script format, the
+     * empty filter, the {@link JsonPatchToMongoUpdate#DEFAULT_MAX_UPDATE_SIZE default update size}, values read into
+     * trees, no plan cache and no listener.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return a builder with the options of this converter, to build a variant of it.
+     */
+    public Builder toBuilder() {
+        Builder builder = new Builder();
+        builder.ignoreUnset = ignoreUnset;
+        builder.arrayStrategy = arrayStrategy;
+        builder.prefixes = prefixes;
+        builder.outputFormat = outputFormat;
+        builder.filter = filter;
+        builder.filterDocument = filterDocument;
+        builder.maxUpdateSize = maxUpdateSize;
+        builder.lazyValues = lazyValues;
+        builder.planCache = planCache;
+        builder.listener = listener;
+        return builder;
+    }
+
+    /**
+     * @see JsonPatchToMongoUpdate#convert(Reader)
+     */
+    public MongoConversion convert(Reader patch) throws IOException {
+        return converter.convert(patch);
+    }
+
+    /**
+     * @see JsonPatchToMongoUpdate#diff(JsonNode, JsonNode)
+     */
+    public MongoConversion diff(JsonNode oldDocument, JsonNode newDocument) throws PatchConversionException {
+        return converter.diff(oldDocument, newDocument);
+    }
+
+    /**
+     * Converts the patch to the MongoDB commands, with the keys below the prefixes of this converter.
+     *
+     * @see JsonPatchToMongoUpdate#convertToMongoUpdates(Reader, String, String, String...)
+     */
+    public MongoCommands convertToMongoUpdates(Reader patch, String query, String collection) throws IOException {
+        return converter.convertToMongoUpdates(patch, query, collection, prefixes);
+    }
+
+    /**
+     * Converts a conversion to the MongoDB commands, with the keys below the prefixes of this converter.
+     */
+    public MongoCommands convertToMongoUpdates(MongoConversion mongoConversion, String query, String collection) {
+        return converter.convertToMongoUpdates(mongoConversion, query, collection, prefixes);
+    }
+
+    /**
+     * Converts the patch to update documents for the Java driver, with the keys below the prefixes of this converter.
+     *
+     * @see JsonPatchToMongoUpdate#convertToDocuments(Reader, String...)
+     */
+    public MongoUpdateDocuments convertToDocuments(Reader patch) throws IOException {
+        return converter.convertToDocuments(patch, prefixes);
+    }
+
+    /**
+     * Converts the patch and writes it to the output in the output format of this converter: either the MongoDB
+     * script, or one JSON document per update with the collection, the filter and the update or the pipeline, each
+     * on its own line. The document to update is found with the filter of this converter.
+     *
+     * @param patch      The reader used to read the JSON patch.
+     * @param collection The name of the collection which is being updated.
+     * @param out        The output, which is not closed.
+     * @throws IOException the patch cannot be read or converted, or the output cannot be written.
+     */
+    public void write(Reader patch, String collection, OutputStream out) throws IOException {
+        if (outputFormat == OutputFormat.SCRIPT) {
+            converter.writeMongoUpdates(patch, filter, collection, false, out, prefixes);
+            return;
+        }
+        converter.writeBulkCommands(patch, filterDocument, collection, out, prefixes);
+    }
+
+    public boolean isIgnoreUnset() {
+        return ignoreUnset;
+    }
+
+    public ArrayStrategy getArrayStrategy() {
+        return arrayStrategy;
+    }
+
+    /**
+     * @return a copy of the prefixes of the keys.
+     */
+    public String[] getPrefixes() {
+        return prefixes.clone();
+    }
+
+    public OutputFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * @return the filter used by {@link #write}, as it was given to the builder.
+     */
+    public String getFilter() {
+        return filter;
+    }
+
+    public long getMaxUpdateSize() {
+        return maxUpdateSize;
+    }
+
+    public boolean isLazyValues() {
+        return lazyValues;
+    }
+
+    public ConversionPlanCache getPlanCache() {
+        return planCache;
+    }
+
+    public ConversionListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Collects the options of a {@link PatchConverter}. A builder is not thread safe, but it can be used to build
+     * any number of converters.
+     */
+    public static final class Builder {
+
+        private boolean ignoreUnset;
+
+        private ArrayStrategy arrayStrategy = ArrayStrategy.APPEND;
+
+        private String[] prefixes = new String[0];
+
+        private OutputFormat outputFormat = OutputFormat.SCRIPT;
+
+        private String filter = "{}";
+
+        private BsonDocument filterDocument = new BsonDocument();
+
+        private long maxUpdateSize = JsonPatchToMongoUpdate.DEFAULT_MAX_UPDATE_SIZE;
+
+        private boolean lazyValues;
+
+        private ConversionPlanCache planCache;
+
+        private ConversionListener listener;
+
+        private Builder() {
+        }
+
+        /**
+         * @param ignoreUnset Whether removes are left out of the updates.
+         */
+        public Builder ignoreUnset(boolean ignoreUnset) {
+            this.ignoreUnset = ignoreUnset;
+            return this;
+        }
+
+        public Builder arrayStrategy(ArrayStrategy arrayStrategy) {
+            if (arrayStrategy == null) {
+                throw new IllegalArgumentException("The array strategy must not be null");
+            }
+            this.arrayStrategy = arrayStrategy;
+            return this;
+        }
+
+        /**
+         * @param prefixes The prefixes for the json elements. If a field is called "notes.note", then with the prefix
+         *                 "customer" the field will be converted to "customer.notes.note".
+         */
+        public Builder prefixes(String... prefixes) {
+            this.prefixes = prefixes.clone();
+            return this;
+        }
+
+        /**
+         * @param outputFormat The format used by {@link PatchConverter#write}.
+         */
+        public Builder outputFormat(OutputFormat outputFormat) {
+            if (outputFormat == null) {
+                throw new IllegalArgumentException("The output format must not be null");
+            }
+            this.outputFormat = outputFormat;
+            return this;
+        }
+
+        /**
+         * @param filter The filter of the document updated by {@link PatchConverter#write}, as a JSON object. It is
+         *               parsed once here and not for every patch.
+         * @throws IllegalArgumentException the filter is not a JSON object.
+         */
+        public Builder filter(String filter) {
+            if (filter == null) {
+                throw new IllegalArgumentException("The filter must not be null");
+            }
+            try {
+                this.filterDocument = BsonDocument.parse(filter);
+            } catch (JsonParseException | BsonInvalidOperationException e) {
+                throw new IllegalArgumentException(String.format("The filter %s is not a JSON object", filter), e);
+            }
+            this.filter = filter;
+            return this;
+        }
+
+        /**
+         * @param maxUpdateSize The maximum estimated BSON size of a $set or $push update in bytes, above which it is
+         *                      split into several updates.
+         * @see JsonPatchToMongoUpdate#setMaxUpdateSize(long)
+         */
+        public Builder maxUpdateSize(long maxUpdateSize) {
+            if (maxUpdateSize <= 0) {
+                throw new IllegalArgumentException("The maximum update size must be positive");
+            }
+            this.maxUpdateSize = maxUpdateSize;
+            return this;
+        }
+
+        /**
+         * @param lazyValues Whether object and array values are copied from their tokens instead of being read into
+         *                   trees.
+         * @see JsonPatchToMongoUpdate#setLazyValues(boolean)
+         */
+        public Builder lazyValues(boolean lazyValues) {
+            this.lazyValues = lazyValues;
+            return this;
+        }
+
+        /**
+         * @param planCache The cache of conversion templates, which may be shared, or {@code null}.
+         * @see JsonPatchToMongoUpdate#setPlanCache(ConversionPlanCache)
+         */
+        public Builder planCache(ConversionPlanCache planCache) {
+            this.planCache = planCache;
+            return this;
+        }
+
+        /**
+         * @param listener The listener of the measurements, or {@code null}. It is called from all threads using
+         *                 the converter.
+         */
+        public Builder listener(ConversionListener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        public PatchConverter build() {
+            return new PatchConverter(this);
+        }
+    }
+}
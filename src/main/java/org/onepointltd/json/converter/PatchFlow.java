@@ -0,0 +1,54 @@
+package org.onepointltd.json.converter;
+
+/**
+ * The interfaces of reactive streams with backpressure used by the {@link StreamingPatchConverter}. They have the
+ * same methods and the same contract as the interfaces of {@code java.util.concurrent.Flow}, which is not available
+ * on Java 8, so that they can be bridged to it or to any Reactive Streams library with method references.
+ */
+public final class PatchFlow {
+
+    private PatchFlow() {
+    }
+
+    /**
+     * Produces items for subscribers, as many as they requested.
+     */
+    @FunctionalInterface
+    public interface Publisher<T> {
+
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * Receives the items of a publisher. The methods are called one at a time.
+     */
+    public interface Subscriber<T> {
+
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable error);
+
+        void onComplete();
+    }
+
+    /**
+     * Links a subscriber to a publisher.
+     */
+    public interface Subscription {
+
+        /**
+         * Asks for up to n more items. May be called from any thread, also from within {@code onNext}.
+         */
+        void request(long n);
+
+        void cancel();
+    }
+
+    /**
+     * A subscriber which publishes the items it transforms.
+     */
+    public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+    }
+}
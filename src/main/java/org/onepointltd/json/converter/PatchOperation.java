@@ -0,0 +1,40 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A single operation of a JSON patch as it was read, with its paths still in the JSON pointer format.
+ */
+final class PatchOperation {
+
+    private final String op;
+
+    private final String path;
+
+    private final String from;
+
+    private final JsonNode value;
+
+    PatchOperation(String op, String path, String from, JsonNode value) {
+        this.op = op;
+        this.path = path;
+        this.from = from;
+        this.value = value;
+    }
+
+    String getOp() {
+        return op;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    String getFrom() {
+        return from;
+    }
+
+    JsonNode getValue() {
+        return value;
+    }
+}
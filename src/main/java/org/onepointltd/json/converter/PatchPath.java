@@ -0,0 +1,188 @@
+package org.onepointltd.json.converter;
+
+import java.util.Arrays;
+
+/**
+ * Immutable, pre-parsed path of a patch operation. The path is split into its segments in a single pass
+ * and segments which address an array position (a number or the RFC 6902 "-" append marker) are flagged.
+ */
+final class PatchPath {
+
+    static final String APPEND = "-";
+
+    private static final String[] NO_SEGMENTS = new String[0];
+
+    private final String[] segments;
+
+    private final boolean[] indexes;
+
+    private String dot;
+
+    private PatchPath(String[] segments, boolean[] indexes) {
+        this.segments = segments;
+        this.indexes = indexes;
+    }
+
+    /**
+     * Parses a JSON pointer as described in RFC 6901, unescaping "~1" to "/" and "~0" to "~".
+     *
+     * @param pointer The JSON pointer, like e.g. "/contactPoints/contactPoints/0".
+     * @return the parsed path.
+     */
+    static PatchPath fromPointer(String pointer) {
+        return parse(pointer, '/', true);
+    }
+
+    /**
+     * Parses a path in the Mongo dot notation, like e.g. "contactPoints.contactPoints.0".
+     *
+     * @param dotted The path in dot notation.
+     * @return the parsed path.
+     */
+    static PatchPath fromDot(String dotted) {
+        return parse(dotted, '.', false);
+    }
+
+    private static PatchPath parse(String path, char separator, boolean unescape) {
+        int length = path.length();
+        int start = length > 0 && path.charAt(0) == separator ? 1 : 0;
+        if (start >= length) {
+            return new PatchPath(NO_SEGMENTS, new boolean[0]);
+        }
+        int count = 1;
+        for (int i = start; i < length; i++) {
+            if (path.charAt(i) == separator) {
+                count++;
+            }
+        }
+        String[] segments = new String[count];
+        boolean[] indexes = new boolean[count];
+        StringBuilder segment = new StringBuilder();
+        boolean digits = true;
+        int pos = 0;
+        for (int i = start; i <= length; i++) {
+            char c = i < length ? path.charAt(i) : separator;
+            if (c == separator) {
+                String value = segment.toString();
+                segments[pos] = value;
+                indexes[pos] = (digits && !value.isEmpty()) || APPEND.equals(value);
+                pos++;
+                segment.setLength(0);
+                digits = true;
+                continue;
+            }
+            if (unescape && c == '~' && i + 1 < length) {
+                char next = path.charAt(i + 1);
+                if (next == '0' || next == '1') {
+                    c = next == '0' ? '~' : '/';
+                    i++;
+                }
+            }
+            digits &= c >= '0' && c <= '9';
+            segment.append(c);
+        }
+        return new PatchPath(segments, indexes);
+    }
+
+    int size() {
+        return segments.length;
+    }
+
+    String segment(int i) {
+        return segments[i];
+    }
+
+    boolean isIndex(int i) {
+        return indexes[i];
+    }
+
+    /**
+     * @return {@code true} in case the last segment addresses an array position.
+     */
+    boolean endsWithIndex() {
+        return segments.length > 0 && indexes[segments.length - 1];
+    }
+
+    /**
+     * @return the path without its last segment.
+     */
+    PatchPath parent() {
+        if (segments.length == 0) {
+            return this;
+        }
+        int length = segments.length - 1;
+        return new PatchPath(Arrays.copyOf(segments, length), Arrays.copyOf(indexes, length));
+    }
+
+    /**
+     * @return this path with the segment at the given position replaced by an array index.
+     */
+    PatchPath withIndex(int i, int index) {
+        String[] replaced = segments.clone();
+        boolean[] replacedIndexes = indexes.clone();
+        replaced[i] = Integer.toString(index);
+        replacedIndexes[i] = true;
+        return new PatchPath(replaced, replacedIndexes);
+    }
+
+    /**
+     * @param length   The number of leading segments which are replaced.
+     * @param segments The segments which replace them.
+     * @return this path with its leading segments replaced, like e.g. "/customers/42/name" with "customer" in
+     * place of its first 2 segments becomes "/customer/name".
+     */
+    PatchPath rebase(int length, String[] segments) {
+        int size = segments.length + this.segments.length - length;
+        String[] rebased = Arrays.copyOf(segments, size);
+        boolean[] rebasedIndexes = new boolean[size];
+        for (int i = 0; i < segments.length; i++) {
+            rebasedIndexes[i] = PatchCoalescer.arrayIndex(segments[i]) >= 0;
+        }
+        System.arraycopy(this.segments, length, rebased, segments.length, size - segments.length);
+        System.arraycopy(indexes, length, rebasedIndexes, segments.length, size - segments.length);
+        return new PatchPath(rebased, rebasedIndexes);
+    }
+
+    /**
+     * @param length The number of leading segments.
+     * @return the leading segments of this path in the Mongo dot notation.
+     */
+    String toDot(int length) {
+        if (length == segments.length) {
+            return toDot();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                sb.append('.');
+            }
+            sb.append(segments[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return this path in the Mongo dot notation.
+     */
+    String toDot() {
+        if (dot == null) {
+            dot = String.join(".", segments);
+        }
+        return dot;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof PatchPath && Arrays.equals(segments, ((PatchPath) o).segments));
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(segments);
+    }
+
+    @Override
+    public String toString() {
+        return toDot();
+    }
+}
@@ -0,0 +1,49 @@
+package org.onepointltd.json.converter;
+
+import org.bson.BsonDocument;
+
+import java.io.Reader;
+
+/**
+ * A JSON patch together with the document it targets: the filter used to find the document and the
+ * collection it lives in.
+ */
+public class PatchRequest {
+
+    private final Reader patch;
+
+    private final BsonDocument filter;
+
+    private final String collection;
+
+    private final String[] prefixes;
+
+    /**
+     * @param patch      The reader used to read the JSON patch.
+     * @param filter     The filter used to find the document, like e.g: { _id: ObjectId("58a46cc6f7076692b7693c4e") }
+     * @param collection The name of the collection which is being updated.
+     * @param prefixes   The prefixes for the json elements.
+     */
+    public PatchRequest(Reader patch, BsonDocument filter, String collection, String... prefixes) {
+        this.patch = patch;
+        this.filter = filter;
+        this.collection = collection;
+        this.prefixes = prefixes;
+    }
+
+    public Reader getPatch() {
+        return patch;
+    }
+
+    public BsonDocument getFilter() {
+        return filter;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public String[] getPrefixes() {
+        return prefixes;
+    }
+}
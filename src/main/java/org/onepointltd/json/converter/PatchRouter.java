@@ -0,0 +1,381 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Converts an envelope, a single JSON patch whose operations target many documents, to one conversion per document.
+ * The document of an operation is found with the routes of the router: a route is a JSON pointer template like
+ * "/customers/{_id:objectId}", which matches the leading segments of a path. The literal segments have to be equal
+ * and each placeholder gives the value of a field of the filter, converted to its type. The rest of the path is the
+ * path in the document, below the prefixes of the route. The first route which matches a path is used.
+ * <p>
+ * The envelope is read once and each operation is applied to the conversion of its document right away, so the
+ * operations of a document keep their order even if they are interleaved with others. A move or copy has to stay
+ * within one document.
+ * <p>
+ * Example:
+ * <pre>
+ * PatchRouter router = PatchRouter.builder(converter)
+ *         .route("/customers/{_id:objectId}", "customers", "customer")
+ *         .route("/orders/{orderNo:long}/lines/{line:int}", "orderLines")
+ *         .build();
+ * BulkWritePlan plan = router.convertToBulkWrite(envelope);
+ * </pre>
+ * The placeholder types are {@code string} (the default), {@code int}, {@code long} and {@code objectId}. A router is
+ * immutable and can be shared by multiple threads, like the converter it uses.
+ */
+public final class PatchRouter {
+
+    private final JsonPatchToMongoUpdate converter;
+
+    private final List<Route> routes;
+
+    private PatchRouter(Builder builder) {
+        this.converter = builder.converter;
+        this.routes = new ArrayList<>(builder.routes);
+    }
+
+    /**
+     * @param converter The converter whose array strategy and value handling are used for the operations, and which
+     *                  builds the update documents.
+     * @return a builder without routes.
+     */
+    public static Builder builder(JsonPatchToMongoUpdate converter) {
+        return new Builder(converter);
+    }
+
+    /**
+     * Splits the envelope into the conversions of its documents.
+     *
+     * @param envelope The reader used to read the JSON patch.
+     * @return the conversions grouped by collection.
+     * @throws IOException the envelope cannot be read, an operation matches no route, or the operations of a
+     *                     document cannot be converted.
+     */
+    public RoutedConversions route(Reader envelope) throws IOException {
+        Map<Target, TargetConversion> conversions = new LinkedHashMap<>();
+        boolean lazy = converter.isLazyValues();
+        ArrayStrategy arrayStrategy = converter.getArrayStrategy();
+        try (JsonParser parser = converter.getJsonFactory().createParser(envelope)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new JsonParseException(parser, "A JSON patch must be an array of operations");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                PatchOperation operation = converter.readOperation(parser, lazy);
+                Match match = match(operation.getPath());
+                PatchPath from = null;
+                if (operation.getFrom() != null) {
+                    Match fromMatch = match(operation.getFrom());
+                    if (!fromMatch.target.equals(match.target)) {
+                        throw new PatchConversionException(String.format("Cannot %s %s to %s in another document",
+                                operation.getOp(), operation.getFrom(), operation.getPath()));
+                    }
+                    from = fromMatch.path;
+                }
+                TargetConversion conversion = conversions.computeIfAbsent(match.target,
+                        (target) -> new TargetConversion(arrayStrategy));
+                converter.applyOperation(conversion.coalescer, operation.getOp(), match.path, from,
+                        operation.getValue());
+            }
+            // the documents after an element which is not an operation would not be updated at all
+            JsonPatchToMongoUpdate.checkEndOfPatch(parser);
+        }
+        RoutedConversions routed = new RoutedConversions();
+        for (Map.Entry<Target, TargetConversion> entry : conversions.entrySet()) {
+            TargetConversion conversion = entry.getValue();
+            conversion.coalescer.finish();
+            routed.add(new PatchTarget(entry.getKey().collection, entry.getKey().filter, conversion.mongoConversion));
+        }
+        return routed;
+    }
+
+    /**
+     * Converts the envelope to a bulk write plan. The updates of each document are kept together, in the order of
+     * its operations, and the documents of a collection are in the order in which they were first seen.
+     *
+     * @param envelope The reader used to read the JSON patch.
+     * @return the ordered updates grouped by collection.
+     * @throws IOException the envelope cannot be read or converted.
+     * @see #route(Reader)
+     */
+    public BulkWritePlan convertToBulkWrite(Reader envelope) throws IOException {
+        BulkWritePlan plan = new BulkWritePlan();
+        for (List<PatchTarget> targets : route(envelope).getTargets().values()) {
+            for (PatchTarget target : targets) {
+                plan.add(target.getCollection(), target.getFilter(),
+                        converter.convertToDocuments(target.getConversion()));
+            }
+        }
+        return plan;
+    }
+
+    private Match match(String pointer) throws PatchConversionException {
+        PatchPath path = PatchPath.fromPointer(pointer);
+        for (Route route : routes) {
+            BsonDocument filter = route.match(path, pointer);
+            if (filter != null) {
+                PatchPath documentPath = path.rebase(route.segments.length, route.prefix);
+                if (documentPath.size() == 0) {
+                    throw new PatchConversionException(String.format(
+                            "The path %s addresses a whole document, which cannot be updated", pointer));
+                }
+                return new Match(new Target(route.collection, filter), documentPath);
+            }
+        }
+        throw new PatchConversionException(String.format("The path %s matches no route", pointer));
+    }
+
+    /**
+     * Collects the routes of a {@link PatchRouter}. A builder is not thread safe.
+     */
+    public static final class Builder {
+
+        private final JsonPatchToMongoUpdate converter;
+
+        private final List<Route> routes = new ArrayList<>();
+
+        private Builder(JsonPatchToMongoUpdate converter) {
+            if (converter == null) {
+                throw new IllegalArgumentException("The converter must not be null");
+            }
+            this.converter = converter;
+        }
+
+        /**
+         * Adds a route, which is used for the paths no earlier route matches.
+         *
+         * @param template   The JSON pointer template, like e.g. "/customers/{_id:objectId}". A placeholder is
+         *                   a whole segment with the name of a field of the filter and optionally its type.
+         * @param collection The name of the collection of the documents.
+         * @param prefixes   The prefixes of the paths in the documents. If a field is called "notes.note", then with
+         *                   the prefix "customer" the field will be converted to "customer.notes.note".
+         * @throws IllegalArgumentException the template has no placeholder, a placeholder has an unknown type or
+         *                                  two placeholders have the same field.
+         */
+        public Builder route(String template, String collection, String... prefixes) {
+            if (collection == null || collection.isEmpty()) {
+                throw new IllegalArgumentException("The collection of a route must not be empty");
+            }
+            routes.add(Route.parse(template, collection, prefixes));
+            return this;
+        }
+
+        public PatchRouter build() {
+            return new PatchRouter(this);
+        }
+    }
+
+    /**
+     * A JSON pointer template, the collection of its documents and the prefixes of their paths.
+     */
+    private static final class Route {
+
+        private final String[] segments;
+
+        /**
+         * The field of each placeholder segment, or {@code null} for a literal segment.
+         */
+        private final String[] fields;
+
+        private final FieldType[] types;
+
+        private final String collection;
+
+        private final String[] prefix;
+
+        private Route(String[] segments, String[] fields, FieldType[] types, String collection, String[] prefix) {
+            this.segments = segments;
+            this.fields = fields;
+            this.types = types;
+            this.collection = collection;
+            this.prefix = prefix;
+        }
+
+        static Route parse(String template, String collection, String[] prefixes) {
+            PatchPath path = PatchPath.fromPointer(template);
+            int size = path.size();
+            String[] segments = new String[size];
+            String[] fields = new String[size];
+            FieldType[] types = new FieldType[size];
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i < size; i++) {
+                String segment = path.segment(i);
+                segments[i] = segment;
+                if (segment.length() > 2 && segment.startsWith("{") && segment.endsWith("}")) {
+                    String placeholder = segment.substring(1, segment.length() - 1);
+                    int colon = placeholder.indexOf(':');
+                    fields[i] = colon < 0 ? placeholder : placeholder.substring(0, colon);
+                    types[i] = colon < 0 ? FieldType.STRING : FieldType.of(placeholder.substring(colon + 1), template);
+                    if (fields[i].isEmpty() || !seen.add(fields[i])) {
+                        throw new IllegalArgumentException(String.format(
+                                "The placeholder %s of the route %s needs a field of its own", segment, template));
+                    }
+                }
+            }
+            if (seen.isEmpty()) {
+                throw new IllegalArgumentException(String.format(
+                        "The route %s has no placeholder to find the document with", template));
+            }
+            String prefix = String.join(".", prefixes);
+            String[] prefixSegments = prefix.isEmpty() ? new String[0] : prefix.split("\\.");
+            return new Route(segments, fields, types, collection, prefixSegments);
+        }
+
+        /**
+         * @return the filter of the document addressed by the path, or {@code null} if the route does not match.
+         */
+        BsonDocument match(PatchPath path, String pointer) throws PatchConversionException {
+            if (path.size() < segments.length) {
+                return null;
+            }
+            for (int i = 0; i < segments.length; i++) {
+                if (fields[i] == null && !segments[i].equals(path.segment(i))) {
+                    return null;
+                }
+            }
+            BsonDocument filter = new BsonDocument();
+            for (int i = 0; i < segments.length; i++) {
+                if (fields[i] != null) {
+                    filter.append(fields[i], types[i].toBson(path.segment(i), pointer));
+                }
+            }
+            return filter;
+        }
+    }
+
+    /**
+     * The type of the value of a filter field.
+     */
+    private enum FieldType {
+        STRING("string") {
+            @Override
+            BsonValue parse(String segment) {
+                return new BsonString(segment);
+            }
+        },
+        INT("int") {
+            @Override
+            BsonValue parse(String segment) {
+                return new BsonInt32(Integer.parseInt(segment));
+            }
+        },
+        LONG("long") {
+            @Override
+            BsonValue parse(String segment) {
+                return new BsonInt64(Long.parseLong(segment));
+            }
+        },
+        OBJECT_ID("objectId") {
+            @Override
+            BsonValue parse(String segment) {
+                return new BsonObjectId(new ObjectId(segment));
+            }
+        };
+
+        private final String name;
+
+        FieldType(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @throws IllegalArgumentException the segment is not a value of the type.
+         */
+        abstract BsonValue parse(String segment);
+
+        BsonValue toBson(String segment, String pointer) throws PatchConversionException {
+            try {
+                return parse(segment);
+            } catch (IllegalArgumentException e) {
+                throw new PatchConversionException(String.format("The segment %s of the path %s is not a valid %s",
+                        segment, pointer, name));
+            }
+        }
+
+        static FieldType of(String name, String template) {
+            for (FieldType type : values()) {
+                if (type.name.equals(name)) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException(String.format(
+                    "Unknown placeholder type %s in the route %s, use string, int, long or objectId", name, template));
+        }
+    }
+
+    /**
+     * A document: its collection and its filter.
+     */
+    private static final class Target {
+
+        private final String collection;
+
+        private final BsonDocument filter;
+
+        private Target(String collection, BsonDocument filter) {
+            this.collection = collection;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Target)) {
+                return false;
+            }
+            Target target = (Target) o;
+            return collection.equals(target.collection) && filter.equals(target.filter);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * collection.hashCode() + filter.hashCode();
+        }
+    }
+
+    private static final class Match {
+
+        private final Target target;
+
+        private final PatchPath path;
+
+        private Match(Target target, PatchPath path) {
+            this.target = target;
+            this.path = path;
+        }
+    }
+
+    /**
+     * The conversion of a document while the envelope is read.
+     */
+    private static final class TargetConversion {
+
+        private final MongoConversion mongoConversion = new MongoConversion();
+
+        private final PatchCoalescer coalescer;
+
+        private TargetConversion(ArrayStrategy arrayStrategy) {
+            coalescer = new PatchCoalescer(mongoConversion, arrayStrategy);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.onepointltd.json.converter;
+
+import org.bson.BsonDocument;
+
+/**
+ * The conversion of the operations of an envelope which target one document, found with a {@link PatchRouter}.
+ */
+public final class PatchTarget {
+
+    private final String collection;
+
+    private final BsonDocument filter;
+
+    private final MongoConversion conversion;
+
+    PatchTarget(String collection, BsonDocument filter, MongoConversion conversion) {
+        this.collection = collection;
+        this.filter = filter;
+        this.conversion = conversion;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    /**
+     * @return the filter of the document, with the values taken from the paths of the operations.
+     */
+    public BsonDocument getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return the conversion of the operations, with the paths relative to the document and the prefixes of the
+     * route already applied.
+     */
+    public MongoConversion getConversion() {
+        return conversion;
+    }
+}
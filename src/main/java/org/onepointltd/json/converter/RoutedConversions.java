@@ -0,0 +1,38 @@
+package org.onepointltd.json.converter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The conversions of an envelope routed by a {@link PatchRouter}, one per target document, grouped by collection.
+ */
+public class RoutedConversions {
+
+    private final Map<String, List<PatchTarget>> targets = new LinkedHashMap<>();
+
+    RoutedConversions() {
+    }
+
+    void add(PatchTarget target) {
+        targets.computeIfAbsent(target.getCollection(), (key) -> new ArrayList<>()).add(target);
+    }
+
+    /**
+     * @return the targets grouped by collection, in the order in which the collections and their documents were
+     * first seen in the envelope.
+     */
+    public Map<String, List<PatchTarget>> getTargets() {
+        return Collections.unmodifiableMap(targets);
+    }
+
+    /**
+     * @param collection The name of the collection.
+     * @return the targets of the collection or an empty list.
+     */
+    public List<PatchTarget> getTargets(String collection) {
+        return Collections.unmodifiableList(targets.getOrDefault(collection, Collections.emptyList()));
+    }
+}
@@ -0,0 +1,291 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converts a stream of JSON patches arriving as chunks of UTF-8 bytes into Mongo commands, without blocking. The
+ * patches are JSON arrays separated by whitespace, like e.g. newline delimited JSON, and may be split anywhere
+ * between the chunks. Each chunk is scanned once to find where the patches end, only the bytes of a patch which is
+ * not complete yet are kept, and each complete patch is converted right away on the thread delivering the chunk or
+ * the request.
+ * <p>
+ * The converter is a processor with backpressure: it requests the next chunk from upstream only once all the
+ * commands converted so far were requested downstream, so at most the patches of one chunk are held in memory.
+ * A patch which cannot be converted ends the stream with its error. The converter has a single subscriber.
+ */
+public class StreamingPatchConverter implements PatchFlow.Processor<ByteBuffer, MongoCommands> {
+
+    private final JsonPatchToMongoUpdate converter;
+
+    private final String query;
+
+    private final String collection;
+
+    private final String[] prefixes;
+
+    private final Queue<MongoCommands> converted = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong requested = new AtomicLong();
+
+    /**
+     * Serializes the draining of the converted commands, which may be started by the upstream and the downstream
+     * threads at the same time.
+     */
+    private final AtomicInteger drains = new AtomicInteger();
+
+    private volatile PatchFlow.Subscription upstream;
+
+    private volatile PatchFlow.Subscriber<? super MongoCommands> downstream;
+
+    private volatile boolean chunkRequested;
+
+    private volatile boolean done;
+
+    private volatile boolean cancelled;
+
+    private volatile Throwable error;
+
+    private boolean terminated;
+
+    /**
+     * The bytes of the patch which is not complete yet.
+     */
+    private byte[] pending = new byte[256];
+
+    private int pendingLength;
+
+    private int depth;
+
+    private boolean inString;
+
+    private boolean escaped;
+
+    /**
+     * @param converter  The converter used for each patch.
+     * @param query      The query of the commands, see {@link JsonPatchToMongoUpdate#convertToMongoUpdates}.
+     * @param collection The collection of the commands.
+     * @param prefixes   The prefixes for the json elements.
+     */
+    public StreamingPatchConverter(JsonPatchToMongoUpdate converter, String query, String collection,
+                                   String... prefixes) {
+        this.converter = converter;
+        this.query = query;
+        this.collection = collection;
+        this.prefixes = prefixes;
+    }
+
+    @Override
+    public void subscribe(PatchFlow.Subscriber<? super MongoCommands> subscriber) {
+        if (downstream != null) {
+            subscriber.onSubscribe(new PatchFlow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("The converter has a single subscriber"));
+            return;
+        }
+        downstream = subscriber;
+        subscriber.onSubscribe(new PatchFlow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    fail(new IllegalArgumentException("The number of requested commands must be positive"));
+                    return;
+                }
+                requested.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                PatchFlow.Subscription subscription = upstream;
+                if (subscription != null) {
+                    subscription.cancel();
+                }
+                converted.clear();
+            }
+        });
+        drain();
+    }
+
+    @Override
+    public void onSubscribe(PatchFlow.Subscription subscription) {
+        if (upstream != null) {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        if (cancelled) {
+            subscription.cancel();
+            return;
+        }
+        drain();
+    }
+
+    @Override
+    public void onNext(ByteBuffer chunk) {
+        chunkRequested = false;
+        if (done || cancelled || error != null) {
+            return;
+        }
+        try {
+            scan(chunk);
+        } catch (IOException | RuntimeException e) {
+            upstream.cancel();
+            fail(e);
+            return;
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        fail(error);
+    }
+
+    @Override
+    public void onComplete() {
+        if (depth > 0 || inString) {
+            fail(new JsonParseException(null, "The stream ended within a patch"));
+            return;
+        }
+        done = true;
+        drain();
+    }
+
+    /**
+     * Finds the ends of the patches in the chunk and converts each complete patch.
+     */
+    private void scan(ByteBuffer chunk) throws IOException {
+        byte[] data;
+        int offset;
+        if (chunk.hasArray()) {
+            data = chunk.array();
+            offset = chunk.arrayOffset() + chunk.position();
+        } else {
+            data = new byte[chunk.remaining()];
+            chunk.duplicate().get(data);
+            offset = 0;
+        }
+        int end = offset + chunk.remaining();
+        int start = depth > 0 ? offset : -1;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                }
+            } else if (b == '[' || b == '{') {
+                if (depth++ == 0) {
+                    start = i;
+                }
+            } else if (b == ']' || b == '}') {
+                if (--depth == 0) {
+                    convert(data, start, i + 1 - start);
+                    start = -1;
+                } else if (depth < 0) {
+                    throw new JsonParseException(null, String.format("Unexpected '%c' between patches", (char) b));
+                }
+            } else if (b == '"') {
+                if (depth == 0) {
+                    throw new JsonParseException(null, "A JSON patch must be an array of operations");
+                }
+                inString = true;
+            } else if (depth == 0 && b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                throw new JsonParseException(null, "A JSON patch must be an array of operations");
+            }
+        }
+        if (start >= 0) {
+            append(data, start, end - start);
+        }
+        chunk.position(chunk.limit());
+    }
+
+    private void convert(byte[] data, int offset, int length) throws IOException {
+        if (pendingLength > 0) {
+            append(data, offset, length);
+            data = pending;
+            offset = 0;
+            length = pendingLength;
+            pendingLength = 0;
+        }
+        MongoConversion mongoConversion;
+        try (JsonParser parser = converter.getJsonFactory().createParser(data, offset, length)) {
+            mongoConversion = converter.convert(parser);
+        }
+        converted.add(converter.convertToMongoUpdates(mongoConversion, query, collection, prefixes));
+    }
+
+    private void append(byte[] data, int offset, int length) {
+        if (pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+        }
+        System.arraycopy(data, offset, pending, pendingLength, length);
+        pendingLength += length;
+    }
+
+    private void fail(Throwable failure) {
+        if (error == null) {
+            error = failure;
+        }
+        drain();
+    }
+
+    /**
+     * Hands the converted commands to the subscriber as far as they were requested, terminates the stream when it
+     * is complete and requests the next chunk when all the commands were handed over.
+     */
+    private void drain() {
+        if (drains.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            PatchFlow.Subscriber<? super MongoCommands> subscriber = downstream;
+            if (subscriber != null && !terminated && !cancelled) {
+                long demand = requested.get();
+                long emitted = 0;
+                MongoCommands commands;
+                while (emitted < demand && error == null && (commands = converted.poll()) != null) {
+                    subscriber.onNext(commands);
+                    emitted++;
+                }
+                if (emitted > 0 && demand != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+                if (error != null) {
+                    terminated = true;
+                    converted.clear();
+                    subscriber.onError(error);
+                } else if (done && converted.isEmpty()) {
+                    terminated = true;
+                    subscriber.onComplete();
+                } else if (converted.isEmpty() && requested.get() > 0 && upstream != null && !chunkRequested
+                        && !done) {
+                    chunkRequested = true;
+                    upstream.request(1);
+                }
+            }
+            missed = drains.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
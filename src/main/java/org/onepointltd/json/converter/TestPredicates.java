@@ -0,0 +1,238 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The filter predicates produced by the test operations of a patch. A patch is converted to several updates which
+ * are executed one after the other, so the predicates are tracked per update: an update which changes a tested path
+ * changes the predicate of the following updates accordingly.
+ */
+final class TestPredicates {
+
+    /**
+     * The updates produced by a conversion, in the order in which they are executed.
+     */
+    enum Stage {
+        MOVE, UNSET, PULL, SET, PUSH
+    }
+
+    private static final TestPredicates NONE = new TestPredicates(new EnumMap<>(Stage.class));
+
+    /**
+     * The expected value of each tested path before each update. A missing node means that the path must not exist.
+     */
+    private final Map<Stage, Map<String, JsonNode>> predicates;
+
+    private TestPredicates(Map<Stage, Map<String, JsonNode>> predicates) {
+        this.predicates = predicates;
+    }
+
+    /**
+     * Creates the predicates of a conversion.
+     *
+     * @param mongoConversion The conversion with the tested paths.
+     * @param ignoreUnset     Whether the unset and pull updates are left out.
+     * @return the predicates per update.
+     * @throws PatchConversionException a tested path is changed by an update in a way which cannot be predicted.
+     */
+    static TestPredicates create(MongoConversion mongoConversion, boolean ignoreUnset) throws PatchConversionException {
+        if (mongoConversion.getTest().isEmpty()) {
+            return NONE;
+        }
+        Set<String> pullPaths = new LinkedHashSet<>();
+        if (!ignoreUnset) {
+            mongoConversion.getUnset().forEach(key -> {
+                PatchPath path = PatchPath.fromDot(key);
+                if (path.size() > 1 && path.endsWithIndex()) {
+                    pullPaths.add(path.parent().toDot());
+                }
+            });
+        }
+        Map<Stage, Map<String, JsonNode>> predicates = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            predicates.put(stage, new LinkedHashMap<>());
+        }
+        for (Map.Entry<String, JsonNode> test : mongoConversion.getTest().entrySet()) {
+            String path = test.getKey();
+            JsonNode current = test.getValue();
+            for (FieldMove move : mongoConversion.getMoves()) {
+                if (related(move.getFrom(), path) || related(move.getTo(), path)) {
+                    throw unpredictable(path);
+                }
+            }
+            predicates.get(Stage.MOVE).put(path, current);
+            predicates.get(Stage.UNSET).put(path, current);
+            if (!ignoreUnset) {
+                for (String key : mongoConversion.getUnset()) {
+                    if (related(key, path)) {
+                        if (isAncestor(path, key) || PatchPath.fromDot(key).endsWithIndex()) {
+                            throw unpredictable(path);
+                        }
+                        current = MissingNode.getInstance();
+                    }
+                }
+            }
+            predicates.get(Stage.PULL).put(path, current);
+            for (String key : pullPaths) {
+                if (related(key, path)) {
+                    throw unpredictable(path);
+                }
+            }
+            predicates.get(Stage.SET).put(path, current);
+            for (Map.Entry<String, JsonNode> set : mongoConversion.getSet().entrySet()) {
+                String key = set.getKey();
+                if (related(key, path)) {
+                    if (isAncestor(path, key)) {
+                        throw unpredictable(path);
+                    }
+                    current = navigate(set.getValue(), path.substring(key.length()));
+                }
+            }
+            predicates.get(Stage.PUSH).put(path, current);
+            for (String key : mongoConversion.getPush().keySet()) {
+                if (related(key, path)) {
+                    throw unpredictable(path);
+                }
+            }
+            for (ArrayPush push : mongoConversion.getSeparatePushes()) {
+                if (related(push.getKey(), path)) {
+                    throw unpredictable(path);
+                }
+            }
+        }
+        return new TestPredicates(predicates);
+    }
+
+    /**
+     * Same as {@link #create(MongoConversion, boolean)} for conversions which were validated when they were created.
+     */
+    static TestPredicates of(MongoConversion mongoConversion, boolean ignoreUnset) {
+        try {
+            return create(mongoConversion, ignoreUnset);
+        } catch (PatchConversionException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    boolean isEmpty() {
+        return predicates.isEmpty();
+    }
+
+    /**
+     * @return {@code true} in case the update of the stage has predicates.
+     */
+    boolean hasPredicates(Stage stage) {
+        return predicates.containsKey(stage);
+    }
+
+    /**
+     * Writes the predicates of an update as a Javascript object.
+     */
+    void writeJavascript(Stage stage, String prefixStr, MongoScriptWriter writer) throws IOException {
+        writeJavascript(stage, Collections.emptyList(), prefixStr, writer);
+    }
+
+    /**
+     * Writes the predicates of a part of a split update as a Javascript object.
+     *
+     * @param applied The keys of the sets of the parts executed before this part.
+     */
+    void writeJavascript(Stage stage, Collection<String> applied, String prefixStr, MongoScriptWriter writer)
+            throws IOException {
+        writer.raw('{');
+        boolean first = true;
+        for (Map.Entry<String, JsonNode> predicate : predicates(stage, applied).entrySet()) {
+            if (!first) {
+                writer.raw(',');
+            }
+            first = false;
+            writer.raw('"').raw(prefixStr).raw(predicate.getKey()).raw("\":");
+            if (predicate.getValue().isMissingNode()) {
+                writer.raw("{ $exists: false }");
+            } else {
+                writer.raw("{ $eq: ").value(predicate.getValue()).raw(" }");
+            }
+        }
+        writer.raw('}');
+    }
+
+    /**
+     * @return the predicates as a BSON document, which is empty if there are none.
+     */
+    BsonDocument toBson(Stage stage, String prefixStr) {
+        return toBson(stage, Collections.emptyList(), prefixStr);
+    }
+
+    /**
+     * @param applied The keys of the sets of the parts executed before this part.
+     * @return the predicates of a part of a split update as a BSON document, which is empty if there are none.
+     */
+    BsonDocument toBson(Stage stage, Collection<String> applied, String prefixStr) {
+        BsonDocument document = new BsonDocument();
+        Map<String, JsonNode> stagePredicates = predicates(stage, applied);
+        if (stagePredicates != null) {
+            stagePredicates.forEach((path, value) -> document.append(prefixStr + path, value.isMissingNode()
+                    ? new BsonDocument("$exists", BsonBoolean.FALSE)
+                    : new BsonDocument("$eq", BsonValues.toBson(value))));
+        }
+        return document;
+    }
+
+    /**
+     * A set split into several updates changes the tested paths part by part, so a path set by an earlier part is
+     * expected with the value it has after the sets.
+     */
+    private Map<String, JsonNode> predicates(Stage stage, Collection<String> applied) {
+        Map<String, JsonNode> stagePredicates = predicates.get(stage);
+        if (stage != Stage.SET || applied.isEmpty() || stagePredicates == null) {
+            return stagePredicates;
+        }
+        Map<String, JsonNode> partPredicates = new LinkedHashMap<>(stagePredicates);
+        for (String path : stagePredicates.keySet()) {
+            for (String key : applied) {
+                if (related(key, path)) {
+                    partPredicates.put(path, predicates.get(Stage.PUSH).get(path));
+                }
+            }
+        }
+        return partPredicates;
+    }
+
+    private static JsonNode navigate(JsonNode value, String relativePath) {
+        if (relativePath.isEmpty()) {
+            return value;
+        }
+        PatchPath path = PatchPath.fromDot(relativePath);
+        JsonNode node = LazyValueNode.tree(value);
+        for (int i = 0; i < path.size() && node != null; i++) {
+            node = node.isArray() ? node.get(PatchCoalescer.arrayIndex(path.segment(i))) : node.get(path.segment(i));
+        }
+        return node == null ? MissingNode.getInstance() : node;
+    }
+
+    private static boolean related(String a, String b) {
+        return a.equals(b) || isAncestor(a, b) || isAncestor(b, a);
+    }
+
+    private static boolean isAncestor(String ancestor, String path) {
+        return path.length() > ancestor.length() && path.startsWith(ancestor) && path.charAt(ancestor.length()) == '.';
+    }
+
+    private static PatchConversionException unpredictable(String path) {
+        return new PatchConversionException(String.format(
+                "The tested path %s is changed by the patch in a way which cannot be expressed in the update filters",
+                path));
+    }
+}
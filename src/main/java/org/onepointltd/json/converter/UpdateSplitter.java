@@ -0,0 +1,196 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the $set and $push updates of a conversion into several updates which are executed one after the other,
+ * so that the BSON size of each update stays under a budget. The size is computed from the values while the parts
+ * are built, and a value is only measured until it exceeds what is left of the budget. The sets of different paths
+ * are independent of each other, and the values pushed to an array are split into consecutive pushes, each inserting
+ * at the position after the values of the previous one. So the parts have the same effect as the single update.
+ * A single value larger than the budget gets an update of its own.
+ * <p>
+ * The values of a conversion are not measured at all if the length of the patch they were read from already bounds
+ * their size under the budget, which is the case of almost every patch with the default budget.
+ */
+final class UpdateSplitter {
+
+    /**
+     * The update document with its operator and the document of the fields.
+     */
+    private static final int UPDATE_SIZE = 5 + 7 + 5;
+
+    /**
+     * The "$each" array and the "$position" of a push.
+     */
+    private static final int EACH_SIZE = 5 + 7 + 5 + 15;
+
+    /**
+     * The most BSON bytes per character of JSON text. A value takes at least two characters with the separator after
+     * it, and at most 28 bytes with its type and its array position as name, apart from the characters of its strings
+     * and names, which take at most 3 bytes each.
+     */
+    private static final int BYTES_PER_CHARACTER = 16;
+
+    /**
+     * The prefix, the type, the "$each" array and the "$position" of an update field, and the digits an array position
+     * gains when it is shifted by earlier operations.
+     */
+    private static final int FIELD_SIZE = 2 + EACH_SIZE + 10;
+
+    private UpdateSplitter() {
+    }
+
+    /**
+     * @return whether every update of the conversion fits the budget, known from the length of its patch without
+     * measuring the values.
+     */
+    static boolean fitsBudget(MongoConversion mongoConversion, String prefixStr, long maxSize) {
+        long patchLength = mongoConversion.getPatchLength();
+        if (patchLength < 0) {
+            return false;
+        }
+        long fields = mongoConversion.getSet().size() + mongoConversion.getPush().size()
+                + mongoConversion.getSeparatePushes().size();
+        long fieldSize = FIELD_SIZE + BsonValues.utf8Length(prefixStr);
+        return UPDATE_SIZE + BYTES_PER_CHARACTER * patchLength + fields * fieldSize <= maxSize;
+    }
+
+    /**
+     * @return the sets of each update, which is the set of the conversion itself if it fits the budget.
+     */
+    static List<Map<String, JsonNode>> splitSet(MongoConversion mongoConversion, String prefixStr, long maxSize) {
+        Map<String, JsonNode> set = mongoConversion.getSet();
+        if (set.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (fitsBudget(mongoConversion, prefixStr, maxSize)) {
+            return Collections.singletonList(set);
+        }
+        List<Map<String, JsonNode>> parts = new ArrayList<>();
+        Map<String, JsonNode> part = new LinkedHashMap<>();
+        long size = UPDATE_SIZE;
+        for (Map.Entry<String, JsonNode> entry : set.entrySet()) {
+            String key = prefixStr + entry.getKey();
+            long entrySize = BsonValues.entrySize(key, entry.getValue(), maxSize - size);
+            if (!part.isEmpty() && size + entrySize > maxSize) {
+                parts.add(part);
+                part = new LinkedHashMap<>();
+                size = UPDATE_SIZE;
+                // measured again against the budget of the new part
+                entrySize = BsonValues.entrySize(key, entry.getValue(), maxSize - size);
+            }
+            part.put(entry.getKey(), entry.getValue());
+            size += entrySize;
+        }
+        if (parts.isEmpty()) {
+            return Collections.singletonList(set);
+        }
+        parts.add(part);
+        return parts;
+    }
+
+    /**
+     * @return the pushes of each update: the parts of the push of the conversion, followed by the parts of each of
+     * its separate pushes.
+     */
+    static List<PushPart> splitPushes(MongoConversion mongoConversion, String prefixStr, long maxSize) {
+        boolean fits = fitsBudget(mongoConversion, prefixStr, maxSize);
+        List<PushPart> parts = splitPush(mongoConversion.getPush(), mongoConversion.getPushPositions(), prefixStr,
+                fits ? 0 : maxSize);
+        if (mongoConversion.getSeparatePushes().isEmpty()) {
+            return parts;
+        }
+        parts = new ArrayList<>(parts);
+        for (ArrayPush push : mongoConversion.getSeparatePushes()) {
+            parts.addAll(splitPush(Collections.singletonMap(push.getKey(), push.getValues()),
+                    push.getPosition() == null ? Collections.emptyMap()
+                            : Collections.singletonMap(push.getKey(), push.getPosition()), prefixStr,
+                    fits ? 0 : maxSize));
+        }
+        return parts;
+    }
+
+    /**
+     * @param maxSize The budget, or 0 if the push is known to fit it.
+     * @return the pushes of each update, which is the push itself if it fits the budget.
+     */
+    private static List<PushPart> splitPush(Map<String, List<JsonNode>> push, Map<String, Integer> positions,
+                                            String prefixStr, long maxSize) {
+        if (push.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (maxSize == 0) {
+            return Collections.singletonList(new PushPart(push, positions));
+        }
+        List<PushPart> parts = new ArrayList<>();
+        PushPart part = new PushPart();
+        long size = UPDATE_SIZE;
+        for (Map.Entry<String, List<JsonNode>> entry : push.entrySet()) {
+            String key = entry.getKey();
+            Integer position = positions.get(key);
+            long keySize = 2 + BsonValues.utf8Length(prefixStr + key) + EACH_SIZE;
+            List<JsonNode> values = null;
+            int i = 0;
+            for (JsonNode value : entry.getValue()) {
+                long elementSize = 2 + BsonValues.digits(i);
+                long valueSize = elementSize + BsonValues.sizeOf(value,
+                        maxSize - size - (values == null ? keySize : 0) - elementSize);
+                if (!part.isEmpty() && size + valueSize + (values == null ? keySize : 0) > maxSize) {
+                    parts.add(part);
+                    part = new PushPart();
+                    size = UPDATE_SIZE;
+                    values = null;
+                    // measured again against the budget of the new part
+                    valueSize = elementSize + BsonValues.sizeOf(value, maxSize - size - keySize - elementSize);
+                }
+                if (values == null) {
+                    values = new ArrayList<>();
+                    part.push.put(key, values);
+                    if (position != null) {
+                        part.positions.put(key, position + i);
+                    }
+                    size += keySize;
+                }
+                values.add(value);
+                size += valueSize;
+                i++;
+            }
+        }
+        if (parts.isEmpty()) {
+            return Collections.singletonList(new PushPart(push, positions));
+        }
+        parts.add(part);
+        return parts;
+    }
+
+    /**
+     * The values pushed by one update.
+     */
+    static final class PushPart {
+
+        final Map<String, List<JsonNode>> push;
+
+        final Map<String, Integer> positions;
+
+        private PushPart() {
+            this(new LinkedHashMap<>(), new HashMap<>());
+        }
+
+        private PushPart(Map<String, List<JsonNode>> push, Map<String, Integer> positions) {
+            this.push = push;
+            this.positions = positions;
+        }
+
+        private boolean isEmpty() {
+            return push.isEmpty();
+        }
+    }
+}
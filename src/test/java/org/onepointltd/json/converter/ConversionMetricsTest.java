@@ -0,0 +1,66 @@
+package org.onepointltd.json.converter;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ConversionMetricsTest {
+
+    private static final String PATCH = "[{\"op\": \"add\", \"path\": \"/a\", \"value\": 1}," +
+            "{\"op\": \"remove\", \"path\": \"/b\"}, {\"op\": \"add\", \"path\": \"/c/-\", \"value\": 2}]";
+
+    @Test
+    void whenConvert_ShouldRecordStagesOperationsAndSizes() throws IOException {
+        JsonPatchToMongoUpdate converter = new JsonPatchToMongoUpdate();
+        ConversionMetrics metrics = new ConversionMetrics();
+        converter.setListener(metrics);
+        String script = converter.convertToMongoUpdates(new StringReader(PATCH), "{}", "customers", "customer")
+                .asJavascript(false);
+        converter.setPlanCache(new ConversionPlanCache(10));
+        StringBuilder out = new StringBuilder();
+        converter.writeMongoUpdates(new StringReader(PATCH), "{}", "customers", false, out, "customer");
+
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("add", 4L);
+        expected.put("remove", 2L);
+        assertThat(metrics.getOperationCounts()).isEqualTo(expected);
+        for (ConversionListener.Stage stage : ConversionListener.Stage.values()) {
+            assertThat(metrics.getLatency(stage).getCount()).isEqualTo(2);
+        }
+        assertThat(metrics.getPatchOperations().getTotal()).isEqualTo(6);
+        assertThat(metrics.getPatchSizes().getMax()).isEqualTo(PATCH.length());
+        assertThat(metrics.getOutputSizes().getCount()).isEqualTo(2);
+        assertThat(metrics.getOutputSizes().getMax()).isEqualTo(out.length());
+        assertThat(out.toString()).isEqualTo(script);
+        assertThat(metrics.getErrorCount()).isEqualTo(0);
+    }
+
+    @Test
+    void whenConversionFails_ShouldCountError() {
+        JsonPatchToMongoUpdate converter = new JsonPatchToMongoUpdate();
+        ConversionMetrics metrics = new ConversionMetrics();
+        converter.setListener(metrics);
+        assertThrows(IOException.class, () -> converter.convert(new StringReader("{\"op\": \"add\"}")));
+        assertThat(metrics.getErrorCount()).isEqualTo(1);
+        assertThat(metrics.getPatchOperations().getCount()).isEqualTo(0);
+    }
+
+    @Test
+    void whenRecordLatencies_ShouldEstimatePercentiles() {
+        ConversionMetrics metrics = new ConversionMetrics();
+        for (int i = 1; i <= 100; i++) {
+            metrics.stageCompleted(ConversionListener.Stage.PARSE, i * 1000L);
+        }
+        ConversionMetrics.Distribution latency = metrics.getLatency(ConversionListener.Stage.PARSE);
+        assertThat(latency.getCount()).isEqualTo(100);
+        assertThat(latency.getMax()).isEqualTo(100_000L);
+        assertThat(latency.getPercentile(0.5)).isBetween(50_000L, 100_000L);
+        assertThat(latency.getPercentile(1)).isEqualTo(100_000L);
+    }
+}
@@ -0,0 +1,81 @@
+package org.onepointltd.json.converter;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+class ConversionPlanCacheTest {
+
+    private static final String SHAPE = "[{\"op\": \"replace\", \"path\": \"/lastName\", \"value\": \"%s\"}," +
+            "{\"op\": \"remove\", \"path\": \"/notes/notes/2\"}," +
+            "{\"op\": \"remove\", \"path\": \"/notes/notes/2\"}," +
+            "{\"op\": \"add\", \"path\": \"/tags/1\", \"value\": \"%s\"}," +
+            "{\"op\": \"add\", \"path\": \"/tags/1\", \"value\": {\"name\": \"%s\"}}]";
+
+    private final JsonPatchToMongoUpdate uncached = new JsonPatchToMongoUpdate();
+
+    private final JsonPatchToMongoUpdate cached = new JsonPatchToMongoUpdate();
+
+    @Test
+    void whenShapeRepeats_ShouldConvertFromTemplate() throws IOException {
+        ConversionPlanCache cache = new ConversionPlanCache(8);
+        cached.setPlanCache(cache);
+        for (String value : new String[]{"a", "b", "c"}) {
+            String patch = String.format(SHAPE, value, value, value);
+            assertThat(convert(cached, patch, "customer")).isEqualTo(convert(uncached, patch, "customer"));
+        }
+        assertThat(cache.getMissCount()).isEqualTo(1);
+        assertThat(cache.getHitCount()).isEqualTo(2);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    void whenPrefixChanges_ShouldFormatKeysWithNewPrefix() throws IOException {
+        cached.setPlanCache(new ConversionPlanCache(8));
+        String patch = String.format(SHAPE, "a", "b", "c");
+        assertThat(convert(cached, patch, "customer")).isEqualTo(convert(uncached, patch, "customer"));
+        assertThat(convert(cached, patch, "person")).isEqualTo(convert(uncached, patch, "person"));
+        assertThat(convert(cached, patch)).isEqualTo(convert(uncached, patch));
+    }
+
+    @Test
+    void whenOperationIsMergedIntoParent_ShouldNotUseTemplate() throws IOException {
+        ConversionPlanCache cache = new ConversionPlanCache(8);
+        cached.setPlanCache(cache);
+        String patch = "[{\"op\": \"replace\", \"path\": \"/a\", \"value\": %s}," +
+                "{\"op\": \"replace\", \"path\": \"/a/1\", \"value\": 2}]";
+        // the second replace is merged into an object but set on its own key for a number
+        for (String value : new String[]{"{\"b\": 1}", "5"}) {
+            String current = String.format(patch, value);
+            assertThat(convert(cached, current)).isEqualTo(convert(uncached, current));
+        }
+        assertThat(cache.getHitCount()).isEqualTo(0);
+        assertThat(cache.getMissCount()).isEqualTo(2);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    void whenCacheIsFull_ShouldEvictLeastRecentlyUsed() throws IOException {
+        ConversionPlanCache cache = new ConversionPlanCache(2);
+        cached.setPlanCache(cache);
+        String a = "[{\"op\": \"replace\", \"path\": \"/a\", \"value\": 1}]";
+        String b = "[{\"op\": \"replace\", \"path\": \"/b\", \"value\": 1}]";
+        String c = "[{\"op\": \"replace\", \"path\": \"/c\", \"value\": 1}]";
+        convert(cached, a);
+        convert(cached, b);
+        convert(cached, a);
+        convert(cached, c);
+        convert(cached, a);
+        assertThat(cache.getEvictionCount()).isEqualTo(1);
+        assertThat(cache.getHitCount()).isEqualTo(2);
+        convert(cached, b);
+        assertThat(cache.getMissCount()).isEqualTo(4);
+    }
+
+    private String convert(JsonPatchToMongoUpdate converter, String patch, String... prefixes) throws IOException {
+        return converter.convertToMongoUpdates(new StringReader(patch), "{}", "customers", prefixes).asJavascript(false);
+    }
+}
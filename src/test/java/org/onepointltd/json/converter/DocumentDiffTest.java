@@ -0,0 +1,95 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DocumentDiffTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final JsonPatchToMongoUpdate converter = new JsonPatchToMongoUpdate();
+
+    @Test
+    void whenFewFieldsChanged_ShouldSetTheFields() throws IOException {
+        MongoConversion conversion = diff(
+                "{\"name\": \"Ann\", \"address\": {\"street\": \"Main Street 1\", \"city\": \"London\", \"zip\": \"N1\"}, \"age\": 30}",
+                "{\"name\": \"Ann\", \"address\": {\"street\": \"Main Street 1\", \"city\": \"Leeds\", \"zip\": \"N1\"}, \"phone\": \"123\"}");
+        assertThat(conversion.getSet()).hasSize(2);
+        assertThat(conversion.getSet().get("address.city")).isEqualTo(json("\"Leeds\""));
+        assertThat(conversion.getSet().get("phone")).isEqualTo(json("\"123\""));
+        assertThat(conversion.getUnset()).containsOnly("age");
+        assertThat(conversion.getPush()).isEmpty();
+    }
+
+    @Test
+    void whenMostFieldsChanged_ShouldSetTheWholeObject() throws IOException {
+        MongoConversion conversion = diff(
+                "{\"address\": {\"street\": \"Main Street 1\", \"city\": \"London\", \"zip\": \"N1\"}}",
+                "{\"address\": {\"street\": \"High Street 2\", \"city\": \"Leeds\", \"zip\": \"LS1\"}}");
+        assertThat(conversion.getSet()).containsOnlyKeys("address");
+        assertThat(conversion.getSet().get("address")).isEqualTo(
+                json("{\"street\": \"High Street 2\", \"city\": \"Leeds\", \"zip\": \"LS1\"}"));
+    }
+
+    @Test
+    void whenArrayChanged_ShouldPushUnsetOrSetIt() throws IOException {
+        MongoConversion conversion = diff(
+                "{\"tags\": [\"priority\", \"wholesale\"], \"items\": [{\"id\": 1, \"qty\": 1}, {\"id\": 2, \"qty\": 5}, {\"id\": 3, \"qty\": 1}], \"codes\": [1, 2, 3]}",
+                "{\"tags\": [\"priority\", \"wholesale\", \"c\"], \"items\": [{\"id\": 1, \"qty\": 1}, {\"id\": 2, \"qty\": 6}], \"codes\": [0, 1, 2, 3]}");
+        assertThat(conversion.getPush()).containsOnlyKeys("tags");
+        assertThat(conversion.getPush().get("tags")).isEqualTo(Collections.singletonList(json("\"c\"")));
+        assertThat(conversion.getSet()).containsOnlyKeys("items.1.qty", "codes");
+        assertThat(conversion.getSet().get("codes")).isEqualTo(json("[0, 1, 2, 3]"));
+        assertThat(conversion.getUnset()).containsOnly("items.2");
+        converter.setArrayStrategy(ArrayStrategy.POSITIONAL);
+        assertThat(converter.convertToMongoUpdates(conversion, "{}", "orders").asJavascript(false))
+                .contains("{ $in: [ \"$$i\", [2] ] }");
+    }
+
+    @Test
+    void whenFieldCannotBeAddressed_ShouldSetItsParent() throws IOException {
+        MongoConversion conversion = diff("{\"prices\": {\"1.5\": 10, \"2\": 20, \"list\": 15}}",
+                "{\"prices\": {\"1.5\": 11, \"2\": 20, \"list\": 15}}");
+        assertThat(conversion.getSet()).containsOnlyKeys("prices");
+        PatchConversionException failure = assertThrows(PatchConversionException.class,
+                () -> diff("{\"$type\": 1}", "{\"$type\": 2}"));
+        assertThat(failure.getMessage()).contains("$type");
+        assertThat(diff("{\"$type\": 1, \"a\": 1}", "{\"$type\": 1, \"a\": 2}").getSet()).containsOnlyKeys("a");
+    }
+
+    @Test
+    void whenDocumentsAreEqual_ShouldProduceNoUpdate() throws IOException {
+        MongoConversion conversion = diff("{\"a\": [1, {\"b\": null}], \"c\": {}}", "{\"c\": {}, \"a\": [1, {\"b\": null}]}");
+        assertThat(conversion.getSet()).isEmpty();
+        assertThat(conversion.getUnset()).isEmpty();
+        assertThat(conversion.getPush()).isEmpty();
+    }
+
+    @Test
+    void whenDiffed_ShouldMatchConvertedPatch() throws IOException {
+        String oldDocument = "{\"name\": \"Ann\", \"notes\": [\"Prefers delivery in the morning\"], \"age\": 30}";
+        String newDocument = "{\"name\": \"Bob\", \"notes\": [\"Prefers delivery in the morning\", \"y\", \"z\"]}";
+        MongoUpdateDocuments fromDiff = converter.convertToDocuments(diff(oldDocument, newDocument), "customer");
+        MongoUpdateDocuments fromPatch = converter.convertToDocuments(converter.convert(new StringReader(
+                "[{\"op\": \"replace\", \"path\": \"/name\", \"value\": \"Bob\"}, {\"op\": \"remove\", \"path\": \"/age\"}," +
+                        "{\"op\": \"add\", \"path\": \"/notes/-\", \"value\": \"y\"}, {\"op\": \"add\", \"path\": \"/notes/-\", \"value\": \"z\"}]")),
+                "customer");
+        assertThat(fromDiff.asList()).isEqualTo(fromPatch.asList());
+    }
+
+    private MongoConversion diff(String oldDocument, String newDocument) throws IOException {
+        return converter.diff(json(oldDocument), json(newDocument));
+    }
+
+    private JsonNode json(String text) throws IOException {
+        return mapper.readTree(text);
+    }
+}
@@ -1,20 +1,27 @@
 package org.onepointltd.json.converter;
 
+import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bson.BsonDocument;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.onepointltd.json.converter.provider.MongoPatchProvider;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 class JsonPatchToMongoUpdateTest {
 
@@ -89,6 +96,404 @@ class JsonPatchToMongoUpdateTest {
         }
     }
 
+    @Test
+    void whenRemovingTwoPositionsOfArray_ShouldPullArrayOnce() throws IOException {
+        String patch = "[{\"op\": \"remove\", \"path\": \"/tags/1\"}," +
+                "{\"op\": \"remove\", \"path\": \"/tags/3\"}," +
+                "{\"op\": \"test\", \"path\": \"/version\", \"value\": 3}]";
+        MongoCommands mongoQueries = jsonPatchToMongoUpdate.convertToMongoUpdates(new StringReader(patch),
+                "{ _id: 1 }", "customer");
+        assertThat(mongoQueries.getPull()).endsWith(", { $pull: {\"tags\": null } } )");
+        MongoUpdateDocuments documents = jsonPatchToMongoUpdate.convertToDocuments(new StringReader(patch));
+        assertThat(documents.getPull()).isEqualTo(BsonDocument.parse("{ $pull: {\"tags\": null } }"));
+    }
+
+    @Test
+    @DisplayName("Streams operations whatever the order of their fields")
+    void whenConvertWithValueBeforeOp_ShouldStreamOperations() throws IOException {
+        String patch = "[{\"value\": {\"note\": \"a\"}, \"path\": \"/notes/notes/1\", \"op\": \"add\"}," +
+                "{\"path\": \"/lastName\", \"extra\": [1, {\"x\": 2}], \"op\": \"replace\", \"value\": null}," +
+                "{\"op\": \"remove\", \"path\": \"/firstName\"}]";
+        MongoConversion mongoConversion = jsonPatchToMongoUpdate.convert(new StringReader(patch));
+        assertThat(mongoConversion.getPush().get("notes.notes").get(0).get("note").asText()).isEqualTo("a");
+        assertThat(mongoConversion.getSet().get("lastName").isNull()).isTrue();
+        assertThat(mongoConversion.getUnset()).containsExactly("firstName");
+    }
+
+    @Test
+    void whenConvertNonArray_ShouldFail() {
+        assertThrows(JsonParseException.class,
+                () -> jsonPatchToMongoUpdate.convert(new StringReader("{\"op\": \"remove\"}")));
+    }
+
+    @Test
+    void whenOperationIsUnknown_ShouldFail() {
+        assertThrows(PatchConversionException.class, () -> jsonPatchToMongoUpdate.convert(
+                new StringReader("[{\"op\": \"replace \", \"path\": \"/name\", \"value\": 1}]")));
+        assertThrows(PatchConversionException.class, () -> jsonPatchToMongoUpdate.convert(
+                new StringReader("[{\"op\": \"Remove\", \"path\": \"/name\"}]")));
+    }
+
+    @Test
+    void whenTestIsFollowedByOtherOperation_ShouldConvertBoth() throws IOException {
+        MongoConversion conversion = jsonPatchToMongoUpdate.convert(new StringReader(
+                "[{\"op\": \"test\", \"path\": \"/version\", \"value\": 3}," +
+                        "{\"op\": \"remove\", \"path\": \"/name\"}]"));
+        assertThat(conversion.getTest()).containsOnlyKeys("version");
+        assertThat(conversion.getUnset()).containsExactly("name");
+    }
+
+    @Test
+    void whenAddHasNoValue_ShouldFail() {
+        assertThrows(JsonParseException.class, () -> jsonPatchToMongoUpdate.convert(
+                new StringReader("[{\"op\": \"add\", \"path\": \"/name\"}]")));
+    }
+
+    @Test
+    void whenReplaceHasNoValue_ShouldFail() {
+        assertThrows(JsonParseException.class, () -> jsonPatchToMongoUpdate.convert(
+                new StringReader("[{\"op\": \"replace\", \"path\": \"/name\"}]")));
+    }
+
+    @Test
+    void whenTestHasNoValue_ShouldFail() {
+        assertThrows(JsonParseException.class, () -> jsonPatchToMongoUpdate.convert(
+                new StringReader("[{\"op\": \"test\", \"path\": \"/name\"}]")));
+    }
+
+    @Test
+    void whenValuesAreLazyAndReplaceHasNoValue_ShouldFail() {
+        jsonPatchToMongoUpdate.setLazyValues(true);
+        assertThrows(JsonParseException.class, () -> jsonPatchToMongoUpdate.convert(
+                new StringReader("[{\"op\": \"replace\", \"path\": \"/name\"}]")));
+    }
+
+    @Test
+    void whenPatchHasElementWhichIsNoOperation_ShouldFail() {
+        String patch = "[{\"op\": \"remove\", \"path\": \"/a\"}, null, {\"op\": \"remove\", \"path\": \"/b\"}]";
+        assertThrows(JsonParseException.class, () -> jsonPatchToMongoUpdate.convert(new StringReader(patch)));
+        assertThrows(JsonParseException.class, () -> jsonPatchToMongoUpdate.convert(
+                new StringReader("[{\"op\": \"remove\", \"path\": \"/a\"}, [], 1]")));
+        jsonPatchToMongoUpdate.setPlanCache(new ConversionPlanCache(4));
+        assertThrows(JsonParseException.class, () -> jsonPatchToMongoUpdate.convert(new StringReader(patch)));
+    }
+
+    @Test
+    void whenReplaceHasNullValue_ShouldSetNull() throws IOException {
+        MongoConversion conversion = jsonPatchToMongoUpdate.convert(
+                new StringReader("[{\"op\": \"replace\", \"path\": \"/name\", \"value\": null}]"));
+        assertThat(conversion.getSet().get("name").isNull()).isTrue();
+    }
+
+    @Test
+    void whenConvertToDocuments_ShouldProduceUpdateDocuments() throws IOException {
+        MongoUpdateDocuments documents = jsonPatchToMongoUpdate.convertToDocuments(MongoPatchProvider.getPatch2Reader(),
+                "customer");
+        assertThat(documents.getUnset()).isEqualTo(BsonDocument.parse("{ $unset: {\"customer.preferences.preferences.0\": \"\" } }"));
+        assertThat(documents.getPull()).isEqualTo(BsonDocument.parse("{ $pull: {\"customer.preferences.preferences\": null } }"));
+        assertThat(documents.getSet()).isEqualTo(BsonDocument.parse("{ $set: {\"customer.lastName\": \"Morales\" } }"));
+        BsonDocument push = documents.getPush().getDocument("$push");
+        assertThat(push.getDocument("customer.contactPoints.contactPoints").getArray("$each").size()).isEqualTo(2);
+        assertThat(push.getDocument("customer.notes.notes").getString("noteSource").getValue()).isEqualTo("8910470");
+        assertThat(documents.asList()).containsExactly(documents.getUnset(), documents.getPull(), documents.getSet(),
+                documents.getPush());
+    }
+
+    @Test
+    void whenConvertToDocumentsIgnoringUnset_ShouldHaveNoUnsetOrPull() throws IOException {
+        jsonPatchToMongoUpdate.setIgnoreUnset(true);
+        MongoUpdateDocuments documents = jsonPatchToMongoUpdate.convertToDocuments(MongoPatchProvider.getPatch2Reader());
+        assertThat(documents.getUnset().isEmpty()).isTrue();
+        assertThat(documents.getPull().isEmpty()).isTrue();
+        assertThat(documents.asList()).hasSize(2);
+    }
+
+    @Test
+    void whenConvertToBulkWrite_ShouldGroupOrderedUpdatesByCollection() throws IOException {
+        BsonDocument first = BsonDocument.parse("{ _id: 1 }");
+        BsonDocument second = BsonDocument.parse("{ _id: 2 }");
+        BulkWritePlan plan = jsonPatchToMongoUpdate.convertToBulkWrite(Arrays.asList(
+                new PatchRequest(MongoPatchProvider.getPatch2Reader(), first, "customer", "customer"),
+                new PatchRequest(MongoPatchProvider.getCustomerPatchUpdate(), BsonDocument.parse("{ _id: 3 }"), "audit"),
+                new PatchRequest(MongoPatchProvider.getPatchNoRemove(), second, "customer")));
+        assertThat(plan.getUpdates().keySet()).containsExactly("customer", "audit");
+        List<BulkUpdate> updates = plan.getUpdates("customer");
+        assertThat(updates).extracting(u -> u.getUpdate().getFirstKey())
+                .containsExactly("$unset", "$pull", "$set", "$push", "$set", "$push");
+        assertThat(updates).extracting(BulkUpdate::getFilter)
+                .containsExactly(first, first, first, first, second, second);
+        assertThat(plan.getUpdates("audit")).extracting(u -> u.getUpdate().getFirstKey())
+                .containsExactly("$unset", "$pull", "$set");
+        assertThat(plan.getUpdates("missing")).isEmpty();
+    }
+
+    @Test
+    void whenConvertMove_ShouldRename() throws IOException {
+        MongoCommands mongoQueries = jsonPatchToMongoUpdate.convertToMongoUpdates(new StringReader(
+                "[{\"op\": \"move\", \"from\": \"/firstName\", \"path\": \"/name/first\"}," +
+                        "{\"op\": \"replace\", \"path\": \"/name/last\", \"value\": \"Morales\"}]"),
+                "{ _id: 1 }", "customer", "customer");
+        assertThat(mongoQueries.getMove())
+                .isEqualTo("db.customer.update ( { _id: 1 }, { $rename: {\"customer.firstName\":\"customer.name.first\" } } )");
+        assertThat(mongoQueries.asJavascript(false).indexOf("$rename"))
+                .isLessThan(mongoQueries.asJavascript(false).indexOf("$set"));
+    }
+
+    @Test
+    void whenConvertCopy_ShouldUsePipeline() throws IOException {
+        MongoUpdateDocuments documents = jsonPatchToMongoUpdate.convertToDocuments(new StringReader(
+                "[{\"op\": \"copy\", \"from\": \"/a\", \"path\": \"/b\"}," +
+                        "{\"op\": \"move\", \"from\": \"/c\", \"path\": \"/d\"}]"), "customer");
+        assertThat(documents.getRename().isEmpty()).isTrue();
+        assertThat(documents.getPipeline()).containsExactly(
+                BsonDocument.parse("{ $set: { \"customer.b\": \"$customer.a\" } }"),
+                BsonDocument.parse("{ $set: { \"customer.d\": \"$customer.c\" } }"),
+                BsonDocument.parse("{ $unset: \"customer.c\" }"));
+        List<BulkUpdate> updates = documents.toUpdates(BsonDocument.parse("{ _id: 1 }"));
+        assertThat(updates).hasSize(1);
+        assertThat(updates.get(0).isPipeline()).isTrue();
+    }
+
+    @Test
+    void whenMovingToAncestor_ShouldNotUnsetSource() throws IOException {
+        MongoUpdateDocuments documents = jsonPatchToMongoUpdate.convertToDocuments(new StringReader(
+                "[{\"op\": \"move\", \"from\": \"/b/e\", \"path\": \"/b\"}]"), "customer");
+        // the moved value may have a member "e" itself, which has to be kept
+        assertThat(documents.getPipeline()).containsExactly(
+                BsonDocument.parse("{ $set: { \"customer.b\": \"$customer.b.e\" } }"));
+    }
+
+    @Test
+    void whenMovingKnownValue_ShouldSetAndUnset() throws IOException {
+        MongoConversion mongoConversion = jsonPatchToMongoUpdate.convert(new StringReader(
+                "[{\"op\": \"add\", \"path\": \"/a\", \"value\": {\"x\": 1}}," +
+                        "{\"op\": \"copy\", \"from\": \"/a/x\", \"path\": \"/b\"}," +
+                        "{\"op\": \"move\", \"from\": \"/a\", \"path\": \"/c\"}]"));
+        assertThat(mongoConversion.getMoves()).isEmpty();
+        assertThat(mongoConversion.getSet().keySet()).containsOnly("b", "c");
+        assertThat(mongoConversion.getUnset()).containsExactly("a");
+    }
+
+    @Test
+    void whenConvertTest_ShouldAddPredicatesToEachUpdate() throws IOException {
+        MongoCommands mongoQueries = jsonPatchToMongoUpdate.convertToMongoUpdates(new StringReader(
+                "[{\"op\": \"test\", \"path\": \"/version\", \"value\": 3}," +
+                        "{\"op\": \"remove\", \"path\": \"/notes\"}," +
+                        "{\"op\": \"replace\", \"path\": \"/version\", \"value\": 4}," +
+                        "{\"op\": \"add\", \"path\": \"/tags/-\", \"value\": \"x\"}]"),
+                "{ _id: 1 }", "customer");
+        assertThat(mongoQueries.getUnset()).startsWith("db.customer.update ( { $and: [ { _id: 1 }, {\"version\":{ $eq: 3 }} ] }");
+        assertThat(mongoQueries.getSet()).startsWith("db.customer.update ( { $and: [ { _id: 1 }, {\"version\":{ $eq: 3 }} ] }");
+        assertThat(mongoQueries.getPush()).startsWith("db.customer.update ( { $and: [ { _id: 1 }, {\"version\":{ $eq: 4 }} ] }");
+        BulkWritePlan plan = jsonPatchToMongoUpdate.convertToBulkWrite(Arrays.asList(new PatchRequest(new StringReader(
+                "[{\"op\": \"test\", \"path\": \"/version\", \"value\": 3}]"), BsonDocument.parse("{ _id: 1 }"), "customer")));
+        assertThat(plan.getUpdates("customer")).isEmpty();
+    }
+
+    @Test
+    void whenTestCannotBeConverted_ShouldFail() {
+        assertThrows(PatchConversionException.class, () -> jsonPatchToMongoUpdate.convert(new StringReader(
+                "[{\"op\": \"replace\", \"path\": \"/a\", \"value\": 1}," +
+                        "{\"op\": \"test\", \"path\": \"/a\", \"value\": 2}]")));
+        assertThrows(PatchConversionException.class, () -> jsonPatchToMongoUpdate.convert(new StringReader(
+                "[{\"op\": \"test\", \"path\": \"/tags\", \"value\": []}," +
+                        "{\"op\": \"add\", \"path\": \"/tags/-\", \"value\": 1}]")));
+        assertThrows(PatchConversionException.class, () -> jsonPatchToMongoUpdate.convert(new StringReader(
+                "[{\"op\": \"remove\", \"path\": \"/a/b\"}," +
+                        "{\"op\": \"move\", \"from\": \"/a\", \"path\": \"/c\"}]")));
+    }
+
+    @Test
+    void whenConvertPositional_ShouldInsertAtPositionAndRemoveWithPipeline() throws IOException {
+        jsonPatchToMongoUpdate.setArrayStrategy(ArrayStrategy.POSITIONAL);
+        MongoCommands mongoQueries = jsonPatchToMongoUpdate.convertToMongoUpdates(new StringReader(
+                "[{\"op\": \"remove\", \"path\": \"/notes/1\"}," +
+                        "{\"op\": \"remove\", \"path\": \"/notes/1\"}," +
+                        "{\"op\": \"add\", \"path\": \"/tags/2\", \"value\": \"b\"}," +
+                        "{\"op\": \"add\", \"path\": \"/tags/2\", \"value\": \"a\"}," +
+                        "{\"op\": \"add\", \"path\": \"/tags/4\", \"value\": \"c\"}]"),
+                "{ _id: 1 }", "customer", "customer");
+        assertThat(mongoQueries.getUnset()).isEmpty();
+        assertThat(mongoQueries.getPull()).isEqualTo("db.customer.update ( { _id: 1 }, [ { $set: {\"customer.notes\":" +
+                "{ $map: { input: { $filter: { input: { $range: [ 0, { $size: \"$customer.notes\" } ] }, as: \"i\", " +
+                "cond: { $not: [ { $in: [ \"$$i\", [1, 2] ] } ] } } }, as: \"i\", " +
+                "in: { $arrayElemAt: [ \"$customer.notes\", \"$$i\" ] } } } } } ] )");
+        assertThat(mongoQueries.getPush()).isEqualTo("db.customer.update ( { _id: 1 }, " +
+                "{ $push: {\"customer.tags\":{ $each:[\"a\",\"b\",\"c\"], $position: 2 } } } )");
+        MongoUpdateDocuments documents = jsonPatchToMongoUpdate.convertToDocuments(
+                MongoPatchProvider.getCustomerPatchUpdate(), "customer");
+        assertThat(documents.getUnset().isEmpty()).isTrue();
+        assertThat(documents.getRemovePipeline()).hasSize(1);
+        assertThat(documents.getRemovePipeline().get(0).getDocument("$set").containsKey("customer.customerId.sourceKeys.keies"))
+                .isTrue();
+    }
+
+    @Test
+    void whenUpdatesNeedPipelineOrFilter_ShouldNotListThem() throws IOException {
+        jsonPatchToMongoUpdate.setArrayStrategy(ArrayStrategy.POSITIONAL);
+        MongoUpdateDocuments documents = jsonPatchToMongoUpdate.convertToDocuments(new StringReader(
+                "[{\"op\": \"remove\", \"path\": \"/notes/1\"}]"));
+        assertThrows(IllegalStateException.class, documents::asList);
+        assertThat(documents.toUpdates(new BsonDocument())).hasSize(1);
+        assertThrows(IllegalStateException.class, () -> jsonPatchToMongoUpdate.convertToDocuments(new StringReader(
+                "[{\"op\": \"copy\", \"from\": \"/a\", \"path\": \"/b\"}]")).asList());
+        assertThrows(IllegalStateException.class, () -> jsonPatchToMongoUpdate.convertToDocuments(new StringReader(
+                "[{\"op\": \"test\", \"path\": \"/a\", \"value\": 1}," +
+                        "{\"op\": \"remove\", \"path\": \"/b\"}]")).asList());
+    }
+
+    @Test
+    void whenUpdateIsLargerThanMaxSize_ShouldSplitIt() throws IOException {
+        String patch = "[{\"op\": \"replace\", \"path\": \"/name\", \"value\": \"0123456789012345678901234567890\"}," +
+                "{\"op\": \"replace\", \"path\": \"/city\", \"value\": \"0123456789012345678901234567890\"}," +
+                "{\"op\": \"add\", \"path\": \"/tags/2\", \"value\": \"first value\"}," +
+                "{\"op\": \"add\", \"path\": \"/tags/3\", \"value\": \"second value\"}]";
+        jsonPatchToMongoUpdate.setArrayStrategy(ArrayStrategy.POSITIONAL);
+        jsonPatchToMongoUpdate.setMaxUpdateSize(80);
+        MongoUpdateDocuments documents = jsonPatchToMongoUpdate.convertToDocuments(new StringReader(patch), "customer");
+        assertThat(documents.getSets()).hasSize(2);
+        assertThat(documents.getSets().get(0).getDocument("$set").size()).isEqualTo(1);
+        assertThat(documents.getSets().get(1).getDocument("$set").size()).isEqualTo(1);
+        assertThat(documents.getPushes()).hasSize(2);
+        BsonDocument secondPush = documents.getPushes().get(1).getDocument("$push")
+                .getDocument("customer.tags");
+        assertThat(secondPush.getArray("$each").get(0).asString().getValue()).isEqualTo("second value");
+        assertThat(secondPush.getInt32("$position").getValue()).isEqualTo(3);
+        assertThat(documents.toUpdates(new BsonDocument())).hasSize(4);
+        String script = jsonPatchToMongoUpdate.convertToMongoUpdates(new StringReader(patch), "{ _id: 1 }",
+                "customer", "customer").asJavascript(false);
+        String[] lines = script.trim().split("\n");
+        assertThat(lines).hasSize(4);
+        // the order of the sets is not fixed
+        assertThat(new String[]{lines[0].trim(), lines[1].trim()}).containsOnly(
+                "db.customer.update ( { _id: 1 }, { $set: {\"customer.city\":\"0123456789012345678901234567890\" } } );",
+                "db.customer.update ( { _id: 1 }, { $set: {\"customer.name\":\"0123456789012345678901234567890\" } } );");
+        assertThat(lines[2].trim()).isEqualTo("db.customer.update ( { _id: 1 }, " +
+                "{ $push: {\"customer.tags\":{ $each:[\"first value\"], $position: 2 } } } );");
+        assertThat(lines[3].trim()).isEqualTo("db.customer.update ( { _id: 1 }, " +
+                "{ $push: {\"customer.tags\":{ $each:[\"second value\"], $position: 3 } } } );");
+
+        jsonPatchToMongoUpdate.setMaxUpdateSize(JsonPatchToMongoUpdate.DEFAULT_MAX_UPDATE_SIZE);
+        documents = jsonPatchToMongoUpdate.convertToDocuments(new StringReader(patch), "customer");
+        assertThat(documents.getSets()).hasSize(1);
+        assertThat(documents.getPushes()).hasSize(1);
+        assertThrows(IllegalArgumentException.class, () -> jsonPatchToMongoUpdate.setMaxUpdateSize(0));
+    }
+
+    @Test
+    void whenPatchIsSmallerThanBudget_ShouldNotMeasureValues() throws IOException {
+        MongoConversion conversion = jsonPatchToMongoUpdate.convert(new StringReader(
+                "[{\"op\": \"replace\", \"path\": \"/name\", \"value\": {\"first\": \"Ann\", \"tags\": [1, 2, 3]}}," +
+                        "{\"op\": \"add\", \"path\": \"/tags/-\", \"value\": \"vip\"}]"));
+        assertThat(conversion.getPatchLength()).isGreaterThan(0);
+        assertThat(UpdateSplitter.fitsBudget(conversion, "customer.",
+                JsonPatchToMongoUpdate.DEFAULT_MAX_UPDATE_SIZE)).isTrue();
+        assertThat(UpdateSplitter.fitsBudget(conversion, "customer.", 64)).isFalse();
+        // a larger value is only measured until it exceeds the limit
+        JsonNode value = conversion.getSet().get("name");
+        assertThat(BsonValues.sizeOf(value, 1000)).isEqualTo(BsonValues.sizeOf(value, Long.MAX_VALUE));
+        assertThat(BsonValues.sizeOf(value, 10)).isGreaterThan(10).isLessThan(BsonValues.sizeOf(value, 1000));
+    }
+
+    @Test
+    void whenPatchCopiesValues_ShouldMeasureThemToSplit() throws IOException {
+        StringBuilder patch = new StringBuilder("[{\"op\": \"add\", \"path\": \"/a\", \"value\": \"");
+        for (int i = 0; i < 10000; i++) {
+            patch.append('x');
+        }
+        patch.append("\"}");
+        for (int i = 0; i < 50; i++) {
+            patch.append(",{\"op\": \"copy\", \"from\": \"/a\", \"path\": \"/c").append(i).append("\"}");
+        }
+        patch.append(']');
+        // the patch is small enough for the budget, but not the values it copies
+        jsonPatchToMongoUpdate.setMaxUpdateSize(16 * patch.length() + 100000);
+        MongoConversion conversion = jsonPatchToMongoUpdate.convert(new StringReader(patch.toString()));
+        assertThat(conversion.getPatchLength()).isEqualTo(-1);
+        MongoUpdateDocuments documents = jsonPatchToMongoUpdate.convertToDocuments(conversion);
+        assertThat(documents.getSets()).hasSize(2);
+    }
+
+    @Test
+    void whenWriteMongoUpdates_ShouldWriteSameScript() throws IOException {
+        String[] patches = {"addWithPush.json", "complexPull.json", "customerPatchUpdate.json", "patchSample.json",
+                "patchSample2.json", "patchSampleNoUnset.json"};
+        for (ArrayStrategy strategy : ArrayStrategy.values()) {
+            jsonPatchToMongoUpdate.setArrayStrategy(strategy);
+            for (String patch : patches) {
+                String expected = jsonPatchToMongoUpdate.convertToMongoUpdates(readPatch(patch), "{ _id: 1 }",
+                        "customer", "customer").asJavascript(true);
+                StringBuilder out = new StringBuilder();
+                jsonPatchToMongoUpdate.writeMongoUpdates(readPatch(patch), "{ _id: 1 }", "customer", true, out,
+                        "customer");
+                assertThat(out.toString()).isEqualTo(expected);
+            }
+        }
+        String patch = "[{\"op\": \"test\", \"path\": \"/version\", \"value\": 3}," +
+                "{\"op\": \"replace\", \"path\": \"/name\", \"value\": \"Ren\u00e9e \\\"\\n\"}," +
+                "{\"op\": \"move\", \"from\": \"/a\", \"path\": \"/b\"}]";
+        String expected = jsonPatchToMongoUpdate.convertToMongoUpdates(new StringReader(patch), "{ _id: 1 }",
+                "customer").asJavascript(false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        jsonPatchToMongoUpdate.writeMongoUpdates(new StringReader(patch), "{ _id: 1 }", "customer", false, out);
+        assertThat(new String(out.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(expected);
+    }
+
+    @Test
+    void whenValuesAreLazy_ShouldConvertLikeTrees() throws IOException {
+        String[] patches = {"addWithPush.json", "complexPull.json", "customerPatchUpdate.json", "patchSample.json",
+                "patchSample2.json", "patchSampleNoUnset.json"};
+        JsonPatchToMongoUpdate lazy = new JsonPatchToMongoUpdate();
+        lazy.setLazyValues(true);
+        for (String patch : patches) {
+            assertThat(lazy.convertToMongoUpdates(readPatch(patch), "{ _id: 1 }", "customer", "customer")
+                    .asJavascript(true)).isEqualTo(jsonPatchToMongoUpdate.convertToMongoUpdates(readPatch(patch),
+                    "{ _id: 1 }", "customer", "customer").asJavascript(true));
+            assertThat(lazy.convertToDocuments(readPatch(patch), "customer").asList())
+                    .isEqualTo(jsonPatchToMongoUpdate.convertToDocuments(readPatch(patch), "customer").asList());
+        }
+        MongoConversion conversion = lazy.convert(new StringReader(
+                "[{\"op\": \"add\", \"path\": \"/address\", \"value\": {\"city\": \"Lyon\", \"zip\": [69, 1]}}," +
+                        "{\"op\": \"add\", \"path\": \"/notes\", \"value\": {\"text\": \"n\"}}," +
+                        "{\"op\": \"replace\", \"path\": \"/notes/text\", \"value\": \"m\"}," +
+                        "{\"op\": \"test\", \"path\": \"/address\", \"value\": {\"zip\": [69, 1], \"city\": \"Lyon\"}}]"));
+        assertThat(conversion.getSet().get("address")).isInstanceOf(LazyValueNode.class);
+        assertThat(conversion.getSet().get("address").toString()).isEqualTo("{\"city\":\"Lyon\",\"zip\":[69,1]}");
+        assertThat(conversion.getSet().get("notes").isObject()).isTrue();
+        assertThat(conversion.getSet().get("notes").get("text").asText()).isEqualTo("m");
+    }
+
+    private Reader readPatch(String name) {
+        return new InputStreamReader(Thread.currentThread().getContextClassLoader().getResourceAsStream("patch/" + name),
+                StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void whenPositionalAddsAreNotContiguous_ShouldPushThemSeparately() throws IOException {
+        jsonPatchToMongoUpdate.setArrayStrategy(ArrayStrategy.POSITIONAL);
+        MongoUpdateDocuments documents = jsonPatchToMongoUpdate.convertToDocuments(new StringReader(
+                "[{\"op\": \"add\", \"path\": \"/tags/2\", \"value\": 1}," +
+                        "{\"op\": \"add\", \"path\": \"/tags/7\", \"value\": 2}," +
+                        "{\"op\": \"add\", \"path\": \"/tags/8\", \"value\": 3}]"));
+        assertThat(documents.getPushes()).containsExactly(
+                BsonDocument.parse("{$push: {tags: {$each: [1], $position: 2}}}"),
+                BsonDocument.parse("{$push: {tags: {$each: [2, 3], $position: 7}}}"));
+
+        MongoCommands mongoQueries = jsonPatchToMongoUpdate.convertToMongoUpdates(new StringReader(
+                "[{\"op\": \"add\", \"path\": \"/tags/0\", \"value\": \"a\"}," +
+                        "{\"op\": \"add\", \"path\": \"/tags/-\", \"value\": \"b\"}]"),
+                "{ _id: 1 }", "customer");
+        assertThat(mongoQueries.getPush()).startsWith(
+                "db.customer.update ( { _id: 1 }, { $push: {\"tags\":{ $each:[\"a\"], $position: 0 } } } );")
+                .endsWith("db.customer.update ( { _id: 1 }, { $push: {\"tags\":\"b\" } } )");
+
+        // the separate push runs last, so the elements it shifts cannot be changed before it
+        assertThrows(PatchConversionException.class, () -> jsonPatchToMongoUpdate.convert(new StringReader(
+                "[{\"op\": \"add\", \"path\": \"/tags/2\", \"value\": 1}," +
+                        "{\"op\": \"add\", \"path\": \"/tags/7\", \"value\": 2}," +
+                        "{\"op\": \"replace\", \"path\": \"/tags/9\", \"value\": 3}]")));
+    }
+
     private void checkMongoConversion(MongoConversion res) throws IOException {
         MongoCommands mongoCommands = jsonPatchToMongoUpdate.convertToMongo(res, "customer");
         assertThat(mongoCommands).isNotNull();
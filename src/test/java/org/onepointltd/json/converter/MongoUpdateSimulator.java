@@ -0,0 +1,446 @@
+package org.onepointltd.json.converter;
+
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonNull;
+import org.bson.BsonNumber;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-process stand-in for the MongoDB update semantics used by the converter, so that the generated updates can
+ * be applied without a database. It supports the filters built from test operations ($and, $eq, $exists), the
+ * update operators $rename, $set, $unset, $pull, $push with $each and $position, and update pipelines with
+ * $set and $unset stages and the expressions used for moves and array removals.
+ * <p>
+ * Anything else, as well as any update MongoDB would reject, like a $set through a scalar or a $push to a field
+ * which is not an array, throws an {@link IllegalArgumentException}.
+ */
+class MongoUpdateSimulator {
+
+    private MongoUpdateSimulator() {
+    }
+
+    /**
+     * Applies the updates in order to the document, skipping the updates whose filter does not match.
+     *
+     * @return the number of updates which matched.
+     */
+    static int apply(BsonDocument document, List<BulkUpdate> updates) {
+        int matched = 0;
+        for (BulkUpdate update : updates) {
+            if (!matches(document, update.getFilter())) {
+                continue;
+            }
+            matched++;
+            if (update.isPipeline()) {
+                update.getPipeline().forEach(stage -> applyStage(document, stage));
+            } else {
+                update.getUpdate().forEach((operator, fields) -> applyOperator(document, operator, fields.asDocument()));
+            }
+        }
+        return matched;
+    }
+
+    static boolean matches(BsonDocument document, BsonDocument filter) {
+        if (filter == null) {
+            return true;
+        }
+        for (Map.Entry<String, BsonValue> condition : filter.entrySet()) {
+            if (condition.getKey().equals("$and")) {
+                for (BsonValue part : condition.getValue().asArray()) {
+                    if (!matches(document, part.asDocument())) {
+                        return false;
+                    }
+                }
+                continue;
+            }
+            BsonValue actual = get(document, condition.getKey());
+            BsonValue expected = condition.getValue();
+            if (expected.isDocument() && !expected.asDocument().isEmpty()
+                    && expected.asDocument().getFirstKey().startsWith("$")) {
+                for (Map.Entry<String, BsonValue> operator : expected.asDocument().entrySet()) {
+                    if (!matches(actual, operator.getKey(), operator.getValue())) {
+                        return false;
+                    }
+                }
+            } else if (!equal(actual, expected)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(BsonValue actual, String operator, BsonValue operand) {
+        switch (operator) {
+            case "$eq":
+                // like in MongoDB, null also matches a missing field
+                return operand.isNull() ? actual == null || actual.isNull() : equal(actual, operand);
+            case "$exists":
+                return (actual != null) == operand.asBoolean().getValue();
+            default:
+                throw new IllegalArgumentException("Unsupported query operator " + operator);
+        }
+    }
+
+    private static void applyOperator(BsonDocument document, String operator, BsonDocument fields) {
+        fields.forEach((path, value) -> {
+            switch (operator) {
+                case "$set":
+                    set(document, path, value);
+                    break;
+                case "$unset":
+                    unset(document, path);
+                    break;
+                case "$pull":
+                    pull(document, path, value);
+                    break;
+                case "$push":
+                    push(document, path, value);
+                    break;
+                case "$rename":
+                    BsonValue renamed = get(document, path);
+                    if (renamed != null) {
+                        unset(document, path);
+                        set(document, value.asString().getValue(), renamed);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported update operator " + operator);
+            }
+        });
+    }
+
+    private static void applyStage(BsonDocument document, BsonDocument stage) {
+        String name = stage.getFirstKey();
+        BsonValue argument = stage.get(name);
+        switch (name) {
+            case "$set":
+            case "$addFields":
+                Map<String, BsonValue> values = new HashMap<>();
+                // all expressions of a stage see the document as it was before the stage
+                argument.asDocument().forEach((path, expression) -> values.put(path, evaluate(document, expression,
+                        Collections.emptyMap())));
+                argument.asDocument().keySet().forEach(path -> {
+                    BsonValue value = values.get(path);
+                    if (value == null) {
+                        unset(document, path);
+                    } else {
+                        set(document, path, value);
+                    }
+                });
+                break;
+            case "$unset":
+                if (argument.isArray()) {
+                    argument.asArray().forEach(path -> unset(document, path.asString().getValue()));
+                } else {
+                    unset(document, argument.asString().getValue());
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported pipeline stage " + name);
+        }
+    }
+
+    /**
+     * @return the value of the expression, or {@code null} if it refers to a missing field.
+     */
+    private static BsonValue evaluate(BsonDocument document, BsonValue expression, Map<String, BsonValue> variables) {
+        if (expression.isString()) {
+            String text = expression.asString().getValue();
+            if (text.startsWith("$$")) {
+                String variable = text.substring(2);
+                if (!variables.containsKey(variable)) {
+                    throw new IllegalArgumentException("Undefined variable " + variable);
+                }
+                return variables.get(variable);
+            }
+            return text.startsWith("$") ? get(document, text.substring(1)) : expression;
+        }
+        if (expression.isArray()) {
+            BsonArray values = new BsonArray();
+            expression.asArray().forEach(element -> values.add(orNull(evaluate(document, element, variables))));
+            return values;
+        }
+        if (!expression.isDocument() || expression.asDocument().isEmpty()
+                || !expression.asDocument().getFirstKey().startsWith("$")) {
+            if (!expression.isDocument()) {
+                return expression;
+            }
+            BsonDocument values = new BsonDocument();
+            expression.asDocument().forEach((key, value) -> {
+                BsonValue evaluated = evaluate(document, value, variables);
+                if (evaluated != null) {
+                    values.put(key, evaluated);
+                }
+            });
+            return values;
+        }
+        String operator = expression.asDocument().getFirstKey();
+        BsonValue operand = expression.asDocument().get(operator);
+        switch (operator) {
+            case "$literal":
+                return operand;
+            case "$map":
+            case "$filter": {
+                BsonDocument arguments = operand.asDocument();
+                BsonValue input = evaluate(document, arguments.get("input"), variables);
+                if (input == null || input.isNull()) {
+                    return BsonNull.VALUE;
+                }
+                String as = arguments.getString("as", new BsonString("this")).getValue();
+                BsonArray result = new BsonArray();
+                for (BsonValue element : input.asArray()) {
+                    Map<String, BsonValue> scope = new HashMap<>(variables);
+                    scope.put(as, element);
+                    if (operator.equals("$map")) {
+                        result.add(orNull(evaluate(document, arguments.get("in"), scope)));
+                    } else if (isTrue(evaluate(document, arguments.get("cond"), scope))) {
+                        result.add(element);
+                    }
+                }
+                return result;
+            }
+            case "$range": {
+                BsonArray arguments = evaluate(document, operand, variables).asArray();
+                int start = arguments.get(0).asNumber().intValue();
+                int end = arguments.get(1).asNumber().intValue();
+                int step = arguments.size() > 2 ? arguments.get(2).asNumber().intValue() : 1;
+                BsonArray result = new BsonArray();
+                for (int i = start; step > 0 ? i < end : i > end; i += step) {
+                    result.add(new BsonInt32(i));
+                }
+                return result;
+            }
+            case "$size":
+                return new BsonInt32(evaluate(document, unwrap(operand), variables).asArray().size());
+            case "$not":
+                return BsonBoolean.valueOf(!isTrue(evaluate(document, unwrap(operand), variables)));
+            case "$in": {
+                BsonArray arguments = operand.asArray();
+                BsonValue value = orNull(evaluate(document, arguments.get(0), variables));
+                for (BsonValue candidate : evaluate(document, arguments.get(1), variables).asArray()) {
+                    if (equal(value, candidate)) {
+                        return BsonBoolean.TRUE;
+                    }
+                }
+                return BsonBoolean.FALSE;
+            }
+            case "$arrayElemAt": {
+                BsonArray arguments = operand.asArray();
+                BsonArray array = evaluate(document, arguments.get(0), variables).asArray();
+                int index = evaluate(document, arguments.get(1), variables).asNumber().intValue();
+                if (index < 0) {
+                    index += array.size();
+                }
+                return index >= 0 && index < array.size() ? array.get(index) : null;
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported expression operator " + operator);
+        }
+    }
+
+    /**
+     * Single arguments of expression operators may or may not be wrapped in an array.
+     */
+    private static BsonValue unwrap(BsonValue operand) {
+        return operand.isArray() && operand.asArray().size() == 1 ? operand.asArray().get(0) : operand;
+    }
+
+    private static boolean isTrue(BsonValue value) {
+        if (value == null || value.isNull()) {
+            return false;
+        }
+        if (value.isBoolean()) {
+            return value.asBoolean().getValue();
+        }
+        if (value.isNumber()) {
+            return value.asNumber().doubleValue() != 0;
+        }
+        return true;
+    }
+
+    private static BsonValue orNull(BsonValue value) {
+        return value == null ? BsonNull.VALUE : value;
+    }
+
+    /**
+     * @return the value at the dot path, or {@code null} if it is missing.
+     */
+    static BsonValue get(BsonDocument document, String path) {
+        BsonValue current = document;
+        for (String segment : path.split("\\.", -1)) {
+            if (current == null) {
+                return null;
+            }
+            current = child(current, segment);
+        }
+        return current;
+    }
+
+    private static BsonValue child(BsonValue container, String segment) {
+        if (container.isDocument()) {
+            return container.asDocument().get(segment);
+        }
+        if (container.isArray()) {
+            int index = index(segment);
+            List<BsonValue> values = container.asArray().getValues();
+            return index >= 0 && index < values.size() ? values.get(index) : null;
+        }
+        return null;
+    }
+
+    private static void set(BsonDocument document, String path, BsonValue value) {
+        String[] segments = path.split("\\.", -1);
+        BsonValue container = document;
+        for (int i = 0; i < segments.length - 1; i++) {
+            BsonValue next = child(container, segments[i]);
+            if (next == null) {
+                next = new BsonDocument();
+                put(container, segments[i], next, path);
+            } else if (!next.isDocument() && !next.isArray()) {
+                throw new IllegalArgumentException(String.format("Cannot create field '%s' in element %s of %s",
+                        segments[i + 1], next, path));
+            }
+            container = next;
+        }
+        put(container, segments[segments.length - 1], copy(value), path);
+    }
+
+    private static void put(BsonValue container, String segment, BsonValue value, String path) {
+        if (container.isDocument()) {
+            container.asDocument().put(segment, value);
+            return;
+        }
+        int index = index(segment);
+        if (index < 0) {
+            throw new IllegalArgumentException(String.format("Cannot create field '%s' in an array of %s", segment,
+                    path));
+        }
+        BsonArray array = container.asArray();
+        while (array.size() <= index) {
+            array.add(BsonNull.VALUE);
+        }
+        array.set(index, value);
+    }
+
+    private static void unset(BsonDocument document, String path) {
+        int last = path.lastIndexOf('.');
+        BsonValue container = last < 0 ? document : get(document, path.substring(0, last));
+        String segment = path.substring(last + 1);
+        if (container == null) {
+            return;
+        }
+        if (container.isDocument()) {
+            container.asDocument().remove(segment);
+        } else if (container.isArray()) {
+            int index = index(segment);
+            if (index >= 0 && index < container.asArray().size()) {
+                // like in MongoDB, an unset array element becomes null
+                container.asArray().set(index, BsonNull.VALUE);
+            }
+        }
+    }
+
+    private static void pull(BsonDocument document, String path, BsonValue condition) {
+        BsonValue array = get(document, path);
+        if (array == null) {
+            return;
+        }
+        if (!array.isArray()) {
+            throw new IllegalArgumentException("Cannot apply $pull to a non-array value at " + path);
+        }
+        if (condition.isDocument() && !condition.asDocument().isEmpty()
+                && condition.asDocument().getFirstKey().startsWith("$")) {
+            throw new IllegalArgumentException("Unsupported $pull condition " + condition);
+        }
+        array.asArray().removeIf(element -> equal(element, condition));
+    }
+
+    private static void push(BsonDocument document, String path, BsonValue value) {
+        List<BsonValue> values;
+        int position = -1;
+        if (value.isDocument() && value.asDocument().containsKey("$each")) {
+            values = new ArrayList<>(value.asDocument().getArray("$each").getValues());
+            if (value.asDocument().containsKey("$position")) {
+                position = value.asDocument().get("$position").asNumber().intValue();
+            }
+        } else {
+            values = Collections.singletonList(value);
+        }
+        BsonValue target = get(document, path);
+        if (target == null) {
+            set(document, path, new BsonArray());
+            // the set stores a copy
+            target = get(document, path);
+        } else if (!target.isArray()) {
+            throw new IllegalArgumentException("The field " + path + " must be an array to $push to it");
+        }
+        BsonArray array = target.asArray();
+        int at = position < 0 || position > array.size() ? array.size() : position;
+        for (BsonValue element : values) {
+            array.add(at++, copy(element));
+        }
+    }
+
+    /**
+     * Copies documents and arrays, so that values stored twice, like by a copy, do not share their state.
+     */
+    private static BsonValue copy(BsonValue value) {
+        if (value.isDocument()) {
+            return value.asDocument().clone();
+        }
+        return value.isArray() ? value.asArray().clone() : value;
+    }
+
+    private static int index(String segment) {
+        return PatchCoalescer.arrayIndex(segment);
+    }
+
+    /**
+     * Compares like MongoDB: numbers by value, documents by their fields in order.
+     */
+    static boolean equal(BsonValue a, BsonValue b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a.isNumber() && b.isNumber()) {
+            return ((BsonNumber) a).doubleValue() == ((BsonNumber) b).doubleValue();
+        }
+        if (a.isArray() && b.isArray()) {
+            List<BsonValue> x = a.asArray().getValues();
+            List<BsonValue> y = b.asArray().getValues();
+            if (x.size() != y.size()) {
+                return false;
+            }
+            for (int i = 0; i < x.size(); i++) {
+                if (!equal(x.get(i), y.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a.isDocument() && b.isDocument()) {
+            List<Map.Entry<String, BsonValue>> x = new ArrayList<>(a.asDocument().entrySet());
+            List<Map.Entry<String, BsonValue>> y = new ArrayList<>(b.asDocument().entrySet());
+            if (x.size() != y.size()) {
+                return false;
+            }
+            for (int i = 0; i < x.size(); i++) {
+                if (!x.get(i).getKey().equals(y.get(i).getKey()) || !equal(x.get(i).getValue(), y.get(i).getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return a.equals(b);
+    }
+}
@@ -0,0 +1,140 @@
+package org.onepointltd.json.converter;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class NdjsonBatchConverterTest {
+
+    private final JsonPatchToMongoUpdate converter = new JsonPatchToMongoUpdate();
+
+    @Test
+    void whenConvertScript_ShouldWriteScriptsInInputOrder() throws Exception {
+        List<String> lines = new ArrayList<>();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            String patch = "[{\"op\": \"replace\", \"path\": \"/name\", \"value\": \"n" + i + "\"}," +
+                    "{\"op\": \"add\", \"path\": \"/tags/-\", \"value\": " + i + "}]";
+            if (i % 3 == 0) {
+                lines.add("{\"filter\": {\"_id\": " + i + "}, \"collection\": \"orders\", \"patch\": " + patch + "}");
+                expected.append(converter.convertToMongoUpdates(new StringReader(patch), "{\"_id\":" + i + "}",
+                        "orders", "customer").asJavascript(false));
+            } else {
+                lines.add(patch);
+                expected.append(converter.convertToMongoUpdates(new StringReader(patch), "{ _id: 0 }", "customers",
+                        "customer").asJavascript(false));
+            }
+        }
+        NdjsonBatchConverter batchConverter = createBatchConverter();
+        batchConverter.setDefaultFilter("{ _id: 0 }");
+        Path input = write(String.join("\r\n", lines) + "\n\n");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NdjsonBatchConverter.Statistics statistics = batchConverter.convert(input, out);
+        assertThat(new String(out.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(expected.toString());
+        assertThat(statistics.getRecords()).isEqualTo(200);
+        assertThat(statistics.getErrors()).isEqualTo(0);
+        assertThat(statistics.getBytes()).isEqualTo(Files.size(input));
+    }
+
+    @Test
+    void whenConvertBulk_ShouldWriteOneDocumentPerUpdate() throws Exception {
+        NdjsonBatchConverter batchConverter = createBatchConverter();
+        batchConverter.setOutputFormat(OutputFormat.BULK);
+        Path input = write("[{\"op\": \"remove\", \"path\": \"/a\"}, {\"op\": \"replace\", \"path\": \"/b\", \"value\": 1}]\n" +
+                "{\"filter\": {\"_id\": 2}, \"patch\": [{\"op\": \"replace\", \"path\": \"/b\", \"value\": 2}]}");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batchConverter.convert(input, out);
+        assertThat(new String(out.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(
+                "{\"collection\": \"customers\", \"filter\": {}, \"update\": {\"$unset\": {\"customer.a\": \"\"}}}\n" +
+                "{\"collection\": \"customers\", \"filter\": {}, \"update\": {\"$set\": {\"customer.b\": 1}}}\n" +
+                "{\"collection\": \"customers\", \"filter\": {\"_id\": 2}, \"update\": {\"$set\": {\"customer.b\": 2}}}\n");
+    }
+
+    @Test
+    void whenLineIsInvalid_ShouldFailOrSkip() throws Exception {
+        Path input = write("[{\"op\": \"remove\", \"path\": \"/a\"}]\n{\"patch\": 1}\n[{\"op\": \"remove\", \"path\": \"/b\"}]\n");
+        NdjsonBatchConverter batchConverter = createBatchConverter();
+        IOException failure = assertThrows(IOException.class, () -> batchConverter.convert(input, new ByteArrayOutputStream()));
+        assertThat(failure.getMessage()).startsWith("Line 2:");
+        batchConverter.setSkipInvalid(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NdjsonBatchConverter.Statistics statistics = batchConverter.convert(input, out);
+        assertThat(statistics.getErrors()).isEqualTo(1);
+        assertThat(new String(out.toByteArray(), StandardCharsets.UTF_8)).contains("customer.a").contains("customer.b");
+    }
+
+    @Test
+    void whenLineHasTrailingValueOrCollectionIsNoString_ShouldSkipLine() throws Exception {
+        String remove = "[{\"op\": \"remove\", \"path\": \"/a\"}]";
+        Path input = write(remove + " " + remove + "\n" +
+                "{\"patch\": " + remove + "} {\"patch\": " + remove + "}\n" +
+                "{\"collection\": {\"name\": \"orders\"}, \"patch\": " + remove + "}\n" +
+                "{\"collection\": 1, \"patch\": " + remove + "}\n" +
+                "{\"collection\": \"orders\", \"patch\": " + remove + "}\n");
+        NdjsonBatchConverter batchConverter = createBatchConverter();
+        IOException failure = assertThrows(IOException.class, () -> batchConverter.convert(input, new ByteArrayOutputStream()));
+        assertThat(failure.getMessage()).startsWith("Line 1:");
+        batchConverter.setSkipInvalid(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NdjsonBatchConverter.Statistics statistics = batchConverter.convert(input, out);
+        assertThat(statistics.getErrors()).isEqualTo(4);
+        assertThat(new String(out.toByteArray(), StandardCharsets.UTF_8).trim())
+                .isEqualTo("db.orders.update ( {}, { $unset: {\"customer.a\":\"\" } } );");
+    }
+
+    @Test
+    void whenRunFromCommandLine_ShouldReportStatistics() throws Exception {
+        Path input = write("[{\"op\": \"remove\", \"path\": \"/a\"}]\n");
+        Path output = Files.createTempFile("patches", ".js");
+        output.toFile().deleteOnExit();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        int code = BatchConverterMain.run(new String[]{"--collection", "customers", "--threads", "2",
+                input.toString(), output.toString()}, new ByteArrayOutputStream(), new PrintStream(stderr));
+        assertThat(code).isEqualTo(0);
+        assertThat(new String(Files.readAllBytes(output), StandardCharsets.UTF_8)).contains("db.customers.update ( {}, { $unset: {\"a\":\"\" } } )");
+        assertThat(stderr.toString()).contains("1 records, 0 errors");
+        assertThat(BatchConverterMain.run(new String[]{"--format"}, new ByteArrayOutputStream(),
+                new PrintStream(new ByteArrayOutputStream()))).isEqualTo(2);
+    }
+
+    @Test
+    void whenRunWithInvalidThreadsOrFilter_ShouldPrintUsage() throws Exception {
+        Path input = write("[{\"op\": \"remove\", \"path\": \"/a\"}]\n");
+        Path output = Files.createTempFile("patches", ".js");
+        output.toFile().deleteOnExit();
+        for (String[] options : new String[][]{{"--threads", "0"}, {"--filter", "{_id:"}, {"--filter", "[1]"}}) {
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            int code = BatchConverterMain.run(new String[]{options[0], options[1], input.toString(), output.toString()},
+                    new ByteArrayOutputStream(), new PrintStream(stderr));
+            assertThat(code).isEqualTo(2);
+            assertThat(stderr.toString()).contains("Usage");
+        }
+    }
+
+    private NdjsonBatchConverter createBatchConverter() {
+        NdjsonBatchConverter batchConverter = new NdjsonBatchConverter(converter, 3);
+        batchConverter.setDefaultCollection("customers");
+        batchConverter.setPrefixes("customer");
+        // small windows and batches, so that lines span windows and many batches are in flight
+        batchConverter.setWindowSize(256);
+        batchConverter.setBatchSize(300);
+        return batchConverter;
+    }
+
+    private Path write(String content) throws IOException {
+        Path file = Files.createTempFile("patches", ".ndjson");
+        file.toFile().deleteOnExit();
+        return Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
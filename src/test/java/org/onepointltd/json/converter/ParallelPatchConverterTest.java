@@ -0,0 +1,89 @@
+package org.onepointltd.json.converter;
+
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ParallelPatchConverterTest {
+
+    private final JsonPatchToMongoUpdate converter = new JsonPatchToMongoUpdate();
+
+    @Test
+    void whenConvertToBulkWrite_ShouldMatchSequentialConversion() throws Exception {
+        try (ParallelPatchConverter parallel = new ParallelPatchConverter(converter, 4, 3)) {
+            BulkWritePlan parallelPlan = parallel.convertToBulkWrite(createRequests(200));
+            BulkWritePlan sequentialPlan = converter.convertToBulkWrite(createRequests(200));
+            assertThat(parallelPlan.getUpdates().keySet()).isEqualTo(sequentialPlan.getUpdates().keySet());
+            for (String collection : sequentialPlan.getUpdates().keySet()) {
+                assertThat(parallelPlan.getUpdates(collection).toString())
+                        .isEqualTo(sequentialPlan.getUpdates(collection).toString());
+            }
+        }
+    }
+
+    @Test
+    void whenConvertingPatchesForTheSameDocument_ShouldDeliverInOrder() throws Exception {
+        List<String> delivered = new ArrayList<>();
+        List<PatchRequest> requests = new ArrayList<>();
+        BsonDocument filter = BsonDocument.parse("{ _id: 1 }");
+        for (int i = 0; i < 100; i++) {
+            requests.add(new PatchRequest(createPatch("v" + i, 100 - i), filter, "customer"));
+        }
+        try (ParallelPatchConverter parallel = new ParallelPatchConverter(converter, 8, 16)) {
+            parallel.convert(requests, (request, documents) ->
+                    delivered.add(documents.getSet().getDocument("$set").getString("lastName").getValue()));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertThat(delivered.get(i)).isEqualTo("v" + i);
+        }
+    }
+
+    @Test
+    void whenInterruptedWhileClosing_ShouldKeepInterruptFlag() {
+        ParallelPatchConverter parallel = new ParallelPatchConverter(converter, 2, 2);
+        Thread.currentThread().interrupt();
+        parallel.close();
+        // clears the flag for the following tests
+        assertThat(Thread.interrupted()).isTrue();
+    }
+
+    @Test
+    void whenPatchIsInvalid_ShouldPropagateIOException() throws Exception {
+        try (ParallelPatchConverter parallel = new ParallelPatchConverter(converter, 2, 2)) {
+            List<PatchRequest> requests = createRequests(3);
+            requests.add(new PatchRequest(new StringReader("{"), BsonDocument.parse("{ _id: 9 }"), "customer"));
+            assertThrows(IOException.class, () -> parallel.convertToBulkWrite(requests));
+            CompletableFuture<MongoUpdateDocuments> failed =
+                    parallel.submit(new PatchRequest(new StringReader("["), null, "customer"));
+            assertThrows(CompletionException.class, failed::join);
+        }
+    }
+
+    private static List<PatchRequest> createRequests(int count) {
+        List<PatchRequest> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            requests.add(new PatchRequest(createPatch("name" + i, i % 7), BsonDocument.parse("{ _id: " + (i % 10) + " }"),
+                    i % 3 == 0 ? "audit" : "customer", "customer"));
+        }
+        return requests;
+    }
+
+    private static StringReader createPatch(String value, int notes) {
+        StringBuilder patch = new StringBuilder("[{\"op\": \"replace\", \"path\": \"/lastName\", \"value\": \"")
+                .append(value).append("\"}, {\"op\": \"remove\", \"path\": \"/preferences/0\"}");
+        for (int i = 0; i < notes; i++) {
+            patch.append(", {\"op\": \"add\", \"path\": \"/notes/").append(i).append("\", \"value\": {\"note\": ")
+                    .append(i).append("}}");
+        }
+        return new StringReader(patch.append("]").toString());
+    }
+}
@@ -0,0 +1,133 @@
+package org.onepointltd.json.converter;
+
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+class PatchCoalescerTest {
+
+    private final JsonPatchToMongoUpdate jsonPatchToMongoUpdate = new JsonPatchToMongoUpdate();
+
+    @Test
+    void whenReplaceIsFollowedByRemove_ShouldOnlyUnset() throws IOException {
+        MongoConversion conversion = convert("[{\"op\": \"replace\", \"path\": \"/a\", \"value\": 1}," +
+                "{\"op\": \"remove\", \"path\": \"/a\"}]");
+        assertThat(conversion.getSet()).isEmpty();
+        assertThat(conversion.getUnset()).containsExactly("a");
+    }
+
+    @Test
+    void whenRemoveIsFollowedByReplace_ShouldOnlySet() throws IOException {
+        MongoConversion conversion = convert("[{\"op\": \"remove\", \"path\": \"/a\"}," +
+                "{\"op\": \"replace\", \"path\": \"/a\", \"value\": 1}]");
+        assertThat(conversion.getUnset()).isEmpty();
+        assertThat(conversion.getSet().get("a").asInt()).isEqualTo(1);
+    }
+
+    @Test
+    void whenChildIsSetAfterParent_ShouldMergeIntoParent() throws IOException {
+        MongoConversion conversion = convert("[{\"op\": \"replace\", \"path\": \"/a\", \"value\": {\"b\": 1, \"c\": [1, 2]}}," +
+                "{\"op\": \"replace\", \"path\": \"/a/b\", \"value\": 2}," +
+                "{\"op\": \"remove\", \"path\": \"/a/c/0\"}," +
+                "{\"op\": \"add\", \"path\": \"/a/c/-\", \"value\": 3}]");
+        assertThat(conversion.getSet()).hasSize(1);
+        assertThat(conversion.getSet().get("a").toString()).isEqualTo("{\"b\":2,\"c\":[2,3]}");
+        assertThat(conversion.getUnset()).isEmpty();
+        assertThat(conversion.getPush()).isEmpty();
+    }
+
+    @Test
+    void whenParentIsSetAfterChildren_ShouldDropChildren() throws IOException {
+        MongoConversion conversion = convert("[{\"op\": \"replace\", \"path\": \"/a/b\", \"value\": 1}," +
+                "{\"op\": \"remove\", \"path\": \"/a/c\"}," +
+                "{\"op\": \"add\", \"path\": \"/a/d/0\", \"value\": 1}," +
+                "{\"op\": \"add\", \"path\": \"/a/d/1\", \"value\": 2}," +
+                "{\"op\": \"replace\", \"path\": \"/a\", \"value\": {\"e\": 1}}]");
+        assertThat(conversion.getSet().keySet()).containsExactly("a");
+        assertThat(conversion.getUnset()).isEmpty();
+        assertThat(conversion.getPush()).isEmpty();
+    }
+
+    @Test
+    void whenArrayIsReplacedAfterAdds_ShouldDropPushes() throws IOException {
+        MongoConversion conversion = convert("[{\"op\": \"add\", \"path\": \"/notes/1\", \"value\": 1}," +
+                "{\"op\": \"add\", \"path\": \"/notes/2\", \"value\": 2}," +
+                "{\"op\": \"replace\", \"path\": \"/notes\", \"value\": []}]");
+        assertThat(conversion.getPush()).isEmpty();
+        assertThat(conversion.getSet().get("notes").size()).isEqualTo(0);
+    }
+
+    @Test
+    void whenRemovingArrayPositions_ShouldKeepShiftedOperations() throws IOException {
+        MongoConversion conversion = convert("[{\"op\": \"remove\", \"path\": \"/arr/3\"}," +
+                "{\"op\": \"replace\", \"path\": \"/arr/3\", \"value\": {\"x\": 1, \"y\": 2}}," +
+                "{\"op\": \"remove\", \"path\": \"/arr/3/x\"}," +
+                "{\"op\": \"remove\", \"path\": \"/arr/5\"}," +
+                "{\"op\": \"remove\", \"path\": \"/arr/5/z\"}]");
+        // the unsets run before the removes, so the element now at position 5 is the original element 7
+        assertThat(conversion.getUnset()).containsOnly("arr.3", "arr.6", "arr.7.z");
+        assertThat(conversion.getSet().get("arr.3").toString()).isEqualTo("{\"y\":2}");
+    }
+
+    @Test
+    void whenRemovingSeveralArrayPositions_ShouldReferToOriginalPositions() throws IOException {
+        MongoConversion conversion = convert("[{\"op\": \"remove\", \"path\": \"/arr/3\"}," +
+                "{\"op\": \"remove\", \"path\": \"/arr/3\"}," +
+                "{\"op\": \"remove\", \"path\": \"/arr/1\"}," +
+                "{\"op\": \"remove\", \"path\": \"/arr/3\"}]");
+        assertThat(conversion.getUnset()).containsOnly("arr.1", "arr.3", "arr.4", "arr.6");
+    }
+
+    @Test
+    void whenCopyingPushedPosition_ShouldCopyPushedValue() throws IOException {
+        jsonPatchToMongoUpdate.setArrayStrategy(ArrayStrategy.POSITIONAL);
+        MongoConversion conversion = convert("[{\"op\": \"replace\", \"path\": \"/b/0\", \"value\": 10}," +
+                "{\"op\": \"add\", \"path\": \"/b/0\", \"value\": 48}," +
+                "{\"op\": \"copy\", \"from\": \"/b/0\", \"path\": \"/x\"}," +
+                "{\"op\": \"copy\", \"from\": \"/b/1\", \"path\": \"/y\"}]");
+        assertThat(conversion.getSet().get("x").asInt()).isEqualTo(48);
+        // the set runs before the push, so the position after the pushed value is the set one
+        assertThat(conversion.getSet().get("y").asInt()).isEqualTo(10);
+        assertThat(conversion.getSet().get("b.0").asInt()).isEqualTo(10);
+    }
+
+    @Test
+    void whenTestingAfterRemovingArrayPositions_ShouldTestOriginalPosition() throws IOException {
+        MongoConversion conversion = convert("[{\"op\": \"remove\", \"path\": \"/c/0\"}," +
+                "{\"op\": \"test\", \"path\": \"/c/2\", \"value\": {\"a\": 1}}," +
+                "{\"op\": \"remove\", \"path\": \"/c\"}," +
+                "{\"op\": \"replace\", \"path\": \"/x\", \"value\": 1}]");
+        assertThat(conversion.getTest()).containsOnlyKeys("c.3");
+        MongoUpdateDocuments documents = jsonPatchToMongoUpdate.convertToDocuments(conversion);
+        assertThat(documents.toUpdates(new BsonDocument()).get(1).getFilter())
+                .isEqualTo(BsonDocument.parse("{\"c.3\": {$exists: false}}"));
+    }
+
+    @Test
+    void whenMovingIntoElementOfSourceArray_ShouldAddToElementAfterRemove() throws IOException {
+        jsonPatchToMongoUpdate.setArrayStrategy(ArrayStrategy.POSITIONAL);
+        // once the source is removed, position 2 holds the object, in which "0" is a member name
+        MongoConversion conversion = convert("[{\"op\": \"replace\", \"path\": \"/h\", \"value\": [[], 88, [], {\"f\": null}]}," +
+                "{\"op\": \"move\", \"from\": \"/h/0\", \"path\": \"/h/2/0\"}]");
+        assertThat(conversion.getSet().get("h").toString()).isEqualTo("[88,[],{\"f\":null,\"0\":[]}]");
+        assertThat(conversion.getPush()).isEmpty();
+    }
+
+    @Test
+    void whenReplacingShiftedPosition_ShouldKeepUnsetOfOriginalPosition() throws IOException {
+        // c.1 is the original c.2 once c.0 is removed, so the unset of the original c.1.h still has to run
+        MongoConversion conversion = convert("[{\"op\": \"remove\", \"path\": \"/c/1/h\"}," +
+                "{\"op\": \"remove\", \"path\": \"/c/0\"}," +
+                "{\"op\": \"replace\", \"path\": \"/c/1\", \"value\": 1}]");
+        assertThat(conversion.getUnset()).contains("c.1.h");
+        assertThat(conversion.getSet()).containsOnlyKeys("c.1");
+    }
+
+    private MongoConversion convert(String patch) throws IOException {
+        return jsonPatchToMongoUpdate.convert(new StringReader(patch));
+    }
+}
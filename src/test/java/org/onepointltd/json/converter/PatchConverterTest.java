@@ -0,0 +1,102 @@
+package org.onepointltd.json.converter;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PatchConverterTest {
+
+    private static final String PATCH = "[{\"op\": \"replace\", \"path\": \"/name\", \"value\": \"Jo\"}," +
+            "{\"op\": \"remove\", \"path\": \"/age\"}," +
+            "{\"op\": \"add\", \"path\": \"/tags/1\", \"value\": \"vip\"}]";
+
+    @Test
+    void whenBuilt_ShouldConvertLikeConfiguredConverter() throws IOException {
+        String[] prefixes = {"customer"};
+        PatchConverter converter = PatchConverter.builder().ignoreUnset(true).arrayStrategy(ArrayStrategy.APPEND)
+                .prefixes(prefixes).build();
+        prefixes[0] = "changed";
+        JsonPatchToMongoUpdate configured = new JsonPatchToMongoUpdate();
+        configured.setIgnoreUnset(true);
+        configured.setArrayStrategy(ArrayStrategy.APPEND);
+        assertThat(converter.convertToMongoUpdates(new StringReader(PATCH), "{}", "customers").asJavascript(false))
+                .isEqualTo(configured.convertToMongoUpdates(new StringReader(PATCH), "{}", "customers", "customer")
+                        .asJavascript(false));
+        assertThat(converter.getPrefixes()).containsExactly("customer");
+
+        PatchConverter variant = converter.toBuilder().ignoreUnset(false).build();
+        assertThat(variant.isIgnoreUnset()).isFalse();
+        assertThat(variant.getArrayStrategy()).isEqualTo(ArrayStrategy.APPEND);
+        assertThat(converter.isIgnoreUnset()).isTrue();
+    }
+
+    @Test
+    void whenWritingBulkFormat_ShouldWriteOneLinePerUpdate() throws IOException {
+        PatchConverter converter = PatchConverter.builder().prefixes("customer")
+                .arrayStrategy(ArrayStrategy.POSITIONAL).outputFormat(OutputFormat.BULK).filter("{\"_id\": 1}").build();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        converter.write(new StringReader(PATCH), "customers", out);
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertThat(lines).hasSize(3);
+        assertThat(lines[0]).isEqualTo("{\"collection\": \"customers\", \"filter\": {\"_id\": 1}, " +
+                "\"update\": {\"$unset\": {\"customer.age\": \"\"}}}");
+        assertThat(lines[1]).contains("\"update\": {\"$set\": {\"customer.name\": \"Jo\"}}");
+        assertThat(lines[2]).contains("\"$position\": 1");
+    }
+
+    @Test
+    void whenWritingBulkFormat_ShouldWriteSameJsonAsBson() throws IOException {
+        String filter = "{\"_id\": {\"$oid\": \"58a46cc6f7076692b7693c4e\"}}";
+        PatchConverter converter = PatchConverter.builder().outputFormat(OutputFormat.BULK).filter(filter).build();
+        String patch = "[{\"op\": \"replace\", \"path\": \"/name\", " +
+                "\"value\": {\"first\": \"Zo\u00eb \\\"Z\\\"\", \"score\": 1.5}}]";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        converter.write(new StringReader(patch), "customers", out);
+        BulkUpdate update = converter.convertToDocuments(new StringReader(patch))
+                .toUpdates(BsonDocument.parse(filter)).get(0);
+        assertThat(new String(out.toByteArray(), StandardCharsets.UTF_8))
+                .isEqualTo(update.toCommand(new BsonString("customers")).toJson() + "\n");
+    }
+
+    @Test
+    void whenFilterIsInvalid_ShouldFailToBuild() {
+        assertThrows(IllegalArgumentException.class, () -> PatchConverter.builder().filter("{_id:"));
+        assertThrows(IllegalArgumentException.class, () -> PatchConverter.builder().filter("[1]"));
+    }
+
+    @Test
+    void whenSharedByThreads_ShouldProduceSameScripts() throws Exception {
+        PatchConverter converter = PatchConverter.builder().prefixes("customer").build();
+        String expected = converter.convertToMongoUpdates(new StringReader(PATCH), "{}", "customers")
+                .asJavascript(false);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> scripts = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                scripts.add(executor.submit(() -> {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    converter.write(new StringReader(PATCH), "customers", out);
+                    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+                }));
+            }
+            for (Future<String> script : scripts) {
+                assertThat(script.get()).isEqualTo(expected);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
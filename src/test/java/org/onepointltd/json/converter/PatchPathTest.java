@@ -0,0 +1,43 @@
+package org.onepointltd.json.converter;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+class PatchPathTest {
+
+    @Test
+    void whenFromPointer_ShouldSplitAndFlagIndexes() {
+        PatchPath path = PatchPath.fromPointer("/extraNames/extraNames/0/nameType");
+        assertThat(path.size()).isEqualTo(4);
+        assertThat(path.isIndex(1)).isFalse();
+        assertThat(path.isIndex(2)).isTrue();
+        assertThat(path.endsWithIndex()).isFalse();
+        assertThat(path.toDot()).isEqualTo("extraNames.extraNames.0.nameType");
+    }
+
+    @Test
+    void whenFromPointerWithEscapes_ShouldUnescape() {
+        PatchPath path = PatchPath.fromPointer("/a~1b/m~0n/~01");
+        assertThat(path.segment(0)).isEqualTo("a/b");
+        assertThat(path.segment(1)).isEqualTo("m~n");
+        assertThat(path.segment(2)).isEqualTo("~1");
+        assertThat(path.isIndex(2)).isFalse();
+    }
+
+    @Test
+    void whenPathEndsWithIndex_ShouldProduceParent() {
+        PatchPath path = PatchPath.fromPointer("/notes/notes/12");
+        assertThat(path.endsWithIndex()).isTrue();
+        assertThat(path.parent().toDot()).isEqualTo("notes.notes");
+        assertThat(PatchPath.fromPointer("/notes/notes/-").endsWithIndex()).isTrue();
+    }
+
+    @Test
+    void whenFromDot_ShouldMatchPointer() {
+        assertThat(PatchPath.fromDot("contactPoints.contactPoints.4"))
+                .isEqualTo(PatchPath.fromPointer("/contactPoints/contactPoints/4"));
+        assertThat(PatchPath.fromPointer("").size()).isEqualTo(0);
+        assertThat(PatchPath.fromPointer("/").toDot()).isEqualTo("");
+    }
+}
@@ -0,0 +1,100 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonObjectId;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PatchRouterTest {
+
+    private static final String FIRST = "58a46cc6f7076692b7693c4e";
+
+    private static final String SECOND = "58a46cc6f7076692b7693c4f";
+
+    private static final String ENVELOPE = "[" +
+            "{\"op\": \"replace\", \"path\": \"/customers/" + FIRST + "/name\", \"value\": \"Jo\"}," +
+            "{\"op\": \"add\", \"path\": \"/orders/1001/lines/2/quantity\", \"value\": 3}," +
+            "{\"op\": \"remove\", \"path\": \"/customers/" + SECOND + "/age\"}," +
+            "{\"op\": \"add\", \"path\": \"/customers/" + FIRST + "/tags/1\", \"value\": \"vip\"}," +
+            "{\"op\": \"move\", \"from\": \"/customers/" + FIRST + "/nick\", \"path\": \"/customers/" + FIRST + "/alias\"}," +
+            "{\"op\": \"replace\", \"path\": \"/customers/" + FIRST + "/name\", \"value\": \"Joe\"}]";
+
+    private final JsonPatchToMongoUpdate converter = new JsonPatchToMongoUpdate();
+
+    private final PatchRouter router = PatchRouter.builder(converter)
+            .route("/customers/{_id:objectId}", "customers", "customer")
+            .route("/orders/{orderNo:long}/lines/{line:int}", "orderLines")
+            .build();
+
+    @Test
+    void whenRoutingEnvelope_ShouldConvertEachDocumentWithTypedFilter() throws IOException {
+        RoutedConversions routed = router.route(new StringReader(ENVELOPE));
+        assertThat(routed.getTargets().keySet()).containsExactly("customers", "orderLines");
+        List<PatchTarget> customers = routed.getTargets("customers");
+        assertThat(customers).hasSize(2);
+        assertThat(customers.get(0).getFilter()).isEqualTo(new BsonDocument("_id", new BsonObjectId(new ObjectId(FIRST))));
+        assertThat(customers.get(1).getFilter()).isEqualTo(new BsonDocument("_id", new BsonObjectId(new ObjectId(SECOND))));
+        assertThat(routed.getTargets("orderLines").get(0).getFilter()).isEqualTo(
+                new BsonDocument("orderNo", new BsonInt64(1001)).append("line", new BsonInt32(2)));
+        assertThat(routed.getTargets("invoices")).isEmpty();
+
+        // the operations of a document are converted as if they were a patch of their own
+        String first = "[{\"op\": \"replace\", \"path\": \"/name\", \"value\": \"Jo\"}," +
+                "{\"op\": \"add\", \"path\": \"/tags/1\", \"value\": \"vip\"}," +
+                "{\"op\": \"move\", \"from\": \"/nick\", \"path\": \"/alias\"}," +
+                "{\"op\": \"replace\", \"path\": \"/name\", \"value\": \"Joe\"}]";
+        assertThat(converter.convertToDocuments(customers.get(0).getConversion()).asList())
+                .isEqualTo(converter.convertToDocuments(new StringReader(first), "customer").asList());
+        assertThat(customers.get(1).getConversion().getUnset()).containsExactly("customer.age");
+    }
+
+    @Test
+    void whenConvertingEnvelopeToBulkWrite_ShouldGroupUpdatesPerCollection() throws IOException {
+        BulkWritePlan plan = router.convertToBulkWrite(new StringReader(ENVELOPE));
+        List<BulkUpdate> customers = plan.getUpdates("customers");
+        // move, set and push of the first customer, then the unset of the second one
+        assertThat(customers).hasSize(4);
+        assertThat(customers.get(0).getFilter().getObjectId("_id").getValue()).isEqualTo(new ObjectId(FIRST));
+        assertThat(customers.get(1).getUpdate().getDocument("$set").getString("customer.name").getValue())
+                .isEqualTo("Joe");
+        assertThat(customers.get(3).getFilter().getObjectId("_id").getValue()).isEqualTo(new ObjectId(SECOND));
+        assertThat(customers.get(3).getUpdate()).isEqualTo(BsonDocument.parse("{$unset: {\"customer.age\": \"\"}}"));
+        assertThat(plan.getUpdates("orderLines")).hasSize(1);
+        assertThat(plan.getUpdates("orderLines").get(0).getUpdate())
+                .isEqualTo(BsonDocument.parse("{$set: {quantity: 3}}"));
+    }
+
+    @Test
+    void whenEnvelopeHasElementWhichIsNoOperation_ShouldFail() {
+        assertThrows(JsonParseException.class, () -> router.route(new StringReader("[" +
+                "{\"op\": \"remove\", \"path\": \"/customers/" + FIRST + "/age\"}, null," +
+                "{\"op\": \"remove\", \"path\": \"/customers/" + SECOND + "/age\"}]")));
+        assertThrows(JsonParseException.class, () -> router.route(new StringReader("[" +
+                "{\"op\": \"remove\", \"path\": \"/customers/" + FIRST + "/age\"}, \"op\"]")));
+    }
+
+    @Test
+    void whenOperationCannotBeRouted_ShouldFail() {
+        assertThrows(PatchConversionException.class, () -> router.route(new StringReader(
+                "[{\"op\": \"remove\", \"path\": \"/invoices/1/total\"}]")));
+        assertThrows(PatchConversionException.class, () -> router.route(new StringReader(
+                "[{\"op\": \"remove\", \"path\": \"/orders/first/lines/1/total\"}]")));
+        assertThrows(PatchConversionException.class, () -> router.route(new StringReader(
+                "[{\"op\": \"replace\", \"path\": \"/orders/1/lines/1\", \"value\": {}}]")));
+        assertThrows(PatchConversionException.class, () -> router.route(new StringReader(
+                "[{\"op\": \"move\", \"from\": \"/customers/" + FIRST + "/a\", \"path\": \"/customers/" + SECOND + "/a\"}]")));
+        assertThrows(IllegalArgumentException.class, () -> PatchRouter.builder(converter).route("/customers", "customers"));
+        assertThrows(IllegalArgumentException.class,
+                () -> PatchRouter.builder(converter).route("/customers/{_id:uuid}", "customers"));
+    }
+}
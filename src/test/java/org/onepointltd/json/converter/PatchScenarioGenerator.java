@@ -0,0 +1,357 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.flipkart.zjsonpatch.JsonPatch;
+import com.flipkart.zjsonpatch.JsonPatchApplicationException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates random documents together with a valid JSON patch for each of them and the document the patch should
+ * produce according to RFC 6902, computed with zjsonpatch. The patches use all six operations, nested objects and
+ * arrays, positional inserts and removes. For the append strategy the values are only added to the end of arrays.
+ * <p>
+ * A few things are never generated, because the converter cannot express them without reading the document:
+ * <ul>
+ * <li>an add of an array to an object member, which the converter turns into a push of the array;</li>
+ * <li>null array elements, since removes of positions of nested arrays become an $unset and a $pull of nulls;</li>
+ * <li>operations on elements appended with "-" earlier in the patch, as their position is unknown.</li>
+ * </ul>
+ */
+class PatchScenarioGenerator {
+
+    private static final String[] NAMES = {"a", "b", "c", "d", "e", "f", "g", "h"};
+
+    private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+
+    private final Random random;
+
+    private final int maxOperations;
+
+    private final boolean tailAppends;
+
+    PatchScenarioGenerator(long seed, int maxOperations) {
+        this(seed, maxOperations, false);
+    }
+
+    /**
+     * @param tailAppends Whether values are only added to the end of arrays, as the {@link ArrayStrategy#APPEND}
+     *                    strategy cannot insert at a position.
+     */
+    PatchScenarioGenerator(long seed, int maxOperations, boolean tailAppends) {
+        this.random = new Random(seed);
+        this.maxOperations = maxOperations;
+        this.tailAppends = tailAppends;
+    }
+
+    /**
+     * A document, a patch and the patched document.
+     */
+    static final class Scenario {
+
+        final ObjectNode document;
+
+        final ArrayNode patch;
+
+        final JsonNode expected;
+
+        private Scenario(ObjectNode document, ArrayNode patch, JsonNode expected) {
+            this.document = document;
+            this.patch = patch;
+            this.expected = expected;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("document: %s%npatch: %s%nexpected: %s", document, patch, expected);
+        }
+    }
+
+    Scenario next() {
+        ObjectNode document = randomObject(0);
+        ArrayNode patch = NODES.arrayNode();
+        JsonNode state = document.deepCopy();
+        int operations = 1 + random.nextInt(maxOperations);
+        Set<String> appended = new HashSet<>();
+        for (int i = 0; i < operations; i++) {
+            List<Location> locations = new ArrayList<>();
+            collect(state, "", locations);
+            locations.removeIf(location -> isBelowAny(location.pointer, appended));
+            ObjectNode operation = randomOperation(state, locations);
+            if (operation == null) {
+                continue;
+            }
+            try {
+                state = applyReference(state, operation);
+            } catch (JsonPatchApplicationException | NumberFormatException e) {
+                // a move whose target was chosen before the source was removed from the same array, which zjsonpatch
+                // reports with a number format exception if the target is now a member name in an array
+                continue;
+            }
+            patch.add(operation);
+            track(appended, operation);
+        }
+        return new Scenario(document, patch, state);
+    }
+
+    /**
+     * Applies an operation with zjsonpatch, which does not know copy and test: a copy is applied as an add of the
+     * copied value, and the generated tests always pass.
+     */
+    private static JsonNode applyReference(JsonNode state, ObjectNode operation) {
+        String op = operation.get("op").asText();
+        if (op.equals("test")) {
+            return state;
+        }
+        ObjectNode applied = operation;
+        if (op.equals("copy")) {
+            applied = NODES.objectNode().put("op", "add").put("path", operation.get("path").asText());
+            applied.set("value", state.at(operation.get("from").asText()).deepCopy());
+        }
+        return JsonPatch.apply(NODES.arrayNode().add(applied), state);
+    }
+
+    private ObjectNode randomOperation(JsonNode state, List<Location> locations) {
+        List<Location> values = new ArrayList<>();
+        List<Location> containers = new ArrayList<>();
+        containers.add(new Location("", state));
+        for (Location location : locations) {
+            values.add(location);
+            if (location.node.isContainerNode()) {
+                containers.add(location);
+            }
+        }
+        int kind = random.nextInt(100);
+        if (kind < 35 || values.isEmpty()) {
+            String path = newPath(containers);
+            boolean toObjectMember = !path.endsWith("-") && !isArrayPosition(state, path);
+            return operation("add", path, randomValue(1, !toObjectMember, toObjectMember));
+        }
+        Location target = values.get(random.nextInt(values.size()));
+        if (kind < 55) {
+            return operation("remove", target.pointer);
+        }
+        if (kind < 80) {
+            boolean nulls = !isArrayPosition(state, target.pointer);
+            return operation("replace", target.pointer, randomValue(1, true, nulls));
+        }
+        if (kind < 90) {
+            return operation("test", target.pointer, target.node.deepCopy());
+        }
+        boolean copy = kind < 95;
+        List<Location> targets = new ArrayList<>();
+        for (Location container : containers) {
+            if (copy || !(container.pointer + "/").startsWith(target.pointer + "/")) {
+                targets.add(container);
+            }
+        }
+        String path = newPath(targets);
+        if (path == null || path.equals(target.pointer)) {
+            return null;
+        }
+        ObjectNode operation = operation(copy ? "copy" : "move", path);
+        operation.put("from", target.pointer);
+        return operation;
+    }
+
+    /**
+     * @return a path at which a value can be added: a member of an object or a position of an array.
+     */
+    private String newPath(List<Location> containers) {
+        if (containers.isEmpty()) {
+            return null;
+        }
+        Location container = containers.get(random.nextInt(containers.size()));
+        if (container.node.isArray()) {
+            int size = container.node.size();
+            boolean append = tailAppends || random.nextInt(4) == 0;
+            return container.pointer + "/" + (append ? "-" : Integer.toString(random.nextInt(size + 1)));
+        }
+        return container.pointer + "/" + NAMES[random.nextInt(NAMES.length)];
+    }
+
+    /**
+     * Keeps the pointers of the arrays with appended elements in step with an operation: the arrays follow the
+     * shifts of the positions of their ancestors and are moved or copied along, and they are forgotten once they
+     * are removed or replaced.
+     */
+    private static void track(Set<String> appended, ObjectNode operation) {
+        String op = operation.get("op").asText();
+        String path = operation.get("path").asText();
+        List<String> carried = new ArrayList<>();
+        if (op.equals("remove") || op.equals("replace") || op.equals("move")) {
+            String removed = op.equals("move") ? operation.get("from").asText() : path;
+            carried = detach(appended, removed);
+            if (!op.equals("replace")) {
+                shift(appended, removed, -1);
+            }
+        } else if (op.equals("copy")) {
+            String from = operation.get("from").asText();
+            for (String pointer : appended) {
+                if (pointer.startsWith(from + "/")) {
+                    carried.add(pointer.substring(from.length()));
+                }
+            }
+        }
+        if (!op.equals("add") && !op.equals("copy") && !op.equals("move")) {
+            return;
+        }
+        if (path.endsWith("/-")) {
+            appended.add(path.substring(0, path.length() - 2));
+            return;
+        }
+        if (isIndex(path.substring(path.lastIndexOf('/') + 1))) {
+            shift(appended, path, 1);
+        } else {
+            detach(appended, path);
+        }
+        for (String suffix : carried) {
+            appended.add(path + suffix);
+        }
+    }
+
+    /**
+     * Forgets the pointers at or below a pointer.
+     *
+     * @return the rest of the forgotten pointers below the pointer.
+     */
+    private static List<String> detach(Set<String> appended, String pointer) {
+        List<String> suffixes = new ArrayList<>();
+        for (Iterator<String> iterator = appended.iterator(); iterator.hasNext(); ) {
+            String next = iterator.next();
+            if (next.equals(pointer) || next.startsWith(pointer + "/")) {
+                suffixes.add(next.substring(pointer.length()));
+                iterator.remove();
+            }
+        }
+        return suffixes;
+    }
+
+    /**
+     * Shifts the pointers below the later positions of an array, after a position was removed or inserted.
+     */
+    private static void shift(Set<String> appended, String position, int delta) {
+        int last = position.lastIndexOf('/');
+        String array = position.substring(0, last + 1);
+        if (!isIndex(position.substring(last + 1))) {
+            return;
+        }
+        int index = Integer.parseInt(position.substring(last + 1));
+        Set<String> shifted = new HashSet<>();
+        for (String pointer : appended) {
+            if (pointer.startsWith(array)) {
+                int end = pointer.indexOf('/', array.length());
+                String rest = end < 0 ? "" : pointer.substring(end);
+                int other = Integer.parseInt(pointer.substring(array.length(), end < 0 ? pointer.length() : end));
+                if (delta < 0 ? other > index : other >= index) {
+                    other += delta;
+                }
+                pointer = array + other + rest;
+            }
+            shifted.add(pointer);
+        }
+        appended.clear();
+        appended.addAll(shifted);
+    }
+
+    /**
+     * @return {@code true} in case the segment is an array position, as the generated member names are letters.
+     */
+    private static boolean isIndex(String segment) {
+        return !segment.isEmpty() && segment.chars().allMatch(Character::isDigit);
+    }
+
+    private static boolean isBelowAny(String pointer, Set<String> ancestors) {
+        for (String ancestor : ancestors) {
+            if (pointer.startsWith(ancestor + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isArrayPosition(JsonNode state, String path) {
+        int last = path.lastIndexOf('/');
+        return state.at(path.substring(0, last)).isArray();
+    }
+
+    private static ObjectNode operation(String op, String path) {
+        return NODES.objectNode().put("op", op).put("path", path);
+    }
+
+    private static ObjectNode operation(String op, String path, JsonNode value) {
+        ObjectNode operation = operation(op, path);
+        operation.set("value", value);
+        return operation;
+    }
+
+    private static void collect(JsonNode node, String pointer, List<Location> locations) {
+        if (node.isObject()) {
+            Iterator<String> names = node.fieldNames();
+            while (names.hasNext()) {
+                String name = names.next();
+                JsonNode child = node.get(name);
+                locations.add(new Location(pointer + "/" + name, child));
+                collect(child, pointer + "/" + name, locations);
+            }
+        } else if (node.isArray()) {
+            for (int i = 0; i < node.size(); i++) {
+                locations.add(new Location(pointer + "/" + i, node.get(i)));
+                collect(node.get(i), pointer + "/" + i, locations);
+            }
+        }
+    }
+
+    private ObjectNode randomObject(int depth) {
+        ObjectNode object = NODES.objectNode();
+        int fields = depth == 0 ? 3 + random.nextInt(5) : random.nextInt(4);
+        for (int i = 0; i < fields; i++) {
+            object.set(NAMES[random.nextInt(NAMES.length)], randomValue(depth + 1, true, true));
+        }
+        return object;
+    }
+
+    private JsonNode randomValue(int depth, boolean arrays, boolean nulls) {
+        int kind = random.nextInt(depth < 3 ? (arrays ? 8 : 6) : 4);
+        switch (kind) {
+            case 0:
+                return NODES.numberNode(random.nextInt(100));
+            case 1:
+                return NODES.textNode("s" + random.nextInt(100));
+            case 2:
+                return NODES.booleanNode(random.nextBoolean());
+            case 3:
+                return nulls ? NODES.nullNode() : NODES.numberNode(random.nextInt(100));
+            case 4:
+            case 5:
+                return randomObject(depth);
+            default:
+                ArrayNode array = NODES.arrayNode();
+                int size = random.nextInt(5);
+                for (int i = 0; i < size; i++) {
+                    array.add(randomValue(depth + 1, true, false));
+                }
+                return array;
+        }
+    }
+
+    private static final class Location {
+
+        private final String pointer;
+
+        private final JsonNode node;
+
+        private Location(String pointer, JsonNode node) {
+            this.pointer = pointer;
+            this.node = node;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.codecs.BsonValueCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.json.JsonParseException;
+import org.bson.json.JsonReader;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the converter end to end without a database: random documents are patched by zjsonpatch and by applying
+ * the converted updates with the {@link MongoUpdateSimulator}, and both results have to be identical. The time spent
+ * converting and applying the updates is measured, giving the documents per second.
+ */
+class RoundTripHarness {
+
+    /**
+     * How the updates are produced.
+     */
+    enum Mode {
+        /**
+         * By converting the JSON patch.
+         */
+        PATCH,
+        /**
+         * By converting the JSON patch to a script, whose update commands are read back.
+         */
+        SCRIPT,
+        /**
+         * By diffing the document with the expected result.
+         */
+        DIFF
+    }
+
+    private static final int MAX_REPORTED_MISMATCHES = 5;
+
+    private static final BsonValueCodec VALUE_CODEC = new BsonValueCodec();
+
+    private static final String SCRIPT_UPDATE = "db.roundtrip.update ( ";
+
+    private final JsonPatchToMongoUpdate converter;
+
+    private final String[] prefixes;
+
+    RoundTripHarness(JsonPatchToMongoUpdate converter, String... prefixes) {
+        this.converter = converter;
+        this.prefixes = prefixes;
+    }
+
+    Report run(Mode mode, long seed, int documents, int maxOperations) {
+        // the append strategy can only add to the end of an array, so the patches do not insert at positions
+        PatchScenarioGenerator generator = new PatchScenarioGenerator(seed, maxOperations,
+                converter.getArrayStrategy() == ArrayStrategy.APPEND);
+        Report report = new Report(mode);
+        for (int i = 0; i < documents; i++) {
+            PatchScenarioGenerator.Scenario scenario = generator.next();
+            String patch = scenario.patch.toString();
+            BsonDocument expected = wrap(scenario.expected);
+            long start = System.nanoTime();
+            BsonDocument actual = wrap(scenario.document);
+            List<BulkUpdate> updates;
+            try {
+                MongoConversion conversion = mode == Mode.DIFF ? converter.diff(scenario.document, scenario.expected)
+                        : converter.convert(new StringReader(patch));
+                updates = mode == Mode.SCRIPT
+                        ? readScript(converter.convertToMongoUpdates(conversion, "{}", "roundtrip", prefixes)
+                        .asJavascript(false))
+                        : converter.convertToDocuments(conversion, prefixes).toUpdates(new BsonDocument());
+                MongoUpdateSimulator.apply(actual, updates);
+            } catch (PatchConversionException e) {
+                report.nanos += System.nanoTime() - start;
+                report.rejected++;
+                continue;
+            } catch (IOException | IllegalArgumentException e) {
+                report.nanos += System.nanoTime() - start;
+                report.mismatch(scenario + System.lineSeparator() + "failed: " + e);
+                continue;
+            }
+            report.nanos += System.nanoTime() - start;
+            if (actual.equals(expected)) {
+                report.matched++;
+            } else {
+                report.mismatch(String.format("%s%nupdates: %s%nactual: %s", scenario, updates, actual.toJson()));
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Reads the update commands of a script back, each of which is on a line of its own.
+     *
+     * @throws IllegalArgumentException a line is not an update command which can be parsed.
+     */
+    private static List<BulkUpdate> readScript(String script) {
+        List<BulkUpdate> updates = new ArrayList<>();
+        for (String line : script.split("\\R")) {
+            String command = line.trim();
+            if (command.isEmpty()) {
+                continue;
+            }
+            if (!command.startsWith(SCRIPT_UPDATE) || !command.endsWith(" );")) {
+                throw new IllegalArgumentException("Not an update command: " + command);
+            }
+            String arguments = command.substring(SCRIPT_UPDATE.length(), command.length() - 3);
+            BsonArray parsed;
+            try (JsonReader reader = new JsonReader("[" + arguments + "]")) {
+                reader.readBsonType();
+                parsed = readValue(reader).asArray();
+            } catch (JsonParseException e) {
+                throw new IllegalArgumentException("Cannot parse the update command: " + command, e);
+            }
+            BsonDocument filter = parsed.get(0).asDocument();
+            BsonValue update = parsed.get(1);
+            if (update.isArray()) {
+                List<BsonDocument> pipeline = new ArrayList<>();
+                update.asArray().forEach(stage -> pipeline.add(stage.asDocument()));
+                updates.add(new BulkUpdate(filter, pipeline));
+            } else {
+                updates.add(new BulkUpdate(filter, update.asDocument()));
+            }
+        }
+        return updates;
+    }
+
+    /**
+     * Reads the value at the current type of the reader. Unlike a {@link BsonDocument} parse, which keeps the last
+     * value of a repeated key, a document with a key twice is refused, as drivers and the shell do.
+     */
+    private static BsonValue readValue(JsonReader reader) {
+        if (reader.getCurrentBsonType() == BsonType.DOCUMENT) {
+            BsonDocument document = new BsonDocument();
+            reader.readStartDocument();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                String name = reader.readName();
+                if (document.put(name, readValue(reader)) != null) {
+                    throw new IllegalArgumentException("The key " + name + " is repeated in an update command");
+                }
+            }
+            reader.readEndDocument();
+            return document;
+        }
+        if (reader.getCurrentBsonType() == BsonType.ARRAY) {
+            BsonArray array = new BsonArray();
+            reader.readStartArray();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                array.add(readValue(reader));
+            }
+            reader.readEndArray();
+            return array;
+        }
+        return VALUE_CODEC.decode(reader, DecoderContext.builder().build());
+    }
+
+    /**
+     * @return the document as BSON, nested below the prefixes.
+     */
+    private BsonDocument wrap(JsonNode document) {
+        BsonDocument bson = BsonValues.toBson(document).asDocument();
+        for (int i = prefixes.length - 1; i >= 0; i--) {
+            bson = new BsonDocument(prefixes[i], bson);
+        }
+        return bson;
+    }
+
+    /**
+     * The outcome of a run.
+     */
+    static final class Report {
+
+        private final Mode mode;
+
+        private final List<String> mismatches = new ArrayList<>();
+
+        private int mismatchCount;
+
+        private int matched;
+
+        private int rejected;
+
+        private long nanos;
+
+        private Report(Mode mode) {
+            this.mode = mode;
+        }
+
+        private void mismatch(String description) {
+            mismatchCount++;
+            if (mismatches.size() < MAX_REPORTED_MISMATCHES) {
+                mismatches.add(description);
+            }
+        }
+
+        int getMatched() {
+            return matched;
+        }
+
+        /**
+         * @return the number of patches which the converter refused, because they cannot be expressed without
+         * reading the document.
+         */
+        int getRejected() {
+            return rejected;
+        }
+
+        int getMismatchCount() {
+            return mismatchCount;
+        }
+
+        /**
+         * @return the first mismatches, each with the document, the patch and both results.
+         */
+        List<String> getMismatches() {
+            return mismatches;
+        }
+
+        double getDocumentsPerSecond() {
+            int documents = matched + rejected + mismatchCount;
+            return nanos == 0 ? 0 : documents * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %,d matched, %,d rejected, %,d mismatched, %,.0f documents/s", mode, matched,
+                    rejected, mismatchCount, getDocumentsPerSecond());
+        }
+    }
+}
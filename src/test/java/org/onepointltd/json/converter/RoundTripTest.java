@@ -0,0 +1,131 @@
+package org.onepointltd.json.converter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+class RoundTripTest {
+
+    private static final int DOCUMENTS = Integer.getInteger("roundtrip.documents", 1000);
+
+    /**
+     * The number of seeds of each run, since a single seed hides the mismatches other seeds find.
+     */
+    private static final int SEEDS = Integer.getInteger("roundtrip.seeds", 10);
+
+    /**
+     * Seeds which found mismatches before, with enough documents to reach them.
+     */
+    private static final long[] REGRESSION_SEEDS = {22, 113, 114, 1035, 5010, 5023};
+
+    @Test
+    void whenPatchIsConverted_ShouldProduceSameDocumentAsJsonPatch() {
+        int matched = check(new RoundTripHarness(positional()), RoundTripHarness.Mode.PATCH, seeds(1), DOCUMENTS, 8);
+        assertThat(matched).isGreaterThan(SEEDS * DOCUMENTS / 2);
+    }
+
+    @Test
+    void whenArraysAreAppended_ShouldProduceSameDocumentAsJsonPatch() {
+        // the default strategy, with patches which only append to arrays and remove whole elements
+        RoundTripHarness harness = new RoundTripHarness(new JsonPatchToMongoUpdate(), "customer");
+        int matched = check(harness, RoundTripHarness.Mode.PATCH, seeds(700), DOCUMENTS, 8);
+        assertThat(matched).isGreaterThan(SEEDS * DOCUMENTS / 2);
+        check(harness, RoundTripHarness.Mode.SCRIPT, seeds(800), DOCUMENTS, 8);
+    }
+
+    @Test
+    void whenScriptIsReadBack_ShouldProduceSameDocumentAsJsonPatch() {
+        int matched = check(new RoundTripHarness(positional(), "customer", "profile"), RoundTripHarness.Mode.SCRIPT,
+                seeds(100), DOCUMENTS, 8);
+        assertThat(matched).isGreaterThan(SEEDS * DOCUMENTS / 2);
+    }
+
+    @Test
+    void whenSplitScriptIsReadBack_ShouldProduceSameDocumentAsJsonPatch() {
+        JsonPatchToMongoUpdate converter = positional();
+        converter.setMaxUpdateSize(64);
+        converter.setLazyValues(true);
+        check(new RoundTripHarness(converter, "customer"), RoundTripHarness.Mode.SCRIPT, seeds(200), DOCUMENTS, 8);
+    }
+
+    @Test
+    void whenConvertedWithPrefixesAndPlanCache_ShouldProduceSameDocumentAsJsonPatch() {
+        JsonPatchToMongoUpdate converter = positional();
+        converter.setPlanCache(new ConversionPlanCache(64));
+        RoundTripHarness harness = new RoundTripHarness(converter, "customer", "profile");
+        // the seeds repeated, so that the second run is converted from cached templates
+        for (int run = 0; run < 2; run++) {
+            check(harness, RoundTripHarness.Mode.PATCH, seeds(300), DOCUMENTS / 2, 3);
+        }
+        assertThat(converter.getPlanCache().getHitCount()).isGreaterThan(0);
+    }
+
+    @Test
+    void whenUpdatesAreSplit_ShouldProduceSameDocumentAsJsonPatch() {
+        JsonPatchToMongoUpdate converter = positional();
+        // small enough to give most values an update of their own
+        converter.setMaxUpdateSize(64);
+        int matched = check(new RoundTripHarness(converter, "customer"), RoundTripHarness.Mode.PATCH, seeds(400),
+                DOCUMENTS, 8);
+        assertThat(matched).isGreaterThan(SEEDS * DOCUMENTS / 2);
+    }
+
+    @Test
+    void whenValuesAreLazy_ShouldProduceSameDocumentAsJsonPatch() {
+        JsonPatchToMongoUpdate converter = positional();
+        converter.setLazyValues(true);
+        int matched = check(new RoundTripHarness(converter, "customer"), RoundTripHarness.Mode.PATCH, seeds(500),
+                DOCUMENTS, 8);
+        assertThat(matched).isGreaterThan(SEEDS * DOCUMENTS / 2);
+    }
+
+    @Test
+    void whenSeedsFoundMismatchesBefore_ShouldProduceSameDocumentAsJsonPatch() {
+        for (boolean lazy : new boolean[]{false, true}) {
+            JsonPatchToMongoUpdate converter = positional();
+            converter.setLazyValues(lazy);
+            check(new RoundTripHarness(converter, "customer"), RoundTripHarness.Mode.PATCH, REGRESSION_SEEDS, 3000, 8);
+        }
+    }
+
+    @Test
+    void whenDocumentsAreDiffed_ShouldProduceSameDocumentAsJsonPatch() {
+        RoundTripHarness harness = new RoundTripHarness(positional(), "customer");
+        for (long seed : seeds(600)) {
+            RoundTripHarness.Report report = harness.run(RoundTripHarness.Mode.DIFF, seed, DOCUMENTS, 8);
+            assertThat(report.getMismatches()).as("seed %d: %s", seed, report).isEmpty();
+            assertThat(report.getRejected()).as("seed %d: %s", seed, report).isEqualTo(0);
+        }
+    }
+
+    /**
+     * Runs the harness once per seed and checks that no document mismatched.
+     *
+     * @return the number of matched documents of all seeds.
+     */
+    private static int check(RoundTripHarness harness, RoundTripHarness.Mode mode, long[] seeds, int documents,
+                             int maxOperations) {
+        int matched = 0;
+        for (long seed : seeds) {
+            RoundTripHarness.Report report = harness.run(mode, seed, documents, maxOperations);
+            assertThat(report.getMismatches()).as("seed %d: %s", seed, report).isEmpty();
+            matched += report.getMatched();
+        }
+        return matched;
+    }
+
+    private static long[] seeds(long first) {
+        return LongStream.range(first, first + SEEDS).toArray();
+    }
+
+    /**
+     * Only the positional strategy inserts at the positions of the patch, the other one appends.
+     */
+    private static JsonPatchToMongoUpdate positional() {
+        JsonPatchToMongoUpdate converter = new JsonPatchToMongoUpdate();
+        converter.setArrayStrategy(ArrayStrategy.POSITIONAL);
+        return converter;
+    }
+}
@@ -0,0 +1,161 @@
+package org.onepointltd.json.converter;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+class StreamingPatchConverterTest {
+
+    private final JsonPatchToMongoUpdate converter = new JsonPatchToMongoUpdate();
+
+    @Test
+    void whenPatchesAreSplitAcrossChunks_ShouldConvertEachPatchInOrder() throws IOException {
+        List<String> patches = Arrays.asList(
+                "[{\"op\": \"replace\", \"path\": \"/name\", \"value\": \"Zo\u00eb \\\"]}\\\\\"}]",
+                "[{\"op\": \"add\", \"path\": \"/tags/-\", \"value\": [\"a\", {\"b\": [1, 2]}]}," +
+                        "{\"op\": \"remove\", \"path\": \"/age\"}]",
+                "[]",
+                "[{\"op\": \"add\", \"path\": \"/notes\", \"value\": \"\u65e5\u672c\u8a9e\"}]");
+        List<String> expected = new ArrayList<>();
+        for (String patch : patches) {
+            expected.add(converter.convertToMongoUpdates(new StringReader(patch), "{}", "customers", "customer")
+                    .asJavascript(false));
+        }
+        byte[] input = ("\n" + String.join("\r\n", patches) + "\n").getBytes(StandardCharsets.UTF_8);
+        for (int chunkSize : new int[]{1, 7, input.length}) {
+            ChunkPublisher publisher = new ChunkPublisher(input, chunkSize);
+            StreamingPatchConverter streamingConverter = new StreamingPatchConverter(converter, "{}", "customers",
+                    "customer");
+            publisher.subscribe(streamingConverter);
+            CollectingSubscriber subscriber = new CollectingSubscriber();
+            streamingConverter.subscribe(subscriber);
+            assertThat(publisher.requested).isEqualTo(0);
+
+            subscriber.subscription.request(1);
+            assertThat(subscriber.scripts).hasSize(1);
+            assertThat(publisher.requested).isLessThan(input.length / chunkSize + 1);
+            subscriber.subscription.request(Long.MAX_VALUE);
+            assertThat(subscriber.scripts).isEqualTo(expected);
+            assertThat(subscriber.completed).isTrue();
+            assertThat(subscriber.error).isNull();
+        }
+    }
+
+    @Test
+    void whenPatchIsInvalid_ShouldFailAndCancelUpstream() {
+        byte[] input = "[{\"op\": \"remove\", \"path\": \"/a\"}]\n{\"op\": \"remove\"}\n[]".getBytes(StandardCharsets.UTF_8);
+        ChunkPublisher publisher = new ChunkPublisher(input, 5);
+        StreamingPatchConverter streamingConverter = new StreamingPatchConverter(converter, "{}", "customers");
+        publisher.subscribe(streamingConverter);
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        streamingConverter.subscribe(subscriber);
+        subscriber.subscription.request(10);
+        assertThat(subscriber.scripts).hasSize(1);
+        assertThat(subscriber.error).isInstanceOf(JsonParseException.class);
+        assertThat(subscriber.completed).isFalse();
+        assertThat(publisher.cancelled).isTrue();
+    }
+
+    @Test
+    void whenStreamEndsWithinPatch_ShouldFail() {
+        ChunkPublisher publisher = new ChunkPublisher("[{\"op\": ".getBytes(StandardCharsets.UTF_8), 3);
+        StreamingPatchConverter streamingConverter = new StreamingPatchConverter(converter, "{}", "customers");
+        publisher.subscribe(streamingConverter);
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        streamingConverter.subscribe(subscriber);
+        subscriber.subscription.request(1);
+        assertThat(subscriber.error).hasMessageContaining("ended within a patch");
+    }
+
+    /**
+     * Publishes the input in chunks, synchronously and only as many as requested.
+     */
+    private static class ChunkPublisher implements PatchFlow.Publisher<ByteBuffer> {
+
+        private final byte[] input;
+
+        private final int chunkSize;
+
+        private int position;
+
+        private int requested;
+
+        private boolean cancelled;
+
+        ChunkPublisher(byte[] input, int chunkSize) {
+            this.input = input;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public void subscribe(PatchFlow.Subscriber<? super ByteBuffer> subscriber) {
+            subscriber.onSubscribe(new PatchFlow.Subscription() {
+                @Override
+                public void request(long n) {
+                    requested += n;
+                    for (long i = 0; i < n && !cancelled; i++) {
+                        if (position >= input.length) {
+                            subscriber.onComplete();
+                            return;
+                        }
+                        int length = Math.min(chunkSize, input.length - position);
+                        // the chunk is overwritten once delivered, so the converter must not keep it
+                        ByteBuffer chunk = ByteBuffer.allocate(chunkSize + 2);
+                        chunk.position(1);
+                        chunk.put(input, position, length);
+                        chunk.flip();
+                        chunk.position(1);
+                        position += length;
+                        subscriber.onNext(chunk);
+                        Arrays.fill(chunk.array(), (byte) 'x');
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled = true;
+                }
+            });
+        }
+    }
+
+    private static class CollectingSubscriber implements PatchFlow.Subscriber<MongoCommands> {
+
+        private final List<String> scripts = new ArrayList<>();
+
+        private PatchFlow.Subscription subscription;
+
+        private Throwable error;
+
+        private boolean completed;
+
+        @Override
+        public void onSubscribe(PatchFlow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(MongoCommands item) {
+            scripts.add(item.asJavascript(false));
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}